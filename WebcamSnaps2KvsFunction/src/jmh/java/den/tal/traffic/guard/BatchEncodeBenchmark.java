@@ -0,0 +1,93 @@
+package den.tal.traffic.guard;
+
+import den.tal.traffic.guard.kvs.utils.Utils;
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole batch, from the request body to the MKV fragment. Batch size, source resolution and format are benchmark
+ * parameters.
+ * <p>
+ * FFmpeg benchmarks need <code>Path2FFmpeg</code> environment variable, exclude them with
+ * <code>-e ".*Ffmpeg.*"</code> where there's no FFmpeg.
+ *
+ * @author Denis Talochkin
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-jmh.xml")
+public class BatchEncodeBenchmark {
+
+    @Param({"5", "25"})
+    private int batchSize;
+
+    @Param({"640x480", "1280x720"})
+    private String resolution;
+
+    @Param({"jpeg", "png"})
+    private String format;
+
+    private WebcamStreamProcessor processor;
+    private String body;
+    private Path imagesFolder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        processor = new WebcamStreamProcessor();
+        body = SyntheticFrames.toRequestBody(SyntheticFrames.toDataUris(
+                SyntheticFrames.generate(batchSize, resolution, format), format), Utils.DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Frames written by {@link #convertImages()} are encoded by {@link #convertImagesToMkvFfmpeg()}.
+     */
+    @Setup(Level.Iteration)
+    public void prepareImages() throws IOException {
+        imagesFolder = processor.convertImages(body);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteImages() throws IOException {
+        processor.cleanUp(imagesFolder);
+    }
+
+    /**
+     * Body parsing, decoding and writing JPEG files.
+     */
+    @Benchmark
+    public Path convertImages() throws IOException {
+        Path folder = processor.convertImages(body);
+        processor.cleanUp(folder);
+
+        return folder;
+    }
+
+    /**
+     * FFmpeg encoding of already saved JPEG files.
+     */
+    @Benchmark
+    public Path convertImagesToMkvFfmpeg() throws IOException {
+        Path mkvFile = processor.convertImagesToMkv(imagesFolder);
+        Files.delete(mkvFile);
+
+        return mkvFile;
+    }
+
+    /**
+     * Body parsing, decoding, H.264 encoding and muxing in-process.
+     */
+    @Benchmark
+    public void convertImagesToMkvInProcess() throws IOException {
+        // The stream is closed by the encoder, so a new one is needed every time.
+        processor.convertImagesToMkvInProcess(body, OutputStream.nullOutputStream(), new InvocationMetrics());
+    }
+}
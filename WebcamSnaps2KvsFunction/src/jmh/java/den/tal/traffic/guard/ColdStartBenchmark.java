@@ -0,0 +1,59 @@
+package den.tal.traffic.guard;
+
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the first batch in a fresh JVM, as after a scale-out: every fork measures a single batch. The batch runs
+ * in-process (JCodec), the body is read from the test request payload, so nothing touches ImageIO before the
+ * measurement except priming.
+ * <ul>
+ *     <li>cold: nothing is warmed up;</li>
+ *     <li>primed: {@link WebcamStreamProcessor#prime()} ran at init time;</li>
+ *     <li>warm: the same batch ran {@link #WARM_UP_BATCHES} times before.</li>
+ * </ul>
+ *
+ * @author Denis Talochkin
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-jmh.xml")
+public class ColdStartBenchmark {
+
+    private static final String REQUEST_PAYLOAD = "request_payload.json";
+    private static final int WARM_UP_BATCHES = 50;
+
+    @Param({"cold", "primed", "warm"})
+    private String start;
+
+    private WebcamStreamProcessor processor;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, URISyntaxException {
+        body = Files.readString(Paths.get(getClass().getClassLoader().getResource(REQUEST_PAYLOAD).toURI()));
+        processor = new WebcamStreamProcessor(metrics -> {});
+        if ("primed".equals(start)) {
+            processor.prime();
+        } else if ("warm".equals(start)) {
+            for (int i = 0; i < WARM_UP_BATCHES; ++i) {
+                firstBatch();
+            }
+        }
+    }
+
+    @Benchmark
+    public void firstBatch() throws IOException {
+        processor.convertImagesToMkvInProcess(body, OutputStream.nullOutputStream(), new InvocationMetrics());
+    }
+}
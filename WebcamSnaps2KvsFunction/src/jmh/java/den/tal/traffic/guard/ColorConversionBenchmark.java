@@ -0,0 +1,78 @@
+package den.tal.traffic.guard;
+
+import den.tal.traffic.guard.image.Yuv420Converter;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+import org.jcodec.scale.AWTUtil;
+import org.jcodec.scale.ColorUtil;
+import org.jcodec.scale.Transform;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a decoded frame to the H.264 encoder color space: jcodec (RGB picture, then YUV420J) against
+ * {@link Yuv420Converter} in plain java and on the Vector API. The frame is a decoded synthetic JPEG, i.e. a
+ * <code>TYPE_3BYTE_BGR</code> image, as in the function.
+ *
+ * @author Denis Talochkin
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog4j.configurationFile=log4j2-jmh.xml", "--add-modules",
+        "jdk.incubator.vector"})
+public class ColorConversionBenchmark {
+
+    @Param({"640x480", "1280x720"})
+    private String resolution;
+
+    private BufferedImage image;
+    private Picture rgbPicture;
+    private Picture picture;
+    private Transform rgbToYuv;
+    private Yuv420Converter scalarConverter;
+    private Yuv420Converter vectorConverter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] jpeg = SyntheticFrames.generate(1, resolution, "jpeg").get(0);
+        image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        rgbPicture = Picture.create(image.getWidth(), image.getHeight(), ColorSpace.RGB);
+        picture = Picture.create(image.getWidth(), image.getHeight(), ColorSpace.YUV420J);
+        rgbToYuv = ColorUtil.getTransform(ColorSpace.RGB, ColorSpace.YUV420J);
+        scalarConverter = new Yuv420Converter(false);
+        vectorConverter = new Yuv420Converter(true);
+        if (!vectorConverter.isVectorized()) {
+            throw new IllegalStateException("Vector API is not available, add jdk.incubator.vector module.");
+        }
+    }
+
+    @Benchmark
+    public Picture jcodec() {
+        AWTUtil.fromBufferedImage(image, rgbPicture);
+        rgbToYuv.transform(rgbPicture, picture);
+
+        return picture;
+    }
+
+    @Benchmark
+    public Picture scalar() {
+        scalarConverter.convert(image, picture);
+
+        return picture;
+    }
+
+    @Benchmark
+    public Picture vector() {
+        vectorConverter.convert(image, picture);
+
+        return picture;
+    }
+}
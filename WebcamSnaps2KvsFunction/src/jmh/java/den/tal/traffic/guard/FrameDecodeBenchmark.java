@@ -0,0 +1,81 @@
+package den.tal.traffic.guard;
+
+import com.amazonaws.util.Base64;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Per-frame work: data URI prefix stripping, base64 decoding together with image decoding, and the body of the
+ * frame loop of {@link WebcamStreamProcessor#convertImages(String)} (decode, convert, encode to JPEG).
+ * <p>
+ * Source resolution and format are benchmark parameters, the target video size comes from
+ * <code>videoWidth</code>/<code>videoHeight</code> environment variables as in the function itself.
+ *
+ * @author Denis Talochkin
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-jmh.xml")
+public class FrameDecodeBenchmark {
+
+    @Param({"640x480", "1280x720"})
+    private String resolution;
+
+    @Param({"jpeg", "png"})
+    private String format;
+
+    private WebcamStreamProcessor processor;
+    private List<String> dataUris;
+    private List<String> base64Frames;
+    private List<byte[]> frames;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        processor = new WebcamStreamProcessor();
+        frames = SyntheticFrames.generate(8, resolution, format);
+        dataUris = SyntheticFrames.toDataUris(frames, format);
+        base64Frames = dataUris.stream().map(processor::normalize).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public String normalize() {
+
+        return processor.normalize(dataUris.get(nextFrame()));
+    }
+
+    @Benchmark
+    public byte[] decodeBase64() {
+
+        return Base64.decode(base64Frames.get(nextFrame()));
+    }
+
+    @Benchmark
+    public void convertToImage(Blackhole blackhole) {
+        blackhole.consume(processor.convertToImage(base64Frames.get(nextFrame())));
+    }
+
+    /**
+     * Frame loop body of {@link WebcamStreamProcessor#convertImages(String)}, without writing the file.
+     */
+    @Benchmark
+    public byte[] reencodeFrame() throws IOException {
+        int ordinal = nextFrame();
+
+        return processor.reencodeJpeg(ordinal, frames.get(ordinal));
+    }
+
+    private int nextFrame() {
+        next = (next + 1) % frames.size();
+
+        return next;
+    }
+}
@@ -1,8 +1,8 @@
 package den.tal.traffic.guard;
 
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoPutMedia;
 import com.amazonaws.services.kinesisvideo.PutMediaAckResponseHandler;
 import com.amazonaws.services.kinesisvideo.model.AckEvent;
+import com.amazonaws.services.kinesisvideo.model.AckEventType;
 import com.amazonaws.services.kinesisvideo.model.FragmentTimecodeType;
 import com.amazonaws.services.kinesisvideo.model.PutMediaRequest;
 import com.amazonaws.services.lambda.runtime.Context;
@@ -18,32 +18,66 @@ import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.GpsDirectory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import den.tal.traffic.guard.json.BodyPayload;
+import com.twelvemonkeys.imageio.stream.ByteArrayImageInputStream;
+import den.tal.traffic.guard.image.FrameBuffers;
+import den.tal.traffic.guard.image.FrameDeduplicator;
+import den.tal.traffic.guard.image.ImageScaling;
+import den.tal.traffic.guard.image.JpegHeader;
+import den.tal.traffic.guard.image.ParallelFrameStage;
+import den.tal.traffic.guard.image.Yuv420Converter;
+import den.tal.traffic.guard.kvs.BatchEncoder;
+import den.tal.traffic.guard.kvs.DeadlineController;
+import den.tal.traffic.guard.kvs.EncodingMode;
+import den.tal.traffic.guard.kvs.EncodingPlan;
+import den.tal.traffic.guard.kvs.FFmpegPipeEncoder;
+import den.tal.traffic.guard.kvs.FragmentCoalescer;
+import den.tal.traffic.guard.kvs.JCodecMkvEncoder;
+import den.tal.traffic.guard.kvs.KvsAckException;
+import den.tal.traffic.guard.kvs.PutMediaSession;
+import den.tal.traffic.guard.kvs.UploadSpool;
+import den.tal.traffic.guard.kvs.utils.KvsClientCache;
 import den.tal.traffic.guard.kvs.utils.Utils;
+import den.tal.traffic.guard.metrics.*;
+import den.tal.traffic.guard.payload.FramePayloadReader;
+import den.tal.traffic.guard.payload.RequestPayload;
 import lombok.extern.slf4j.Slf4j;
 import net.bramp.ffmpeg.FFmpeg;
 import net.bramp.ffmpeg.FFmpegExecutor;
 import net.bramp.ffmpeg.builder.FFmpegBuilder;
 import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
-import org.jcodec.codecs.h264.H264Encoder;
+import org.jcodec.common.model.ColorSpace;
 import org.jcodec.common.model.Picture;
 import org.jcodec.common.model.Rational;
 import org.jcodec.scale.AWTUtil;
+import org.jcodec.scale.ColorUtil;
+import org.jcodec.scale.Transform;
 
 import javax.imageio.*;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Current lambda function processes JPEG images, converts them to h264 frames and sends to AWS.
@@ -51,74 +85,479 @@ import java.util.concurrent.CountDownLatch;
  * @author Denis Talochkin
  */
 @Slf4j
-public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>
+public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>,
+        Closeable
 {
     private static final String PNG_URI_PREFIX = "data:image/png;base64,";
     private static final String JPG_URI_PREFIX = "data:image/jpeg;base64,";
 
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    private H264Encoder encoder = H264Encoder.createH264Encoder();
-    {
-        if (!Utils.isInProdMode()) {
-            Utils.printOutDirectoryRecursive(Paths.get("/opt"));
+    private static final long FFMPEG_PIPE_TIMEOUT_IN_MILLIS = 10_000;
+
+    /**
+     * FFmpeg workers read frames at the default frame rate. A batch whose rate is this close to it goes to a worker,
+     * the timecodes drift less than the jitter of webcam timestamps.
+     */
+    private static final double WORKER_FRAME_RATE_TOLERANCE = .05;
+    private static final long PUT_MEDIA_TIMEOUT_IN_MILLIS = 20_000;
+    private static final int MKV_PIPE_BUFFER_SIZE = 256 * 1024;
+    /**
+     * File type is detected by the first bytes.
+     */
+    private static final int FILE_TYPE_BUFFER_SIZE = 256;
+    private static final String PRIMING_FRAME = "priming.jpg";
+    private static final int PRIMING_BATCH_SIZE = 2;
+    /**
+     * Color space H.264 encoder works in. Re-encoded JPEGs go through it, so they look like the video frames.
+     */
+    private static final ColorSpace ENCODER_COLOR_SPACE = ColorSpace.YUV420J;
+    private static final Transform ENCODER_COLOR_SPACE_TO_RGB = ColorUtil.getTransform(ENCODER_COLOR_SPACE,
+            ColorSpace.RGB);
+    private static final AtomicBoolean COLD_START = new AtomicBoolean(true);
+    private static final AtomicBoolean OPT_LISTED = new AtomicBoolean();
+
+    /**
+     * Only needed to log requests out of prod, so it's created on the first use.
+     */
+    private static class GsonHolder {
+
+        private static final Gson INSTANCE = new GsonBuilder().setPrettyPrinting().create();
+    }
+
+    /**
+     * Produces MKV stream while it's being sent to KVS.
+     */
+    @FunctionalInterface
+    interface MkvStreamProducer {
+
+        void produce() throws IOException;
+    }
+
+    private final ParallelFrameStage frameStage = new ParallelFrameStage(Utils.getDecodeParallelism());
+    /**
+     * Caps CPU-heavy encoding when one instance serves concurrent requests, e.g. in the standalone server. Waiting
+     * for KVS acks doesn't hold a slot.
+     */
+    private final Semaphore encodingSlots = new Semaphore(Utils.getMaxConcurrentEncodings(), true);
+    private final MetricsSink metricsSink;
+    private final Map<EncodingMode, DeadlineController> deadlineControllers = new EnumMap<>(EncodingMode.class);
+    private long primingMillis = -1;
+    private FragmentCoalescer coalescer;
+    private UploadSpool spool;
+
+    /**
+     * Lambda runtime creates the handler during the init phase, so priming runs before the first request.
+     */
+    public WebcamStreamProcessor() {
+        this(Utils.getMetricsSink());
+        if (Utils.isPrimingEnabled()) {
+            prime();
         }
     }
 
+    WebcamStreamProcessor(MetricsSink metricsSink) {
+        this.metricsSink = metricsSink;
+    }
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+        if (!Utils.isInProdMode()) {
+            if (OPT_LISTED.compareAndSet(false, true)) {
+                Utils.printOutDirectoryRecursive(Paths.get("/opt"));
+            }
+            Utils.logEnvironment(request, context, GsonHolder.INSTANCE);
+        }
+
+        final RequestPayload payload = RequestPayload.of(request);
+        if (payload.isBinaryPassedAsText()) {
+            log.warn("Binary request body is not base64-encoded.");
+
+            return Utils.getResponse(400, "Binary body must be base64-encoded: add its content type to "
+                    + "BinaryMediaTypes of the API.");
+        }
+
+        return handlePayload(payload, context);
+    }
+
+    /**
+     * Encodes the frames of the body and sends them to KVS. If the batch is predicted to miss the lambda deadline or
+     * the latency target, it's encoded faster at lower quality, see {@link DeadlineController}.
+     *
+     * @param payload request body, JSON or binary.
+     * @param context lambda context, null in the standalone server.
+     */
+    public APIGatewayProxyResponseEvent handlePayload(RequestPayload payload, Context context) {
+        final InvocationMetrics metrics = new InvocationMetrics();
+        final boolean coldStart = COLD_START.getAndSet(false);
+        DeadlineController deadlineController = null;
+        EncodingPlan plan = null;
+        boolean coalesced = false;
+        boolean spooled = false;
+        boolean completed = false;
         try {
-            if (!Utils.isInProdMode()) {
-                Utils.logEnvironment(request, context, gson);
+            Path tmpFolder = null;
+            final EncodingMode encodingMode = Utils.getEncodingMode();
+            metrics.setDimension("EncodingMode", encodingMode.name());
+            metrics.setProperty("PayloadFormat", payload.getFormat().name());
+            if (null != context) {
+                metrics.setProperty("RequestId", context.getAwsRequestId());
+            }
+            if (coldStart) {
+                metrics.setProperty("ColdStart", "true");
+                if (primingMillis >= 0) {
+                    metrics.setProperty("PrimingMillis", String.valueOf(primingMillis));
+                }
             }
-            Path tmpFolder = convertImages(request.getBody());
-            Path mkvFile = convertImagesToMkv(tmpFolder);
-            log.debug("Created MKV container file: {}", mkvFile);
-            CountDownLatch latch = new CountDownLatch(1);
-            try (InputStream is = new FileInputStream(mkvFile.toFile());
-                 AmazonKinesisVideoPutMedia putMediaClient = Utils.getKvsPutMediaClient(Utils.getRegion(),
-                         Utils.getKvsName())) {
-                log.debug("Send MKV as a fragment to KVS...");
-                putMediaClient.putMedia(new PutMediaRequest().withStreamName(Utils.getKvsName())
-                        .withFragmentTimecodeType(FragmentTimecodeType.RELATIVE)
-                        .withProducerStartTimestamp(new Date())
-                        .withPayload(is), new PutMediaAckResponseHandler() {
-                    @Override
-                    public void onAckEvent(AckEvent event) {
-                        log.debug("Fragment ack. {}", event);
+            final PutMediaSession session = Utils.isPersistentPutMedia() ? Utils.getPutMediaSession() : null;
+            deadlineController = getDeadlineController(encodingMode);
+            plan = deadlineController.plan(payload.getSize(),
+                    null == context ? Long.MAX_VALUE : context.getRemainingTimeInMillis(), Utils.getWidth(),
+                    Utils.getHeight());
+            recordPlan(plan, metrics);
+            switch (encodingMode) {
+                case JCODEC:
+                    if (Utils.isFragmentCoalescing()) {
+                        acquireEncodingSlot();
+                        try {
+                            coalesceImages(payload, plan, metrics);
+                        } finally {
+                            encodingSlots.release();
+                        }
+                        coalesced = true;
+
+                        break;
                     }
+                    if (null != Utils.getUploadSpoolDirectory()) {
+                        // The fragment is spooled as a whole before it's sent.
+                        ByteArrayOutputStream mkv = new ByteArrayOutputStream();
+                        acquireEncodingSlot();
+                        try {
+                            convertImagesToMkvInProcess(payload, mkv, plan, metrics);
+                        } finally {
+                            encodingSlots.release();
+                        }
+                        spooled = sendSpooled(mkv.toByteArray(), session, metrics);
 
-                    @Override
-                    public void onFailure(Throwable t) {
-                        log.error("Fragment send error.", t);
-                        latch.countDown();
+                        break;
+                    }
+                    PipedInputStream mkvStream = new PipedInputStream(MKV_PIPE_BUFFER_SIZE);
+                    OutputStream mkvOutput = new PipedOutputStream(mkvStream);
+                    final EncodingPlan streamedPlan = plan;
+                    final AtomicBoolean slotHeld = new AtomicBoolean();
+                    if (null != session) {
+                        // The session drains fragments in append order, so the slot is taken before the fragment is
+                        // appended: a later fragment holding a slot must not wait for an earlier one waiting for it.
+                        acquireEncodingSlot();
+                        slotHeld.set(true);
+                    }
+                    try {
+                        putMedia(mkvStream, () -> {
+                            if (!slotHeld.get()) {
+                                acquireEncodingSlot();
+                                slotHeld.set(true);
+                            }
+                            try {
+                                convertImagesToMkvInProcess(payload, mkvOutput, streamedPlan, metrics);
+                            } finally {
+                                if (slotHeld.compareAndSet(true, false)) {
+                                    encodingSlots.release();
+                                }
+                            }
+                        }, session, metrics);
+                    } finally {
+                        if (slotHeld.compareAndSet(true, false)) {
+                            encodingSlots.release();
+                        }
                     }
 
-                    @Override
-                    public void onComplete() {
-                        log.debug("Fragment sent.");
-                        latch.countDown();
+                    break;
+                case FFMPEG_PIPE:
+                    // FFmpeg keeps encoding until the stream is sent, so the slot is held for the whole upload.
+                    acquireEncodingSlot();
+                    try {
+                        convertImagesToMkvThroughPipe(payload, session, plan, metrics);
+                    } finally {
+                        encodingSlots.release();
                     }
-                });
-                latch.await();
-            }
 
-            Files.list(tmpFolder).forEach(f -> {
-                try {
-                    Files.delete(f);
-                } catch (IOException ioex) {
-                    log.warn(String.format("Could not remove file '%s' after processing.", f.toString()), ioex);
-                }
-            });
+                    break;
+                default:
+                    Path mkvFile;
+                    acquireEncodingSlot();
+                    try {
+                        tmpFolder = convertImages(payload, plan, metrics);
+                        mkvFile = convertImagesToMkv(tmpFolder, readFrameRate(payload, metrics), plan, metrics);
+                    } finally {
+                        encodingSlots.release();
+                    }
+                    log.debug("Created MKV container file: {}", mkvFile);
+                    if (null != Utils.getUploadSpoolDirectory()) {
+                        spooled = sendSpooled(Files.readAllBytes(mkvFile), session, metrics);
+                    } else {
+                        putMedia(new FileInputStream(mkvFile.toFile()), () -> {}, session, metrics);
+                    }
+            }
 
-            Files.delete(tmpFolder);
+            if (null != tmpFolder) {
+                cleanUp(tmpFolder);
+            }
             log.debug("Cleaned up...");
+            completed = true;
         } catch (IOException | InterruptedException ioex) {
             log.error("Request body conversion error.", ioex);
 
             throw new RuntimeException(ioex);
+        } finally {
+            metrics.finish();
+            // Cold start time has nothing to do with the batch.
+            if (completed && !coldStart) {
+                deadlineController.observe(plan, payload.getSize(), metrics);
+            }
+            metricsSink.emit(metrics);
+        }
+
+        // Coalesced frames are accepted, but not sent yet. Spooled ones failed to upload and are going to be replayed.
+        return coalesced || spooled ? Utils.getResponse(202, "Accepted") : Utils.getResponse(200, "OK");
+    }
+
+    /**
+     * Runs a tiny built-in batch through body parsing, decoding, JPEG re-encoding, H.264 encoding and MKV muxing,
+     * creates the KVS client and, in FFmpeg pipe mode, starts FFmpeg workers. So class loading, ImageIO plugin
+     * registration, first JIT compilations and the <code>GetDataEndpoint</code> call are done before the first
+     * request, not during it. Failures are only logged, the request will try again.
+     *
+     * @return priming time in milliseconds.
+     */
+    long prime() {
+        final long start = System.nanoTime();
+        try {
+            primeFramePath();
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Could not prime frame processing.", ex);
+        }
+        if (EncodingMode.FFMPEG_PIPE == Utils.getEncodingMode() && Utils.getFFmpegWorkers() > 0) {
+            // Starts FFmpeg workers in the background.
+            Utils.getFFmpegWorkerPool();
+        }
+        if (null != Utils.getRegion() && null != Utils.getKvsName()) {
+            try {
+                Utils.acquireKvsPutMediaClient(Utils.getRegion(), Utils.getKvsName()).close();
+            } catch (RuntimeException rex) {
+                log.warn("Could not prime KVS client.", rex);
+            }
+        }
+        if (null != Utils.getUploadSpoolDirectory()) {
+            try {
+                // Fragments left pending by the previous environment are replayed from now on.
+                getSpool();
+            } catch (IOException ioex) {
+                log.warn("Could not open upload spool.", ioex);
+            }
         }
+        primingMillis = (System.nanoTime() - start) / 1_000_000;
+        log.info("Primed in {} ms.", primingMillis);
+
+        return primingMillis;
+    }
 
-        return Utils.getResponse(200, "OK");
+    /**
+     * @return size of the MKV stream encoded from the priming batch.
+     */
+    long primeFramePath() throws IOException {
+        final byte[] frame;
+        try (InputStream is = WebcamStreamProcessor.class.getClassLoader().getResourceAsStream(PRIMING_FRAME)) {
+            if (null == is) {
+                throw new IOException(String.format("Priming frame %s not found.", PRIMING_FRAME));
+            }
+            frame = is.readAllBytes();
+        }
+        final String dataUri = JPG_URI_PREFIX + Base64.encodeAsString(frame);
+        StringBuilder body = new StringBuilder("{\"frames\":[");
+        StringBuilder timestamps = new StringBuilder();
+        for (int i = 0; i < PRIMING_BATCH_SIZE; ++i) {
+            body.append(i > 0 ? "," : "").append('"').append(dataUri).append('"');
+            timestamps.append(i > 0 ? "," : "").append(i * 1000 / Utils.DEFAULT_FRAME_RATE);
+        }
+        body.append("],\"numOfFrames\":").append(PRIMING_BATCH_SIZE)
+                .append(",\"framerate\":").append(Utils.DEFAULT_FRAME_RATE)
+                .append(",\"timestamps\":[").append(timestamps).append("]}");
+
+        final InvocationMetrics metrics = new InvocationMetrics();
+        prepareJpeg(0, frame, true, metrics);
+        ByteArrayOutputStream mkv = new ByteArrayOutputStream();
+        convertImagesToMkvInProcess(body.toString(), mkv, metrics);
+
+        return mkv.size();
+    }
+
+    private void acquireEncodingSlot() throws InterruptedIOException {
+        try {
+            encodingSlots.acquire();
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting for an encoding slot.");
+        }
+    }
+
+    /**
+     * One controller per encoding mode, since their costs differ. x264 presets and output resolution only apply when
+     * FFmpeg is started for the batch, i.e. not to FFmpeg workers started in advance; coalesced fragments keep the
+     * video size.
+     */
+    synchronized DeadlineController getDeadlineController(EncodingMode encodingMode) {
+
+        return deadlineControllers.computeIfAbsent(encodingMode, mode -> {
+            final boolean presets = switch (mode) {
+                case JCODEC -> false;
+                case FFMPEG_PIPE -> Utils.getFFmpegWorkers() == 0;
+                default -> true;
+            };
+            final boolean scaling = switch (mode) {
+                case JCODEC -> !Utils.isFragmentCoalescing();
+                case FFMPEG_PIPE -> presets;
+                default -> true;
+            };
+
+            return new DeadlineController(Utils.getLatencyTarget(), Utils.getDeadlineMargin(),
+                    Utils.getMaxFrameThinning(), presets, scaling);
+        });
+    }
+
+    private static void recordPlan(EncodingPlan plan, InvocationMetrics metrics) {
+        metrics.count(Counter.ENCODING_LEVEL, plan.level().ordinal());
+        metrics.count(Counter.PREDICTED_TIME, plan.predictedMillis());
+        metrics.count(Counter.TIME_BUDGET, plan.budgetMillis());
+        if (plan.isDegraded() || plan.keepEvery() > 1) {
+            metrics.setProperty("EncodingLevelName", plan.level().name());
+            metrics.setProperty("OutputResolution", plan.width() + "x" + plan.height());
+            metrics.setProperty("KeepEveryFrame", String.valueOf(plan.keepEvery()));
+        }
+    }
+
+    /**
+     * Sends MKV stream to KVS and waits until it's sent.
+     *
+     * @param mkvStream MKV stream.
+     * @param producer runs while the stream is being sent. Used when the stream is produced on the fly.
+     * @param session if not null, the stream is appended to the persistent session and the method waits only until
+     *                KVS receives it.
+     * @return completes when KVS persists the stream, exceptionally if sending failed. Failures are logged anyway.
+     */
+    CompletableFuture<Void> putMedia(InputStream mkvStream, MkvStreamProducer producer, PutMediaSession session,
+                                     InvocationMetrics metrics) throws IOException, InterruptedException {
+        if (null == session) {
+
+            return putMedia(mkvStream, producer, new Date(), metrics);
+        }
+        final long uploadStart = metrics.start();
+        PutMediaSession.Fragment fragment = session.append(new CountingInputStream(mkvStream, metrics),
+                PUT_MEDIA_TIMEOUT_IN_MILLIS);
+        try {
+            producer.produce();
+        } finally {
+            final long ackStart = metrics.start();
+            try {
+                fragment.awaitReceived(PUT_MEDIA_TIMEOUT_IN_MILLIS);
+                metrics.record(Stage.ACK, ackStart);
+                metrics.record(Stage.UPLOAD, uploadStart);
+                log.debug("Fragment #{} received by KVS. Number: {}", fragment.getSequenceNumber(),
+                        fragment.getFragmentNumber());
+            } catch (IOException ioex) {
+                log.error("Fragment send error.", ioex);
+            }
+        }
+
+        return fragment.getPersisted().thenApply(persisted -> null);
+    }
+
+    /**
+     * Sends MKV stream to KVS on a connection of its own and waits until it's sent, at most
+     * {@link #PUT_MEDIA_TIMEOUT_IN_MILLIS} after the stream is produced.
+     *
+     * @param producerStartTimestamp timecodes of the stream are relative to it.
+     */
+    CompletableFuture<Void> putMedia(InputStream mkvStream, MkvStreamProducer producer, Date producerStartTimestamp,
+                                     InvocationMetrics metrics) throws IOException, InterruptedException {
+        final long uploadStart = metrics.start();
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final AtomicBoolean persisted = new AtomicBoolean();
+        CountDownLatch latch = new CountDownLatch(1);
+        final long endpointStart = metrics.start();
+        try (InputStream is = new CountingInputStream(mkvStream, metrics);
+             KvsClientCache.Lease clientLease = Utils.acquireKvsPutMediaClient(Utils.getRegion(),
+                     Utils.getKvsName())) {
+            metrics.record(Stage.GET_DATA_ENDPOINT, endpointStart);
+            log.debug("Send MKV as a fragment to KVS...");
+            clientLease.getClient().putMedia(new PutMediaRequest().withStreamName(Utils.getKvsName())
+                    .withFragmentTimecodeType(FragmentTimecodeType.RELATIVE)
+                    .withProducerStartTimestamp(producerStartTimestamp)
+                    .withPayload(is), new PutMediaAckResponseHandler() {
+                @Override
+                public void onAckEvent(AckEvent event) {
+                    log.debug("Fragment ack. {}", event);
+                    AckEventType.Values type = event.getAckEventType().getEnumValue();
+                    if (AckEventType.Values.PERSISTED == type) {
+                        persisted.set(true);
+                    } else if (AckEventType.Values.ERROR == type) {
+                        result.completeExceptionally(new KvsAckException(String.valueOf(event.getErrorCode())));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.error("Fragment send error.", t);
+                    result.completeExceptionally(t);
+                    Utils.getKvsClientCache().invalidateOnFailure(Utils.getRegion(), Utils.getKvsName(), t);
+                    try {
+                        // Unblocks the producer if the stream is still being written.
+                        is.close();
+                    } catch (IOException ioex) {
+                        log.warn("Could not close MKV stream.", ioex);
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    log.debug("Fragment sent.");
+                    latch.countDown();
+                }
+            });
+            try {
+                producer.produce();
+            } finally {
+                final long ackStart = metrics.start();
+                if (!latch.await(PUT_MEDIA_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // The stream and the lease are closed on the way out, which ends the stalled request.
+                    log.error("PutMedia is not completed in {} ms.", PUT_MEDIA_TIMEOUT_IN_MILLIS);
+                    result.completeExceptionally(new IOException(String.format(
+                            "PutMedia is not completed in %d ms.", PUT_MEDIA_TIMEOUT_IN_MILLIS)));
+                }
+                metrics.record(Stage.ACK, ackStart);
+                metrics.record(Stage.UPLOAD, uploadStart);
+            }
+            log.debug("KVS client cache hits: {}, misses: {}.", Utils.getKvsClientCache().getHits(),
+                    Utils.getKvsClientCache().getMisses());
+        }
+        if (persisted.get()) {
+            result.complete(null);
+        } else {
+            result.completeExceptionally(new IOException("PutMedia ended before the stream was persisted."));
+        }
+
+        return result;
+    }
+
+    void cleanUp(Path tmpFolder) throws IOException {
+        Files.list(tmpFolder).forEach(f -> {
+            try {
+                Files.delete(f);
+            } catch (IOException ioex) {
+                log.warn(String.format("Could not remove file '%s' after processing.", f.toString()), ioex);
+            }
+        });
+
+        Files.delete(tmpFolder);
     }
 
     String getLocation(Path folder, String fileNamePattern) {
@@ -140,34 +579,51 @@ public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequ
     }
 
     Path convertImagesToMkv(Path folder) throws IOException {
+
+        return convertImagesToMkv(folder, Utils.DEFAULT_FRAME_RATE,
+                EncodingPlan.full(Utils.getWidth(), Utils.getHeight()), new InvocationMetrics());
+    }
+
+    /**
+     * @param frameRate rate FFmpeg reads the images at, see {@link #readFrameRate(RequestPayload, InvocationMetrics)}.
+     */
+    Path convertImagesToMkv(Path folder, double frameRate, EncodingPlan plan, InvocationMetrics metrics)
+            throws IOException {
         final String fileNamePattern = "img%03d.jpg";
         final String locationMetadata = getLocation(folder, fileNamePattern);
         log.debug("Location metadata: {}", locationMetadata);
-        long numOfJpegFiles = Files.list(folder).count();
         String ffmpegPath = Utils.getPath2ffmpeg();
         log.debug("FFmpeg is installed in: {}", ffmpegPath);
         FFmpeg ffmpeg = new FFmpeg(ffmpegPath);
         FFmpegBuilder builder = new FFmpegBuilder();
         Path mkvFile = folder.resolve("fragment.mkv");
-        FFmpegOutputBuilder outputBuilder = new FFmpegOutputBuilder().setVideoFrameRate(numOfJpegFiles)
+        FFmpegOutputBuilder outputBuilder = new FFmpegOutputBuilder().setVideoFrameRate(frameRate)
                 .setVideoCodec("libx264")
                 .setVideoPixelFormat("yuv420p").setFormat("matroska")
-                .setVideoResolution(Utils.getWidth(), Utils.getHeight());
+                .setVideoResolution(plan.width(), plan.height());
 
+        if (null != plan.level().getPreset()) {
+            outputBuilder.addExtraArgs("-preset", plan.level().getPreset());
+        }
+        if (null != plan.level().getTune()) {
+            outputBuilder.addExtraArgs("-tune", plan.level().getTune());
+        }
         if (null != locationMetadata) {
             log.debug("Add location '{}' to metadata...", locationMetadata);
             outputBuilder.addExtraArgs("-metadata", "location=".concat(locationMetadata));
         }
         outputBuilder.setFilename(mkvFile.toAbsolutePath().toString());
-        builder.addExtraArgs("-r", Long.toString(numOfJpegFiles))
+        builder.addExtraArgs("-r", FFmpegPipeEncoder.toArgument(frameRate))
                 .setInput(folder.resolve(fileNamePattern).toAbsolutePath().toString())
                 .addOutput(outputBuilder);
 
         FFmpegExecutor executor = new FFmpegExecutor(ffmpeg);
         log.debug("Start FFmpeg job...");
+        final long ffmpegStart = metrics.start();
         executor.createJob(builder).run();
+        metrics.record(Stage.FFMPEG, ffmpegStart);
         log.debug("FFmpeg job finished.");
-        if (Files.notExists(mkvFile)) {
+        if (Files.notExists(mkvFile) || Files.size(mkvFile) == 0) {
             throw new IOException("MKV file not created.");
         } else {
 
@@ -175,42 +631,339 @@ public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequ
         }
     }
 
+    /**
+     * Encodes frames in-process and writes MKV stream to the output. The output is closed at the end.
+     */
+    void convertImagesToMkvInProcess(String jsonBody, OutputStream out, InvocationMetrics metrics)
+            throws IOException {
+        convertImagesToMkvInProcess(RequestPayload.json(jsonBody), out,
+                EncodingPlan.full(Utils.getWidth(), Utils.getHeight()), metrics);
+    }
+
+    void convertImagesToMkvInProcess(RequestPayload payload, OutputStream out, EncodingPlan plan,
+                                     InvocationMetrics metrics) throws IOException {
+        try (JCodecMkvEncoder mkvEncoder = new JCodecMkvEncoder(out, plan.width(), plan.height())) {
+            encodeInProcess(payload, mkvEncoder, plan, metrics);
+            mkvEncoder.finish();
+        }
+    }
+
+    /**
+     * Encodes frames in-process into the fragment of the producer, see {@link FragmentCoalescer}. The fragment is
+     * sent when it's big or old enough, maybe by a later request.
+     */
+    void coalesceImages(RequestPayload payload, EncodingPlan plan, InvocationMetrics metrics) throws IOException {
+        final FragmentCoalescer.Key key = new FragmentCoalescer.Key(Utils.getKvsName(), payload.getProducerId());
+        if (payload.isEmpty()) {
+            throw new IOException("Method body is empty. No images for processing.");
+        }
+        try (FragmentCoalescer.Fragment fragment = getCoalescer().open(key)) {
+            encodeInProcess(payload, fragment, plan, metrics);
+        }
+    }
+
+    /**
+     * Sends a fragment flushed by the coalescer, with metrics of its own.
+     */
+    void sendCoalesced(FragmentCoalescer.Key key, byte[] mkv, int numOfFrames)
+            throws IOException, InterruptedException {
+        final InvocationMetrics metrics = new InvocationMetrics();
+        try {
+            metrics.setDimension("EncodingMode", EncodingMode.JCODEC.name());
+            metrics.setProperty("Producer", key.producerId());
+            metrics.setProperty("CoalescedFrames", String.valueOf(numOfFrames));
+            final PutMediaSession session = Utils.isPersistentPutMedia() ? Utils.getPutMediaSession() : null;
+            if (null != Utils.getUploadSpoolDirectory()) {
+                sendSpooled(mkv, session, metrics);
+            } else {
+                putMedia(new ByteArrayInputStream(mkv), () -> {}, session, metrics);
+            }
+        } finally {
+            metrics.finish();
+            metricsSink.emit(metrics);
+        }
+    }
+
+    /**
+     * Created on the first coalesced batch. Pending fragments are flushed on JVM shutdown.
+     */
+    synchronized FragmentCoalescer getCoalescer() {
+        if (null == coalescer) {
+            coalescer = new FragmentCoalescer(this::sendCoalesced, Utils.getWidth(), Utils.getHeight(),
+                    Utils.getCoalesceMaxFrames(), Utils.getCoalesceMaxBytes(), Utils.getCoalesceMaxDelay());
+            Runtime.getRuntime().addShutdownHook(new Thread(coalescer::close, "fragment-coalescer-shutdown"));
+        }
+
+        return coalescer;
+    }
+
+    /**
+     * Writes the fragment to the upload spool and sends it. If the upload fails, the spool replays the fragment in
+     * background until KVS persists it. A fragment which can't be spooled, e.g. when the spool is full, is sent as is.
+     *
+     * @param session if not null, the fragment is appended to the persistent session, replays are sent on their own.
+     * @return whether the upload failed and the fragment is left for replay.
+     */
+    boolean sendSpooled(byte[] mkv, PutMediaSession session, InvocationMetrics metrics)
+            throws IOException, InterruptedException {
+        if (mkv.length == 0) {
+            throw new IOException("MKV fragment is empty.");
+        }
+        // Timecodes of the fragment start from 0, a replay puts it at the time it's spooled.
+        final Date producerStartTimestamp = new Date();
+        UploadSpool.Record record = null;
+        try {
+            record = getSpool().append(mkv, producerStartTimestamp.getTime());
+        } catch (IOException ioex) {
+            log.warn("Could not spool fragment, send it as is.", ioex);
+        }
+        CompletableFuture<Void> upload;
+        try {
+            upload = null == session
+                    ? putMedia(new ByteArrayInputStream(mkv), () -> {}, producerStartTimestamp, metrics)
+                    : putMedia(new ByteArrayInputStream(mkv), () -> {}, session, metrics);
+        } catch (IOException | RuntimeException ex) {
+            log.error("Fragment send error.", ex);
+            upload = CompletableFuture.failedFuture(ex);
+        }
+        if (null == record) {
+
+            return false;
+        }
+        getSpool().track(record, upload);
+        final boolean spooled = upload.isCompletedExceptionally();
+        if (spooled) {
+            metrics.setProperty("SpooledForReplay", "true");
+        }
+
+        return spooled;
+    }
+
+    /**
+     * Uploads a fragment replayed by the spool, with metrics of its own.
+     */
+    CompletableFuture<Void> replay(byte[] mkv, long producerStartMillis) throws IOException, InterruptedException {
+        final InvocationMetrics metrics = new InvocationMetrics();
+        try {
+            metrics.setDimension("EncodingMode", Utils.getEncodingMode().name());
+            metrics.count(Counter.FRAGMENTS_REPLAYED, 1);
+
+            return putMedia(new ByteArrayInputStream(mkv), () -> {}, new Date(producerStartMillis), metrics);
+        } finally {
+            metrics.finish();
+            metricsSink.emit(metrics);
+        }
+    }
+
+    /**
+     * Opened on the first spooled fragment or by priming. Fragments left pending in the spool directory, e.g. by a
+     * previous execution environment, are replayed.
+     */
+    synchronized UploadSpool getSpool() throws IOException {
+        if (null == spool) {
+            final int segmentSize = Utils.getUploadSpoolSegmentSize();
+            spool = new UploadSpool(Utils.getUploadSpoolDirectory(), segmentSize,
+                    (int) Math.max(1, Utils.getUploadSpoolSize() / segmentSize), this::replay,
+                    Utils.getUploadSpoolMinBackoff(), Utils.getUploadSpoolMaxBackoff());
+        }
+
+        return spool;
+    }
+
+    /**
+     * Flushes fragments which are still coalescing and stops replaying spooled ones. Pending fragments stay in the
+     * spool directory.
+     */
+    @Override
+    public synchronized void close() {
+        if (null != coalescer) {
+            coalescer.close();
+        }
+        if (null != spool) {
+            spool.close();
+        }
+    }
+
+    /**
+     * Frames thinned out by the plan are not decoded, the rest keep their timestamps.
+     */
+    private void encodeInProcess(RequestPayload payload, BatchEncoder mkvEncoder, EncodingPlan plan,
+                                 InvocationMetrics metrics) throws IOException {
+        if (payload.isEmpty()) {
+            throw new IOException("Method body is empty. No images for processing.");
+        }
+        final FrameDeduplicator dedup = createDeduplicator();
+        try (FramePayloadReader payloadReader = payload.open(metrics);
+             ParallelFrameStage.Batch<Pair<BufferedImage, byte[]>> batch = frameStage.newBatch((i, frame) -> {
+                 if (null == frame) {
+                     log.debug("Thin out image. Batch ordinal num: {}.", i);
+                 } else {
+                     if (null != dedup && dedup.isDuplicate(frame.getRight())) {
+                         log.debug("Drop duplicate image. Batch ordinal num: {}.", i);
+                     } else {
+                         log.debug("Encode image in-process. Batch ordinal num: {}.", i);
+                         final long encodeStart = metrics.start();
+                         mkvEncoder.encodeFrame(i, frame.getLeft());
+                         metrics.record(Stage.H264_ENCODE, encodeStart);
+                     }
+                     FrameBuffers.giveBack(frame.getLeft());
+                 }
+                 if (!mkvEncoder.isTimingKnown() && null != payloadReader.getTimestamps()) {
+                     // Timestamps came before the rest of the frames, so frames are streamed right away.
+                     mkvEncoder.setTiming(payloadReader.getTimestamps(), payloadReader.getFramerate());
+                 }
+             })) {
+            payloadReader.read((i, frame, length) -> {
+                if (thinOut(i, plan, metrics)) {
+                    // Still goes through the batch, so ordinals stay the same as in the body.
+                    batch.submit(() -> null);
+
+                    return;
+                }
+                final byte[] image = Arrays.copyOf(frame, length);
+                batch.submit(() -> {
+                    BufferedImage decoded = decodeImage(i, image, metrics).getLeft();
+
+                    return new ImmutablePair<>(decoded, null == dedup ? null : signature(decoded, metrics));
+                });
+            });
+            batch.finish();
+            countDuplicates(dedup, metrics);
+            mkvEncoder.finishBatch(payloadReader.getTimestamps(), payloadReader.getFramerate());
+        }
+    }
+
+    /**
+     * Frames thinned out by the plan are replaced with the previous frame, so the frame rate stays the same.
+     */
+    void convertImagesToMkvThroughPipe(RequestPayload payload, PutMediaSession session, EncodingPlan plan,
+                                       InvocationMetrics metrics)
+            throws IOException, InterruptedException {
+        if (payload.isEmpty()) {
+            throw new IOException("Method body is empty. No images for processing.");
+        }
+        ImageIO.setUseCache(false);
+        try (FFmpegPipeEncoder pipeEncoder = startPipeEncoder(plan, readFrameRate(payload, metrics))) {
+            pipeEncoder.startJob(Utils.getFFmpegJobTimeout());
+            putMedia(pipeEncoder.getMkvStream(), () -> {
+                final FrameDeduplicator dedup = createDeduplicator();
+                final AtomicReference<byte[]> lastJpeg = new AtomicReference<>();
+                try (FramePayloadReader payloadReader = payload.open(metrics);
+                     ParallelFrameStage.Batch<Pair<byte[], byte[]>> batch = frameStage.newBatch((i, frame) -> {
+                         log.debug("Pipe image to FFmpeg. Batch ordinal num: {}.", i);
+                         pipeEncoder.getFramesStream().write(keepOrRepeat(dedup, frame, lastJpeg));
+                     })) {
+                    payloadReader.read((i, frame, length) -> {
+                        if (thinOut(i, plan, metrics)) {
+                            batch.submit(() -> null);
+
+                            return;
+                        }
+                        final byte[] image = Arrays.copyOf(frame, length);
+                        batch.submit(() -> prepareJpeg(i, image, null != dedup, metrics));
+                    });
+                    batch.finish();
+                    countDuplicates(dedup, metrics);
+                } finally {
+                    pipeEncoder.finishFrames();
+                }
+            }, session, metrics);
+            final long ffmpegStart = metrics.start();
+            pipeEncoder.awaitCompletion(FFMPEG_PIPE_TIMEOUT_IN_MILLIS);
+            metrics.record(Stage.FFMPEG, ffmpegStart);
+        }
+    }
+
+    /**
+     * Takes a worker started in advance. Encoding plan and frame rate are a part of FFmpeg command line, so with a
+     * degraded plan or another frame rate FFmpeg is started for the batch.
+     */
+    private FFmpegPipeEncoder startPipeEncoder(EncodingPlan plan, double frameRate) throws IOException {
+        if (!plan.isDegraded() && Utils.getFFmpegWorkers() > 0 && Math.abs(frameRate - Utils.DEFAULT_FRAME_RATE)
+                <= WORKER_FRAME_RATE_TOLERANCE * Utils.DEFAULT_FRAME_RATE) {
+
+            return Utils.getFFmpegWorkerPool().take();
+        }
+        FFmpegPipeEncoder pipeEncoder = new FFmpegPipeEncoder(Utils.getPath2ffmpeg(), plan.width(), plan.height(),
+                frameRate, plan.level().getPreset(), plan.level().getTune());
+        pipeEncoder.start();
+
+        return pipeEncoder;
+    }
+
+    /**
+     * Reads the timing of the body ahead of its frames, which FFmpeg needs before the first frame.
+     *
+     * @return frame rate, see {@link #frameRate(long[], float)}.
+     */
+    double readFrameRate(RequestPayload payload, InvocationMetrics metrics) throws IOException {
+        try (FramePayloadReader payloadReader = payload.open(metrics)) {
+            payloadReader.readTiming();
+
+            return frameRate(payloadReader.getTimestamps(), payloadReader.getFramerate());
+        }
+    }
+
+    /**
+     * @return average rate of the timestamps if there are any, otherwise the framerate of the body or the default one.
+     */
+    static double frameRate(long[] timestamps, float framerate) {
+        if (null != timestamps && timestamps.length > 1 && timestamps[timestamps.length - 1] > timestamps[0]) {
+
+            return (timestamps.length - 1) * 1000.0 / (timestamps[timestamps.length - 1] - timestamps[0]);
+        }
+
+        return framerate > 0 ? framerate : Utils.DEFAULT_FRAME_RATE;
+    }
+
     Path convertImages(String jsonBody) throws IOException {
-        if (jsonBody != null && !jsonBody.isEmpty()) {
-            BodyPayload payload = gson.fromJson(jsonBody, BodyPayload.class);
+
+        return convertImages(jsonBody, new InvocationMetrics());
+    }
+
+    Path convertImages(String jsonBody, InvocationMetrics metrics) throws IOException {
+
+        return convertImages(RequestPayload.json(jsonBody), EncodingPlan.full(Utils.getWidth(), Utils.getHeight()),
+                metrics);
+    }
+
+    /**
+     * Frames thinned out by the plan are written as copies of the previous frame, so the sequence has no gaps.
+     */
+    Path convertImages(RequestPayload payload, EncodingPlan plan, InvocationMetrics metrics) throws IOException {
+        if (!payload.isEmpty()) {
             Path tmpDir = Files.createTempDirectory("imgs");
-            for (int i = 0; i < payload.getFrames().length; ++i) {
-                log.debug("Process image. Batch ordinal num: {}.", i);
-                final String image64base = payload.getFrames()[i];
-                Pair<BufferedImage, Pair<FileType, IIOMetadata>> convertedImage = convertToImage(normalize(image64base));
-                Picture picture = AWTUtil.fromBufferedImage(convertedImage.getLeft(),
-                        encoder.getSupportedColorSpaces()[0]);
-
-                File jpegFileName = new File(String.format("img%03d.jpg", i));
-                Path jpegFile = Files.createFile(Paths.get(tmpDir.toAbsolutePath().toString(), jpegFileName.getName()));
-                log.debug("Save JPG {}", jpegFile.toAbsolutePath());
-                ImageWriter imageWriter = ImageIO.getImageWritersBySuffix(convertedImage.getRight().getLeft()
-                        .getCommonExtension()).next();
-
-                JPEGImageWriteParam writeParameters = (JPEGImageWriteParam) imageWriter.getDefaultWriteParam();
-                writeParameters.setOptimizeHuffmanTables(true);
-                writeParameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                writeParameters.setCompressionQuality(.95f);
-
-                imageWriter.setOutput(ImageIO.createImageOutputStream(jpegFile.toFile()));
-                imageWriter.write(null, new IIOImage(AWTUtil.toBufferedImage(picture), null,
-                        convertedImage.getRight().getRight()), writeParameters);
-
-                imageWriter.dispose();
-                if (!Utils.isInProdMode()) {
-                    try {
-                        Metadata metadata = ImageMetadataReader.readMetadata(jpegFile.toFile());
-                        log.debug("Try to read metadata from already saved image...");
-                        Utils.printImageFileMetadata(metadata);
-                    } catch (ImageProcessingException ipex) {
-                        log.error("Failed to read image metadata.", ipex);
+            final FrameDeduplicator dedup = createDeduplicator();
+            final AtomicReference<byte[]> lastJpeg = new AtomicReference<>();
+            try (FramePayloadReader payloadReader = payload.open(metrics);
+                 ParallelFrameStage.Batch<Pair<byte[], byte[]>> batch = frameStage.newBatch((i, frame) -> {
+                     final byte[] jpeg = keepOrRepeat(dedup, frame, lastJpeg);
+                     File jpegFileName = new File(String.format("img%03d.jpg", i));
+                     Path jpegFile = Files.createFile(Paths.get(tmpDir.toAbsolutePath().toString(),
+                             jpegFileName.getName()));
+                     log.debug("Save JPG {}", jpegFile.toAbsolutePath());
+                     Files.write(jpegFile, jpeg);
+                     if (!Utils.isInProdMode()) {
+                         try {
+                             Metadata metadata = ImageMetadataReader.readMetadata(jpegFile.toFile());
+                             log.debug("Try to read metadata from already saved image...");
+                             Utils.printImageFileMetadata(metadata);
+                         } catch (ImageProcessingException ipex) {
+                             log.error("Failed to read image metadata.", ipex);
+                         }
+                     }
+                 })) {
+                payloadReader.read((i, frame, length) -> {
+                    if (thinOut(i, plan, metrics)) {
+                        batch.submit(() -> null);
+
+                        return;
                     }
-                }
+                    final byte[] image = Arrays.copyOf(frame, length);
+                    batch.submit(() -> prepareJpeg(i, image, null != dedup, metrics));
+                });
+                batch.finish();
+                countDuplicates(dedup, metrics);
             }
 
             return tmpDir;
@@ -222,6 +975,165 @@ public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequ
         }
     }
 
+    /**
+     * Decodes the frame and encodes it again as JPEG. Baseline JPEGs which already have the target size are returned
+     * as is. Thread safe.
+     */
+    byte[] reencodeJpeg(int ordinal, byte[] image) throws IOException {
+
+        return reencodeJpeg(ordinal, image, new InvocationMetrics());
+    }
+
+    byte[] reencodeJpeg(int ordinal, byte[] image, InvocationMetrics metrics) throws IOException {
+
+        return prepareJpeg(ordinal, image, false, metrics).getLeft();
+    }
+
+    /**
+     * Prepares a frame for FFmpeg, see {@link #reencodeJpeg(int, byte[])}.
+     *
+     * @param withSignature whether to compute the frame signature for duplicate detection. Passed through frames have
+     *                      to be decoded for that.
+     * @return JPEG image and its signature, or null if it wasn't asked for.
+     */
+    Pair<byte[], byte[]> prepareJpeg(int ordinal, byte[] image, boolean withSignature, InvocationMetrics metrics)
+            throws IOException {
+        boolean passthrough = false;
+        if (Utils.isJpegPassthrough()) {
+            JpegHeader header = JpegHeader.read(image, image.length);
+            if (null != header && header.isPassthroughCompatible(Utils.getWidth(), Utils.getHeight())) {
+                log.debug("Pass image through. Batch ordinal num: {}. {}", ordinal, header);
+                metrics.count(Counter.FRAMES_PASSED_THROUGH, 1);
+                passthrough = true;
+            }
+        }
+        if (passthrough && !withSignature) {
+
+            return new ImmutablePair<>(image, null);
+        }
+        Pair<BufferedImage, Pair<FileType, IIOMetadata>> convertedImage = decodeImage(ordinal, image, metrics);
+        try {
+            final byte[] signature = withSignature ? signature(convertedImage.getLeft(), metrics) : null;
+            if (passthrough) {
+
+                return new ImmutablePair<>(image, signature);
+            }
+            log.debug("Process image. Batch ordinal num: {}.", ordinal);
+            final long encodeStart = metrics.start();
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream(image.length);
+            writeJpeg(convertedImage, new MemoryCacheImageOutputStream(jpeg));
+            metrics.record(Stage.JPEG_ENCODE, encodeStart);
+
+            return new ImmutablePair<>(jpeg.toByteArray(), signature);
+        } finally {
+            FrameBuffers.giveBack(convertedImage.getLeft());
+        }
+    }
+
+    /**
+     * @return frame deduplicator for a batch, or null if deduplication is off.
+     */
+    FrameDeduplicator createDeduplicator() {
+        final double threshold = Utils.getDedupThreshold();
+
+        return threshold > 0 ? new FrameDeduplicator(threshold) : null;
+    }
+
+    byte[] signature(BufferedImage image, InvocationMetrics metrics) {
+        final long dedupStart = metrics.start();
+        byte[] signature = FrameDeduplicator.signature(image);
+        metrics.record(Stage.DEDUP, dedupStart);
+
+        return signature;
+    }
+
+    /**
+     * @param frame JPEG and its signature, null if the frame is thinned out.
+     * @param lastJpeg the previous JPEG of the batch, updated.
+     * @return JPEG to send to FFmpeg: the frame, or the previous one for a duplicate or a thinned out frame.
+     */
+    private static byte[] keepOrRepeat(FrameDeduplicator dedup, Pair<byte[], byte[]> frame,
+                                       AtomicReference<byte[]> lastJpeg) {
+        if (null == frame) {
+
+            return lastJpeg.get();
+        }
+        final byte[] jpeg = null == dedup ? frame.getLeft() : dedup.keepOrRepeat(frame.getLeft(), frame.getRight());
+        lastJpeg.set(jpeg);
+
+        return jpeg;
+    }
+
+    /**
+     * @return whether the frame is dropped by the plan, see {@link EncodingPlan#keeps(int)}.
+     */
+    private static boolean thinOut(int ordinal, EncodingPlan plan, InvocationMetrics metrics) {
+        if (plan.keeps(ordinal)) {
+
+            return false;
+        }
+        metrics.count(Counter.FRAMES_THINNED, 1);
+
+        return true;
+    }
+
+    private static void countDuplicates(FrameDeduplicator dedup, InvocationMetrics metrics) {
+        if (null != dedup) {
+            log.debug("Duplicate frames: {}", dedup.getNumOfDuplicates());
+            metrics.count(Counter.FRAMES_DEDUPLICATED, dedup.getNumOfDuplicates());
+        }
+    }
+
+    Pair<BufferedImage, Pair<FileType, IIOMetadata>> decodeImage(int ordinal, byte[] image,
+                                                                 InvocationMetrics metrics) throws IOException {
+        final long decodeStart = metrics.start();
+        Pair<BufferedImage, Pair<FileType, IIOMetadata>> convertedImage = convertToImage(image, image.length);
+        metrics.record(Stage.IMAGE_DECODE, decodeStart);
+        if (null == convertedImage) {
+            throw new IOException(String.format("Could not decode image #%d.", ordinal));
+        }
+
+        return convertedImage;
+    }
+
+    /**
+     * Writes the image as JPEG. The image goes through the encoder color space first, so it looks like the video
+     * frames. Pictures, the YUV converter, the output raster and the writer come from {@link FrameBuffers}.
+     */
+    void writeJpeg(Pair<BufferedImage, Pair<FileType, IIOMetadata>> convertedImage, ImageOutputStream output)
+            throws IOException {
+        final BufferedImage image = convertedImage.getLeft();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        // Frames are always stored as JPEG, PNG frames lose their metadata.
+        final FileType fileType = convertedImage.getRight().getLeft();
+        final IIOMetadata metadata = FileType.Jpeg == fileType ? convertedImage.getRight().getRight() : null;
+        final String suffix = FileType.Jpeg.getCommonExtension();
+        Picture rgbPicture = FrameBuffers.takePicture(width, height, ColorSpace.RGB);
+        Picture picture = FrameBuffers.takePicture(width, height, ENCODER_COLOR_SPACE);
+        Yuv420Converter yuvConverter = FrameBuffers.takeYuvConverter(width);
+        BufferedImage jpegImage = FrameBuffers.takeImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        ImageWriter imageWriter = FrameBuffers.takeWriter(suffix);
+        try (ImageOutputStream ios = output) {
+            yuvConverter.convert(image, picture);
+            ENCODER_COLOR_SPACE_TO_RGB.transform(picture, rgbPicture);
+            AWTUtil.toBufferedImage(rgbPicture, jpegImage);
+
+            JPEGImageWriteParam writeParameters = (JPEGImageWriteParam) imageWriter.getDefaultWriteParam();
+            writeParameters.setOptimizeHuffmanTables(true);
+            writeParameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParameters.setCompressionQuality(.95f);
+            imageWriter.setOutput(ios);
+            imageWriter.write(null, new IIOImage(jpegImage, null, metadata), writeParameters);
+        } finally {
+            FrameBuffers.giveBack(suffix, imageWriter);
+            FrameBuffers.giveBack(jpegImage);
+            FrameBuffers.giveBack(width, yuvConverter);
+            FrameBuffers.giveBack(picture);
+            FrameBuffers.giveBack(rgbPicture);
+        }
+    }
+
     String normalize(String image64base) {
         if (image64base.regionMatches(true, 0, JPG_URI_PREFIX, 0, JPG_URI_PREFIX.length())) {
             log.debug("Jpg image");
@@ -242,22 +1154,31 @@ public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequ
 
     Pair<BufferedImage, Pair<FileType, IIOMetadata>> convertToImage(String image64base) {
         byte[] image = Base64.decode(image64base);
-        try (ByteArrayInputStream is = new ByteArrayInputStream(image);
-            BufferedInputStream bis = new BufferedInputStream(is)) {
-            Metadata metadata = ImageMetadataReader.readMetadata(is);
+
+        return convertToImage(image, image.length);
+    }
+
+    Pair<BufferedImage, Pair<FileType, IIOMetadata>> convertToImage(byte[] image, int length) {
+        try (ByteArrayInputStream is = new ByteArrayInputStream(image, 0, length);
+            BufferedInputStream bis = new BufferedInputStream(is, FILE_TYPE_BUFFER_SIZE)) {
             if (!Utils.isInProdMode()) {
+                Metadata metadata = ImageMetadataReader.readMetadata(is);
                 log.debug("Try to read metadata from base64 image...");
                 Utils.printImageFileMetadata(metadata);
                 is.reset();
             }
             FileType fileType = FileTypeDetector.detectFileType(bis);
-            is.reset();
-            ImageReader imageReader = ImageIO.getImageReadersBySuffix(fileType.getCommonExtension()).next();
-            imageReader.setInput(ImageIO.createImageInputStream(is));
-            IIOMetadata imageMetadata = imageReader.getImageMetadata(0);
-            BufferedImage imageItself = imageReader.read(0);
+            final String suffix = fileType.getCommonExtension();
+            ImageReader imageReader = FrameBuffers.takeReader(suffix);
+            try (ImageInputStream iis = new ByteArrayImageInputStream(image, 0, length)) {
+                imageReader.setInput(iis);
+                IIOMetadata imageMetadata = imageReader.getImageMetadata(0);
+                BufferedImage imageItself = readImage(imageReader);
 
-            return new MutablePair<>(imageItself, new MutablePair<>(fileType, imageMetadata));
+                return new MutablePair<>(imageItself, new MutablePair<>(fileType, imageMetadata));
+            } finally {
+                FrameBuffers.giveBack(suffix, imageReader);
+            }
 
         } catch (Exception ioex) {
             log.error("Could not decode base64 image.", ioex);
@@ -265,4 +1186,47 @@ public class WebcamStreamProcessor implements RequestHandler<APIGatewayProxyRequ
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the image at the video size. Its size is taken from the header, and oversized images are subsampled while
+     * being decoded, then scaled to the video size, so the full-size raster is never built. Smaller images are scaled
+     * up. Images of direct color and gray types are decoded into rasters from {@link FrameBuffers}, the caller gives
+     * the result back.
+     */
+    BufferedImage readImage(ImageReader imageReader) throws IOException {
+        final int targetWidth = Utils.getWidth();
+        final int targetHeight = Utils.getHeight();
+        final int width = imageReader.getWidth(0);
+        final int height = imageReader.getHeight(0);
+        final int type = imageReader.getImageTypes(0).next().getBufferedImageType();
+        // Indexed images carry the palette of the file, ImageIO allocates them.
+        final boolean pooled = FrameBuffers.isPooled(type);
+        ImageReadParam readParam = imageReader.getDefaultReadParam();
+        if (!Utils.isSubsampledDecoding() || width == targetWidth && height == targetHeight) {
+            if (pooled) {
+                readParam.setDestination(FrameBuffers.takeImage(width, height, type));
+            }
+
+            return imageReader.read(0, readParam);
+        }
+        final int factor = ImageScaling.subsamplingFactor(width, height, targetWidth, targetHeight);
+        if (factor > 1) {
+            log.debug("Decode {}x{} image with subsampling {}.", width, height, factor);
+            readParam.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        if (pooled) {
+            readParam.setDestination(FrameBuffers.takeImage((width + factor - 1) / factor,
+                    (height + factor - 1) / factor, type));
+        }
+        BufferedImage decoded = imageReader.read(0, readParam);
+        if (decoded.getWidth() == targetWidth && decoded.getHeight() == targetHeight) {
+
+            return decoded;
+        }
+        BufferedImage scaled = ImageScaling.scale(decoded, FrameBuffers.takeImage(targetWidth, targetHeight,
+                BufferedImage.TYPE_3BYTE_BGR));
+        FrameBuffers.giveBack(decoded);
+
+        return scaled;
+    }
+}
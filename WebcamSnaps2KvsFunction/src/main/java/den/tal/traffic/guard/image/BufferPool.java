@@ -0,0 +1,154 @@
+package den.tal.traffic.guard.image;
+
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread safe pool of reusable objects of different sizes, e.g. rasters. Objects are taken and given back by key,
+ * the key describes the size, so any object of the key fits. The last given back is taken first, it's more likely in
+ * the CPU cache. At most <code>maxIdlePerKey</code> objects of a key are kept, the rest are left to GC.
+ * <p>
+ * Keys may come from the outside, e.g. sizes of frames sent by clients, so idle objects can also be bounded by their
+ * total size: when it's exceeded, objects of the least recently used keys are dropped first, together with the keys.
+ *
+ * @param <K> key, must implement equals and hashCode.
+ * @param <T> pooled object.
+ * @author Denis Talochkin
+ */
+public class BufferPool<K, T> {
+
+    private final Function<K, T> factory;
+    private final Consumer<T> disposer;
+    private final int maxIdlePerKey;
+    private final ToLongFunction<K> sizeOf;
+    private final long maxIdleBytes;
+    /**
+     * Keys with idle objects, the least recently used first. Guarded by itself.
+     */
+    private final LinkedHashMap<K, Deque<T>> idle = new LinkedHashMap<>(16, .75f, true);
+    private long idleBytes;
+
+    @Getter
+    private final AtomicLong created = new AtomicLong();
+
+    @Getter
+    private final AtomicLong reused = new AtomicLong();
+
+    @Getter
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * @param factory creates an object for the key if there's no idle one.
+     * @param disposer releases an object which is not kept, e.g. disposes ImageIO readers.
+     * @param sizeOf bytes an object of the key holds.
+     * @param maxIdleBytes total size of idle objects kept.
+     */
+    public BufferPool(Function<K, T> factory, Consumer<T> disposer, int maxIdlePerKey, ToLongFunction<K> sizeOf,
+                      long maxIdleBytes) {
+        this.factory = factory;
+        this.disposer = disposer;
+        this.maxIdlePerKey = maxIdlePerKey;
+        this.sizeOf = sizeOf;
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    public BufferPool(Function<K, T> factory, int maxIdlePerKey, ToLongFunction<K> sizeOf, long maxIdleBytes) {
+        this(factory, buffer -> {}, maxIdlePerKey, sizeOf, maxIdleBytes);
+    }
+
+    /**
+     * Pool bounded by the number of objects per key only, for keys of a small known set.
+     */
+    public BufferPool(Function<K, T> factory, Consumer<T> disposer, int maxIdlePerKey) {
+        this(factory, disposer, maxIdlePerKey, key -> 0, Long.MAX_VALUE);
+    }
+
+    public BufferPool(Function<K, T> factory, int maxIdlePerKey) {
+        this(factory, buffer -> {}, maxIdlePerKey);
+    }
+
+    public T take(K key) {
+        T buffer = null;
+        synchronized (idle) {
+            Deque<T> buffers = idle.get(key);
+            if (null != buffers) {
+                buffer = buffers.pollFirst();
+                idleBytes -= sizeOf.applyAsLong(key);
+                if (buffers.isEmpty()) {
+                    idle.remove(key);
+                }
+            }
+        }
+        if (null != buffer) {
+            reused.incrementAndGet();
+
+            return buffer;
+        }
+        created.incrementAndGet();
+
+        return factory.apply(key);
+    }
+
+    /**
+     * The object must not be used after it's given back.
+     */
+    public void giveBack(K key, T buffer) {
+        final long size = sizeOf.applyAsLong(key);
+        final List<T> dropped = new ArrayList<>();
+        if (size > maxIdleBytes) {
+            dropped.add(buffer);
+        } else {
+            synchronized (idle) {
+                Deque<T> buffers = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+                if (buffers.size() < maxIdlePerKey) {
+                    buffers.offerFirst(buffer);
+                    idleBytes += size;
+                    evict(dropped);
+                } else {
+                    dropped.add(buffer);
+                }
+            }
+        }
+        dropped.forEach(disposer);
+    }
+
+    /**
+     * @return total size of idle objects.
+     */
+    public long getIdleBytes() {
+        synchronized (idle) {
+
+            return idleBytes;
+        }
+    }
+
+    /**
+     * Drops the least recently used objects until idle ones fit into the limit. Called holding the lock.
+     */
+    private void evict(List<T> dropped) {
+        Iterator<Map.Entry<K, Deque<T>>> eldest = idle.entrySet().iterator();
+        while (idleBytes > maxIdleBytes && eldest.hasNext()) {
+            Map.Entry<K, Deque<T>> entry = eldest.next();
+            final long size = sizeOf.applyAsLong(entry.getKey());
+            while (idleBytes > maxIdleBytes && !entry.getValue().isEmpty()) {
+                dropped.add(entry.getValue().pollLast());
+                idleBytes -= size;
+                evicted.incrementAndGet();
+            }
+            if (entry.getValue().isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package den.tal.traffic.guard.image;
+
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Shared pools of full-frame buffers: rasters, jcodec pictures, encoder output buffers, YUV converters with their row
+ * buffers, and ImageIO readers and writers, which are costly to look up and create. Every frame used to allocate and
+ * drop several megabytes of them, now the frame path takes them here and gives them back when the frame is done, so in
+ * steady state it allocates close to nothing.
+ * <p>
+ * Pools are shared by all batches and frame workers. A buffer is given back exactly once and isn't touched after.
+ * Rasters are decoded at the size of the client's images, so pools keyed by size are bounded by their total size as
+ * well, and the sizes used least recently are dropped first.
+ *
+ * @author Denis Talochkin
+ */
+public class FrameBuffers {
+
+    /**
+     * Enough for every frame worker and encoder to have a couple of buffers of a size in use.
+     */
+    private static final int MAX_IDLE_PER_SIZE = 2 * Runtime.getRuntime().availableProcessors() + 2;
+
+    /**
+     * Idle buffers of a pool may take up to this share of the heap.
+     */
+    private static final long MAX_IDLE_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    private record ImageKey(int width, int height, int type) {
+    }
+
+    private record PictureKey(int width, int height, ColorSpace color) {
+    }
+
+    private static final BufferPool<ImageKey, BufferedImage> IMAGES = new BufferPool<>(
+            key -> new BufferedImage(key.width(), key.height(), key.type()), MAX_IDLE_PER_SIZE,
+            key -> (long) key.width() * key.height() * bytesPerPixel(key.type()), MAX_IDLE_BYTES);
+
+    /**
+     * Pictures are RGB or YUV 4:2:0.
+     */
+    private static final BufferPool<PictureKey, Picture> PICTURES = new BufferPool<>(
+            key -> Picture.create(key.width(), key.height(), key.color()), MAX_IDLE_PER_SIZE,
+            key -> (long) key.width() * key.height() * (ColorSpace.RGB == key.color() ? 6 : 3) / 2, MAX_IDLE_BYTES);
+
+    private static final BufferPool<Integer, ByteBuffer> BYTE_BUFFERS = new BufferPool<>(ByteBuffer::allocate,
+            MAX_IDLE_PER_SIZE, Integer::longValue, MAX_IDLE_BYTES);
+
+    private static final BufferPool<String, ImageReader> READERS = new BufferPool<>(
+            suffix -> ImageIO.getImageReadersBySuffix(suffix).next(), ImageReader::dispose, MAX_IDLE_PER_SIZE);
+
+    private static final BufferPool<String, ImageWriter> WRITERS = new BufferPool<>(
+            suffix -> ImageIO.getImageWritersBySuffix(suffix).next(), ImageWriter::dispose, MAX_IDLE_PER_SIZE);
+
+    /**
+     * A converter holds ten int rows of the width.
+     */
+    private static final BufferPool<Integer, Yuv420Converter> YUV_CONVERTERS = new BufferPool<>(
+            width -> new Yuv420Converter(), MAX_IDLE_PER_SIZE, width -> 40L * width, MAX_IDLE_BYTES);
+
+    private FrameBuffers() {
+    }
+
+    /**
+     * @return whether images of the type are pooled: direct color and gray ones. An indexed image made by type gets
+     * the default palette, not the one of the file, so those and custom types are left to ImageIO and GC.
+     */
+    public static boolean isPooled(int type) {
+
+        return switch (type) {
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB,
+                    BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY,
+                    BufferedImage.TYPE_USHORT_GRAY -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @param type one of the types which {@link #isPooled(int)}.
+     * @return image with arbitrary content.
+     */
+    public static BufferedImage takeImage(int width, int height, int type) {
+
+        return IMAGES.take(new ImageKey(width, height, type));
+    }
+
+    /**
+     * Images of types which are not pooled are left to GC.
+     */
+    public static void giveBack(BufferedImage image) {
+        if (!isPooled(image.getType())) {
+
+            return;
+        }
+        IMAGES.giveBack(new ImageKey(image.getWidth(), image.getHeight(), image.getType()), image);
+    }
+
+    /**
+     * @return picture with arbitrary content.
+     */
+    public static Picture takePicture(int width, int height, ColorSpace color) {
+
+        return PICTURES.take(new PictureKey(width, height, color));
+    }
+
+    public static void giveBack(Picture picture) {
+        PICTURES.giveBack(new PictureKey(picture.getWidth(), picture.getHeight(), picture.getColor()), picture);
+    }
+
+    /**
+     * @return cleared buffer of the capacity.
+     */
+    public static ByteBuffer takeByteBuffer(int capacity) {
+
+        return BYTE_BUFFERS.take(capacity).clear();
+    }
+
+    public static void giveBack(ByteBuffer buffer) {
+        BYTE_BUFFERS.giveBack(buffer.capacity(), buffer);
+    }
+
+    /**
+     * @param suffix image file suffix, e.g. <code>jpg</code>.
+     */
+    public static ImageReader takeReader(String suffix) {
+
+        return READERS.take(suffix);
+    }
+
+    /**
+     * Resets the reader and keeps it for the next image.
+     */
+    public static void giveBack(String suffix, ImageReader reader) {
+        reader.reset();
+        READERS.giveBack(suffix, reader);
+    }
+
+    /**
+     * @param suffix image file suffix, e.g. <code>jpg</code>.
+     */
+    public static ImageWriter takeWriter(String suffix) {
+
+        return WRITERS.take(suffix);
+    }
+
+    /**
+     * Resets the writer and keeps it for the next image.
+     */
+    public static void giveBack(String suffix, ImageWriter writer) {
+        writer.reset();
+        WRITERS.giveBack(suffix, writer);
+    }
+
+    /**
+     * @param width width of the images to convert.
+     */
+    public static Yuv420Converter takeYuvConverter(int width) {
+
+        return YUV_CONVERTERS.take(width);
+    }
+
+    public static void giveBack(int width, Yuv420Converter converter) {
+        YUV_CONVERTERS.giveBack(width, converter);
+    }
+
+    private static int bytesPerPixel(int type) {
+
+        return switch (type) {
+            case BufferedImage.TYPE_BYTE_GRAY -> 1;
+            case BufferedImage.TYPE_USHORT_GRAY -> 2;
+            case BufferedImage.TYPE_3BYTE_BGR -> 3;
+            default -> 4;
+        };
+    }
+
+    public static long getCreated() {
+
+        return IMAGES.getCreated().get() + PICTURES.getCreated().get() + BYTE_BUFFERS.getCreated().get();
+    }
+
+    public static long getReused() {
+
+        return IMAGES.getReused().get() + PICTURES.getReused().get() + BYTE_BUFFERS.getReused().get();
+    }
+}
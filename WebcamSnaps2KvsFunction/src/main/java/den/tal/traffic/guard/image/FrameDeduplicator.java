@@ -0,0 +1,98 @@
+package den.tal.traffic.guard.image;
+
+import lombok.Getter;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * Detects near-duplicate frames of a batch, e.g. from a parked car. Every frame is reduced to a tiny grayscale
+ * thumbnail (signature), and the mean absolute difference between thumbnails tells how much the scene has changed.
+ * A frame is a duplicate if it differs from the last kept frame by less than the threshold. Comparing with the last
+ * kept frame, not the previous one, catches slow changes too.
+ * <p>
+ * Signatures are thread safe to compute, so they are taken on frame workers; {@link #isDuplicate(byte[])} and
+ * {@link #keepOrRepeat(Object, byte[])} are called in frame order. The first frame of a batch is always kept.
+ *
+ * @author Denis Talochkin
+ */
+public class FrameDeduplicator {
+
+    private static final int SIGNATURE_WIDTH = 32;
+    private static final int SIGNATURE_HEIGHT = 24;
+
+    /**
+     * Mean absolute luma difference, from 0 (same) to 1 (black vs. white).
+     */
+    @Getter
+    private final double threshold;
+    private byte[] lastKept;
+    private Object lastKeptFrame;
+
+    @Getter
+    private int numOfDuplicates;
+
+    public FrameDeduplicator(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return grayscale thumbnail of the image.
+     */
+    public static byte[] signature(BufferedImage image) {
+        BufferedImage thumbnail = new BufferedImage(SIGNATURE_WIDTH, SIGNATURE_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, SIGNATURE_WIDTH, SIGNATURE_HEIGHT, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return ((DataBufferByte) thumbnail.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @return mean absolute difference of two signatures, from 0 to 1.
+     */
+    public static double difference(byte[] signature, byte[] another) {
+        long sum = 0;
+        for (int i = 0; i < signature.length; ++i) {
+            sum += Math.abs((signature[i] & 0xFF) - (another[i] & 0xFF));
+        }
+
+        return sum / (255.0 * signature.length);
+    }
+
+    /**
+     * Checks the next frame of the batch. If the frame is kept, it becomes the reference for the following frames.
+     */
+    public boolean isDuplicate(byte[] signature) {
+        if (null != lastKept && difference(signature, lastKept) < threshold) {
+            ++numOfDuplicates;
+
+            return true;
+        }
+        lastKept = signature;
+
+        return false;
+    }
+
+    /**
+     * Used when the frame rate must stay constant, as with FFmpeg: a duplicate is replaced with the last kept frame,
+     * which the video encoder compresses to almost nothing, so the timing of the other frames doesn't change.
+     *
+     * @return the frame itself or the last kept frame if this one is a duplicate.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T keepOrRepeat(T frame, byte[] signature) {
+        if (isDuplicate(signature)) {
+
+            return (T) lastKeptFrame;
+        }
+        lastKeptFrame = frame;
+
+        return frame;
+    }
+}
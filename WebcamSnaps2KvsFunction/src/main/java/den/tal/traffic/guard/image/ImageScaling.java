@@ -0,0 +1,68 @@
+package den.tal.traffic.guard.image;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Fits images to the video size.
+ *
+ * @author Denis Talochkin
+ */
+public class ImageScaling {
+
+    private ImageScaling() {
+    }
+
+    /**
+     * Integer subsampling factor for decoding, taken from the larger of the width and height ratios: the dimension
+     * which exceeds the target the most is decoded at no less than the target, so a frame far wider or taller than
+     * the video is never decoded at full size. The other dimension may end up smaller and is scaled up afterwards.
+     *
+     * @return 1 if neither dimension is at least twice as big as the target.
+     */
+    public static int subsamplingFactor(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+
+            return 1;
+        }
+
+        return Math.max(1, Math.max(sourceWidth / targetWidth, sourceHeight / targetHeight));
+    }
+
+    /**
+     * Scales the image to exactly the given size, with bilinear interpolation. Aspect ratio is not kept, the same way
+     * FFmpeg scales frames to the video size.
+     *
+     * @return the image itself if it already has the size.
+     */
+    public static BufferedImage scale(BufferedImage image, int width, int height) {
+        if (image.getWidth() == width && image.getHeight() == height) {
+
+            return image;
+        }
+
+        return scale(image, new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    /**
+     * Scales the image to the size of the destination, e.g. a pooled one.
+     *
+     * @return the destination.
+     */
+    public static BufferedImage scale(BufferedImage image, BufferedImage destination) {
+        Graphics2D graphics = destination.createGraphics();
+        try {
+            if (image.getColorModel().hasAlpha()) {
+                // Transparent pixels are blended with black, as on a new image, not with the previous frame.
+                graphics.setBackground(Color.BLACK);
+                graphics.clearRect(0, 0, destination.getWidth(), destination.getHeight());
+            }
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, destination.getWidth(), destination.getHeight(), null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return destination;
+    }
+}
@@ -0,0 +1,170 @@
+package den.tal.traffic.guard.image;
+
+import lombok.Getter;
+
+/**
+ * Frame header (SOF segment) of a JPEG image. Read straight from the encoded bytes, no decoding involved.
+ *
+ * @author Denis Talochkin
+ */
+public class JpegHeader {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int SOF0 = 0xC0;
+    private static final int DHT = 0xC4;
+    private static final int JPG = 0xC8;
+    private static final int DAC = 0xCC;
+    private static final int TEM = 0x01;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+
+    /**
+     * SOF marker, e.g. <code>0xC0</code> for baseline DCT or <code>0xC2</code> for progressive DCT.
+     */
+    @Getter
+    private final int sofMarker;
+
+    @Getter
+    private final int precision;
+
+    @Getter
+    private final int width;
+
+    @Getter
+    private final int height;
+
+    /**
+     * Horizontal and vertical sampling factors of each component packed into a byte, as in SOF segment.
+     */
+    private final int[] samplingFactors;
+
+    private JpegHeader(int sofMarker, int precision, int width, int height, int[] samplingFactors) {
+        this.sofMarker = sofMarker;
+        this.precision = precision;
+        this.width = width;
+        this.height = height;
+        this.samplingFactors = samplingFactors;
+    }
+
+    /**
+     * Reads JPEG markers up to the frame header.
+     *
+     * @param data encoded image.
+     * @param length number of valid bytes.
+     * @return frame header or null if the data is not a JPEG image or it's malformed.
+     */
+    public static JpegHeader read(byte[] data, int length) {
+        if (length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != SOI) {
+
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+
+                return null;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte.
+                ++pos;
+
+                continue;
+            }
+            pos += 2;
+            if (marker == TEM || (marker >= RST0 && marker <= RST7)) {
+
+                continue;
+            }
+            if (marker == EOI || marker == SOS) {
+
+                return null;
+            }
+            int segmentLength = readUnsignedShort(data, pos);
+            if (segmentLength < 2 || pos + segmentLength > length) {
+
+                return null;
+            }
+            if (isSof(marker)) {
+
+                return readSof(marker, data, pos + 2, segmentLength - 2);
+            }
+            pos += segmentLength;
+        }
+
+        return null;
+    }
+
+    public int getNumOfComponents() {
+
+        return samplingFactors.length;
+    }
+
+    /**
+     * Checks whether the image can be passed to the video encoder as is, without decoding and encoding it again:
+     * it's an 8-bit baseline JPEG of exactly the given size, grayscale or YCbCr with standard chroma subsampling
+     * (4:4:4, 4:2:2 or 4:2:0).
+     */
+    public boolean isPassthroughCompatible(int targetWidth, int targetHeight) {
+        if (sofMarker != SOF0 || precision != 8 || width != targetWidth || height != targetHeight) {
+
+            return false;
+        }
+        if (samplingFactors.length == 1) {
+
+            return true;
+        }
+        if (samplingFactors.length != 3 || samplingFactors[1] != 0x11 || samplingFactors[2] != 0x11) {
+
+            return false;
+        }
+        int lumaH = samplingFactors[0] >> 4;
+        int lumaV = samplingFactors[0] & 0x0F;
+
+        return (lumaH == 1 && lumaV == 1) || (lumaH == 2 && lumaV == 1) || (lumaH == 2 && lumaV == 2);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sampling = new StringBuilder();
+        for (int factors : samplingFactors) {
+            sampling.append(factors >> 4).append('x').append(factors & 0x0F).append(' ');
+        }
+
+        return String.format("JpegHeader(SOF%d, %d bit, %dx%d, sampling: %s)", sofMarker - SOF0, precision, width,
+                height, sampling.toString().trim());
+    }
+
+    private static JpegHeader readSof(int marker, byte[] data, int pos, int length) {
+        if (length < 6) {
+
+            return null;
+        }
+        int precision = data[pos] & 0xFF;
+        int height = readUnsignedShort(data, pos + 1);
+        int width = readUnsignedShort(data, pos + 3);
+        int numOfComponents = data[pos + 5] & 0xFF;
+        if (length < 6 + 3 * numOfComponents) {
+
+            return null;
+        }
+        int[] samplingFactors = new int[numOfComponents];
+        for (int i = 0; i < numOfComponents; ++i) {
+            samplingFactors[i] = data[pos + 6 + 3 * i + 1] & 0xFF;
+        }
+
+        return new JpegHeader(marker, precision, width, height, samplingFactors);
+    }
+
+    private static boolean isSof(int marker) {
+
+        return marker >= SOF0 && marker <= 0xCF && marker != DHT && marker != JPG && marker != DAC;
+    }
+
+    private static int readUnsignedShort(byte[] data, int pos) {
+
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+}
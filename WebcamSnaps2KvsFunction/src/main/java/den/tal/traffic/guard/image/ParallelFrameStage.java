@@ -0,0 +1,126 @@
+package den.tal.traffic.guard.image;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes frames of a batch on a bounded pool of threads and hands results over in the original order.
+ * At most <code>2 * parallelism</code> frames are in flight, so memory stays bounded for big batches. If any frame
+ * fails, the rest of the batch is cancelled and the failure is rethrown to the caller.
+ * <p>
+ * With parallelism of 1 frames are processed on the caller's thread.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class ParallelFrameStage {
+
+    /**
+     * Work done for a single frame.
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+
+        T call() throws IOException;
+    }
+
+    /**
+     * Receives results in frame order. Always called on the thread that submits frames.
+     */
+    @FunctionalInterface
+    public interface Sink<T> {
+
+        void accept(int ordinal, T result) throws IOException;
+    }
+
+    @Getter
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    public ParallelFrameStage(int parallelism) {
+        this.parallelism = Math.max(parallelism, 1);
+        if (this.parallelism > 1) {
+            AtomicInteger threadNum = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(this.parallelism, r -> {
+                Thread thread = new Thread(r, "frame-worker-" + threadNum.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    public <T> Batch<T> newBatch(Sink<T> sink) {
+
+        return new Batch<>(sink);
+    }
+
+    /**
+     * Frames of a single request.
+     */
+    public class Batch<T> implements AutoCloseable {
+
+        private final Sink<T> sink;
+        private final Deque<Future<T>> pending = new ArrayDeque<>();
+        private int nextOrdinal;
+
+        private Batch(Sink<T> sink) {
+            this.sink = sink;
+        }
+
+        public void submit(Task<T> task) throws IOException {
+            if (null == executor) {
+                sink.accept(nextOrdinal++, task.call());
+
+                return;
+            }
+            pending.add(executor.submit(task::call));
+            while (!pending.isEmpty() && (pending.peekFirst().isDone() || pending.size() > 2 * parallelism)) {
+                drainFirst();
+            }
+        }
+
+        /**
+         * Waits for all submitted frames and passes the rest of the results to the sink.
+         */
+        public void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                drainFirst();
+            }
+        }
+
+        /**
+         * Cancels frames which are still in progress.
+         */
+        @Override
+        public void close() {
+            for (Future<T> future = pending.poll(); null != future; future = pending.poll()) {
+                future.cancel(true);
+            }
+        }
+
+        private void drainFirst() throws IOException {
+            Future<T> first = pending.pollFirst();
+            T result;
+            try {
+                result = first.get();
+            } catch (ExecutionException eex) {
+                close();
+                throw new IOException(String.format("Frame #%d failed.", nextOrdinal), eex.getCause());
+            } catch (InterruptedException iex) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for frames.", iex);
+            }
+            sink.accept(nextOrdinal++, result);
+        }
+    }
+}
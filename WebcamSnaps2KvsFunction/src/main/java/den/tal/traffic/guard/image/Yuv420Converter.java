@@ -0,0 +1,180 @@
+package den.tal.traffic.guard.image;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Converts images straight to planar YUV 4:2:0 pictures for the H.264 encoder. jcodec goes through an RGB picture,
+ * filled pixel by pixel with {@link BufferedImage#getRGB(int, int)}, and then converts it pixel by pixel; here
+ * <code>TYPE_3BYTE_BGR</code> and <code>TYPE_INT_RGB</code>/<code>TYPE_INT_ARGB</code> rasters are read directly, two
+ * rows at a time, and the arithmetic runs on the JDK Vector API if <code>jdk.incubator.vector</code> module is added
+ * (<code>--add-modules jdk.incubator.vector</code>), in plain java otherwise. Other image types are read row by row
+ * with {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+ * <p>
+ * The result is within 1 of jcodec RGB to {@link ColorSpace#YUV420J} conversion: chroma is computed from the mean
+ * color of a 2x2 block rather than averaged after rounding. Alpha is ignored, as in jcodec.
+ * The output picture is overwritten, e.g. a pooled one. Not thread safe: holds row buffers of the last image width.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class Yuv420Converter {
+
+    private static final boolean VECTOR_API = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private static final String VECTOR_KERNEL = "den.tal.traffic.guard.image.VectorYuv420Kernel";
+
+    private final Yuv420Kernel kernel;
+    private int[] r0 = new int[0];
+    private int[] g0 = new int[0];
+    private int[] b0 = new int[0];
+    private int[] r1 = new int[0];
+    private int[] g1 = new int[0];
+    private int[] b1 = new int[0];
+    private int[] rSum = new int[0];
+    private int[] gSum = new int[0];
+    private int[] bSum = new int[0];
+    private int[] argb = new int[0];
+
+    /**
+     * Vectorized if the Vector API is available.
+     */
+    public Yuv420Converter() {
+        this(VECTOR_API);
+    }
+
+    /**
+     * @param vectorized whether to use the Vector API, if it's available.
+     */
+    public Yuv420Converter(boolean vectorized) {
+        this.kernel = vectorized && VECTOR_API ? createVectorKernel() : new Yuv420Kernel.Scalar();
+    }
+
+    public boolean isVectorized() {
+
+        return !(kernel instanceof Yuv420Kernel.Scalar);
+    }
+
+    /**
+     * @param picture {@link ColorSpace#YUV420J} picture of the image size.
+     */
+    public void convert(BufferedImage image, Picture picture) {
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        if (ColorSpace.YUV420J != picture.getColor() || image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException(String.format("Can't convert %dx%d image to %dx%d %s picture.",
+                    image.getWidth(), image.getHeight(), width, height, picture.getColor()));
+        }
+        ensureCapacity(width);
+        final byte[] y = picture.getPlaneData(0);
+        final byte[] u = picture.getPlaneData(1);
+        final byte[] v = picture.getPlaneData(2);
+        final int chromaWidth = Math.min(picture.getPlaneWidth(1), width >> 1);
+        final int chromaHeight = Math.min(picture.getPlaneHeight(1), height >> 1);
+        for (int row = 0; row < height; row += 2) {
+            readRow(image, row, r0, g0, b0);
+            kernel.luma(r0, g0, b0, width, y, row * width);
+            if (row + 1 < height) {
+                readRow(image, row + 1, r1, g1, b1);
+                kernel.luma(r1, g1, b1, width, y, (row + 1) * width);
+            }
+            if (row >> 1 < chromaHeight) {
+                for (int i = 0, j = 0; i < chromaWidth; ++i, j += 2) {
+                    rSum[i] = r0[j] + r0[j + 1] + r1[j] + r1[j + 1];
+                    gSum[i] = g0[j] + g0[j + 1] + g1[j] + g1[j + 1];
+                    bSum[i] = b0[j] + b0[j + 1] + b1[j] + b1[j + 1];
+                }
+                kernel.chroma(rSum, gSum, bSum, chromaWidth, u, v, (row >> 1) * picture.getPlaneWidth(1));
+            }
+        }
+    }
+
+    /**
+     * Splits a row of the image into components, 0..255.
+     */
+    private void readRow(BufferedImage image, int row, int[] r, int[] g, int[] b) {
+        final int width = image.getWidth();
+        final WritableRaster raster = image.getRaster();
+        if (isPlain(raster)) {
+            if (raster.getDataBuffer() instanceof DataBufferByte
+                    && raster.getSampleModel() instanceof ComponentSampleModel model
+                    && BufferedImage.TYPE_3BYTE_BGR == image.getType()) {
+                final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0, p = row * model.getScanlineStride(); i < width; ++i, p += 3) {
+                    b[i] = data[p] & 0xFF;
+                    g[i] = data[p + 1] & 0xFF;
+                    r[i] = data[p + 2] & 0xFF;
+                }
+
+                return;
+            }
+            if (raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel model
+                    && (BufferedImage.TYPE_INT_RGB == image.getType()
+                    || BufferedImage.TYPE_INT_ARGB == image.getType())) {
+                split(((DataBufferInt) raster.getDataBuffer()).getData(), row * model.getScanlineStride(), width, r,
+                        g, b);
+
+                return;
+            }
+        }
+        image.getRGB(0, row, width, 1, argb, 0, width);
+        split(argb, 0, width, r, g, b);
+    }
+
+    private static void split(int[] pixels, int offset, int width, int[] r, int[] g, int[] b) {
+        for (int i = 0; i < width; ++i) {
+            final int pixel = pixels[offset + i];
+            r[i] = (pixel >> 16) & 0xFF;
+            g[i] = (pixel >> 8) & 0xFF;
+            b[i] = pixel & 0xFF;
+        }
+    }
+
+    /**
+     * @return whether the raster is the whole data buffer, not a part of it, e.g. of a sub-image.
+     */
+    private static boolean isPlain(WritableRaster raster) {
+
+        return null == raster.getParent() && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0 && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0;
+    }
+
+    private void ensureCapacity(int width) {
+        if (r0.length < width) {
+            r0 = new int[width];
+            g0 = new int[width];
+            b0 = new int[width];
+            r1 = new int[width];
+            g1 = new int[width];
+            b1 = new int[width];
+            argb = new int[width];
+            // An odd last column or row has no chroma block of its own, as in jcodec.
+            rSum = new int[width >> 1];
+            gSum = new int[width >> 1];
+            bSum = new int[width >> 1];
+        }
+    }
+
+    /**
+     * The kernel is compiled apart from the rest, with the incubator module, and may be missing from the class path.
+     */
+    private static Yuv420Kernel createVectorKernel() {
+        try {
+
+            return (Yuv420Kernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            log.warn("Vector API is not usable, convert colors in plain java.", ex);
+
+            return new Yuv420Kernel.Scalar();
+        }
+    }
+}
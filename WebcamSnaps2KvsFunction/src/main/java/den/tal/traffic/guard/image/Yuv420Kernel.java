@@ -0,0 +1,64 @@
+package den.tal.traffic.guard.image;
+
+/**
+ * Per-row arithmetic of {@link Yuv420Converter}: full-range (JFIF) BT.601 coefficients in 8-bit fixed point, the same
+ * as jcodec uses for {@link org.jcodec.common.model.ColorSpace#YUV420J}. Samples are written the way jcodec keeps
+ * them, i.e. shifted by -128 into signed bytes.
+ *
+ * @author Denis Talochkin
+ */
+interface Yuv420Kernel {
+
+    /**
+     * Y of a row.
+     *
+     * @param r red components, 0..255.
+     * @param length number of pixels.
+     * @param offset of the row in the Y plane.
+     */
+    void luma(int[] r, int[] g, int[] b, int length, byte[] y, int offset);
+
+    /**
+     * U and V of a row of the chroma planes.
+     *
+     * @param r sums of red components of 2x2 pixel blocks, 0..1020.
+     * @param length number of blocks.
+     * @param offset of the row in the U and V planes.
+     */
+    void chroma(int[] r, int[] g, int[] b, int length, byte[] u, byte[] v, int offset);
+
+    /**
+     * Plain java, also finishes the rows of the vectorized kernel.
+     */
+    class Scalar implements Yuv420Kernel {
+
+        @Override
+        public void luma(int[] r, int[] g, int[] b, int length, byte[] y, int offset) {
+            luma(r, g, b, 0, length, y, offset);
+        }
+
+        @Override
+        public void chroma(int[] r, int[] g, int[] b, int length, byte[] u, byte[] v, int offset) {
+            chroma(r, g, b, 0, length, u, v, offset);
+        }
+
+        static void luma(int[] r, int[] g, int[] b, int from, int to, byte[] y, int offset) {
+            for (int i = from; i < to; ++i) {
+                y[offset + i] = (byte) (((77 * r[i] + 150 * g[i] + 29 * b[i] + 128) >> 8) - 128);
+            }
+        }
+
+        static void chroma(int[] r, int[] g, int[] b, int from, int to, byte[] u, byte[] v, int offset) {
+            for (int i = from; i < to; ++i) {
+                // Sums of 4 pixels, so the scale is 2^10.
+                u[offset + i] = (byte) clip((-43 * r[i] - 85 * g[i] + 128 * b[i] + 512) >> 10);
+                v[offset + i] = (byte) clip((128 * r[i] - 107 * g[i] - 21 * b[i] + 512) >> 10);
+            }
+        }
+
+        private static int clip(int value) {
+
+            return Math.max(-128, Math.min(127, value));
+        }
+    }
+}
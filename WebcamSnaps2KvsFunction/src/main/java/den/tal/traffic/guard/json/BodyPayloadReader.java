@@ -0,0 +1,458 @@
+package den.tal.traffic.guard.json;
+
+import den.tal.traffic.guard.metrics.Counter;
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import den.tal.traffic.guard.metrics.Stage;
+import den.tal.traffic.guard.payload.FramePayloadReader;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of the request body. Walks through the JSON document without building a {@link BodyPayload}:
+ * every element of the <code>frames</code> array is base64-decoded on the fly, chunk by chunk, into a single reused
+ * buffer and handed to a {@link FrameConsumer}. So only one decoded frame is alive at any moment.
+ * <p>
+ * Data URI prefixes (<code>data:image/jpeg;base64,</code>) are skipped, JSON escapes inside strings are honored.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class BodyPayloadReader implements FramePayloadReader {
+
+    private static final String DATA_URI_SCHEME = "data:";
+    private static final int INITIAL_FRAME_CAPACITY = 128 * 1024;
+    private static final int[] BASE64_ALPHABET = new int[128];
+    static {
+        Arrays.fill(BASE64_ALPHABET, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            BASE64_ALPHABET[alphabet.charAt(i)] = i;
+        }
+        BASE64_ALPHABET['-'] = 62;
+        BASE64_ALPHABET['_'] = 63;
+    }
+
+    private final Reader reader;
+    private final InvocationMetrics metrics;
+    private final char[] chars = new char[8192];
+    private int charsPos;
+    private int charsLimit;
+    private int peeked = -2;
+
+    private byte[] frameBuffer = new byte[INITIAL_FRAME_CAPACITY];
+    private int frameLength;
+    private int quantum;
+    private int quantumSize;
+    private long base64Nanos;
+    private long consumerNanos;
+
+    @Getter
+    private int numOfFrames;
+
+    @Getter
+    private float framerate;
+
+    @Getter
+    private long[] timestamps;
+
+    public BodyPayloadReader(Reader reader) {
+        this(reader, new InvocationMetrics());
+    }
+
+    /**
+     * @param metrics receives JSON parsing and base64 decoding time, and the number and size of frames.
+     */
+    public BodyPayloadReader(Reader reader, InvocationMetrics metrics) {
+        this.reader = reader;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads the whole document. Frames are passed to the consumer as soon as they are decoded, framerate and
+     * timestamps are available via getters after the method returns.
+     *
+     * @param consumer frame consumer.
+     * @throws IOException if the document is malformed or the consumer fails.
+     */
+    @Override
+    public void read(FrameConsumer consumer) throws IOException {
+        final long start = metrics.start();
+        try {
+            readDocument(consumer);
+        } finally {
+            // Consumer and base64 time is excluded from parsing.
+            metrics.add(Stage.JSON_PARSE, System.nanoTime() - start - consumerNanos - base64Nanos);
+            metrics.add(Stage.BASE64_DECODE, base64Nanos);
+        }
+    }
+
+    @Override
+    public void readTiming() throws IOException {
+        final long start = metrics.start();
+        try {
+            readDocument(null);
+        } finally {
+            metrics.record(Stage.JSON_PARSE, start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * @param consumer frame consumer, null if frames are skipped.
+     */
+    private void readDocument(FrameConsumer consumer) throws IOException {
+        expect('{');
+        if (peek() == '}') {
+            next();
+
+            return;
+        }
+        do {
+            String name = readName();
+            expect(':');
+            switch (name) {
+                case "frames":
+                    if (null == consumer) {
+                        skipValue();
+                    } else {
+                        readFrames(consumer);
+                    }
+
+                    break;
+                case "framerate":
+                    framerate = Float.parseFloat(readNumber());
+
+                    break;
+                case "timestamps":
+                    timestamps = readTimestamps();
+
+                    break;
+                default:
+                    log.debug("Skip unknown property '{}'", name);
+                    skipValue();
+            }
+        } while (nextIsComma('}'));
+    }
+
+    private void readFrames(FrameConsumer consumer) throws IOException {
+        if (skipNull()) {
+
+            return;
+        }
+        expect('[');
+        if (peek() == ']') {
+            next();
+
+            return;
+        }
+        do {
+            long start = System.nanoTime();
+            decodeFrame();
+            long decoded = System.nanoTime();
+            base64Nanos += decoded - start;
+            metrics.count(Counter.FRAMES_IN, 1);
+            metrics.count(Counter.BYTES_IN, frameLength);
+            consumer.accept(numOfFrames++, frameBuffer, frameLength);
+            consumerNanos += System.nanoTime() - decoded;
+        } while (nextIsComma(']'));
+    }
+
+    private long[] readTimestamps() throws IOException {
+        if (skipNull()) {
+
+            return null;
+        }
+        expect('[');
+        long[] values = new long[16];
+        int count = 0;
+        if (peek() == ']') {
+            next();
+
+            return new long[0];
+        }
+        do {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count << 1);
+            }
+            values[count++] = (long) Double.parseDouble(readNumber());
+        } while (nextIsComma(']'));
+
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Decodes current JSON string as base64 straight into the frame buffer.
+     */
+    private void decodeFrame() throws IOException {
+        expect('"');
+        frameLength = 0;
+        quantum = 0;
+        quantumSize = 0;
+        char[] head = new char[DATA_URI_SCHEME.length()];
+        int headLength = 0;
+        int c = nextStringChar();
+        while (c != -1 && headLength < head.length) {
+            head[headLength++] = (char) c;
+            c = nextStringChar();
+        }
+        if (DATA_URI_SCHEME.equalsIgnoreCase(new String(head, 0, headLength))) {
+            while (c != -1 && c != ',') {
+                c = nextStringChar();
+            }
+            if (c == ',') {
+                c = nextStringChar();
+            }
+        } else {
+            for (int i = 0; i < headLength; ++i) {
+                decodeBase64Char(head[i]);
+            }
+        }
+        for (; c != -1; c = nextStringChar()) {
+            decodeBase64Char(c);
+        }
+        if (quantumSize == 3) {
+            writeQuantum(quantum << 6, 2);
+        } else if (quantumSize == 2) {
+            writeQuantum(quantum << 12, 1);
+        } else if (quantumSize == 1) {
+            throw new IOException(String.format("Frame #%d is not a valid base64 string.", numOfFrames));
+        }
+    }
+
+    private void decodeBase64Char(int c) throws IOException {
+        if (c == '=' || Character.isWhitespace(c)) {
+
+            return;
+        }
+        int value = c < BASE64_ALPHABET.length ? BASE64_ALPHABET[c] : -1;
+        if (value < 0) {
+            throw new IOException(String.format("Illegal base64 character '%c' in frame #%d.", (char) c,
+                    numOfFrames));
+        }
+        quantum = (quantum << 6) | value;
+        if (++quantumSize == 4) {
+            writeQuantum(quantum, 3);
+            quantum = 0;
+            quantumSize = 0;
+        }
+    }
+
+    private void writeQuantum(int quantum, int numOfBytes) {
+        if (frameLength + 3 > frameBuffer.length) {
+            frameBuffer = Arrays.copyOf(frameBuffer, frameBuffer.length << 1);
+        }
+        frameBuffer[frameLength++] = (byte) (quantum >> 16);
+        if (numOfBytes > 1) {
+            frameBuffer[frameLength++] = (byte) (quantum >> 8);
+        }
+        if (numOfBytes > 2) {
+            frameBuffer[frameLength++] = (byte) quantum;
+        }
+    }
+
+    /**
+     * @return next unescaped char of the current string or -1 at the closing quote.
+     */
+    private int nextStringChar() throws IOException {
+        int c = read();
+        switch (c) {
+            case -1:
+                throw new IOException("Unterminated string.");
+            case '"':
+
+                return -1;
+            case '\\':
+                int escaped = read();
+                switch (escaped) {
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; ++i) {
+                            final int next = read();
+                            final int digit = Character.digit(next, 16);
+                            if (digit < 0) {
+                                throw new IOException(-1 == next ? "Unterminated string."
+                                        : String.format("Illegal hex digit '%c' in unicode escape.", (char) next));
+                            }
+                            code = (code << 4) | digit;
+                        }
+
+                        return code;
+                    case 'n':
+
+                        return '\n';
+                    case 'r':
+
+                        return '\r';
+                    case 't':
+
+                        return '\t';
+                    case 'b':
+
+                        return '\b';
+                    case 'f':
+
+                        return '\f';
+                    default:
+
+                        return escaped;
+                }
+            default:
+
+                return c;
+        }
+    }
+
+    private String readName() throws IOException {
+        expect('"');
+        StringBuilder name = new StringBuilder();
+        for (int c = nextStringChar(); c != -1; c = nextStringChar()) {
+            name.append((char) c);
+        }
+
+        return name.toString();
+    }
+
+    private String readNumber() throws IOException {
+        peek();
+        StringBuilder number = new StringBuilder();
+        for (int c = peekRaw(); c != -1 && "+-0123456789.eE".indexOf(c) >= 0; c = peekRaw()) {
+            number.append((char) read());
+        }
+        if (number.length() == 0) {
+            throw new IOException("Number expected.");
+        }
+
+        return number.toString();
+    }
+
+    private boolean skipNull() throws IOException {
+        if (peek() == 'n') {
+            skipValue();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private void skipValue() throws IOException {
+        int c = peek();
+        switch (c) {
+            case '"':
+                next();
+                while (nextStringChar() != -1);
+
+                break;
+            case '{':
+                next();
+                if (peek() == '}') {
+                    next();
+
+                    break;
+                }
+                do {
+                    readName();
+                    expect(':');
+                    skipValue();
+                } while (nextIsComma('}'));
+
+                break;
+            case '[':
+                next();
+                if (peek() == ']') {
+                    next();
+
+                    break;
+                }
+                do {
+                    skipValue();
+                } while (nextIsComma(']'));
+
+                break;
+            default:
+                for (int r = peekRaw(); r != -1 && ",}] \t\r\n".indexOf(r) < 0; r = peekRaw()) {
+                    read();
+                }
+        }
+    }
+
+    private boolean nextIsComma(char closing) throws IOException {
+        int c = next();
+        if (c == ',') {
+
+            return true;
+        } else if (c == closing) {
+
+            return false;
+        } else {
+            throw new IOException(String.format("Expected ',' or '%c' but found '%c'.", closing, (char) c));
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = next();
+        if (c != expected) {
+            throw new IOException(String.format("Expected '%c' but found '%c'.", expected, (char) c));
+        }
+    }
+
+    /**
+     * @return next non-whitespace char, consuming it.
+     */
+    private int next() throws IOException {
+        int c = peek();
+        read();
+
+        return c;
+    }
+
+    /**
+     * @return next non-whitespace char without consuming it.
+     */
+    private int peek() throws IOException {
+        int c = peekRaw();
+        while (c != -1 && Character.isWhitespace(c)) {
+            read();
+            c = peekRaw();
+        }
+
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (peeked == -2) {
+            peeked = fill();
+        }
+
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        int c = peekRaw();
+        peeked = -2;
+
+        return c;
+    }
+
+    private int fill() throws IOException {
+        if (charsPos == charsLimit) {
+            charsLimit = reader.read(chars, 0, chars.length);
+            charsPos = 0;
+            if (charsLimit <= 0) {
+                charsLimit = 0;
+
+                return -1;
+            }
+        }
+
+        return chars[charsPos++];
+    }
+}
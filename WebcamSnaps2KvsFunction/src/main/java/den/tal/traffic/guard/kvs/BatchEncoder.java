@@ -0,0 +1,32 @@
+package den.tal.traffic.guard.kvs;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * In-process encoder of a batch of frames, see {@link JCodecMkvEncoder} and {@link FragmentCoalescer.Fragment}.
+ *
+ * @author Denis Talochkin
+ */
+public interface BatchEncoder {
+
+    /**
+     * @param ordinal frame ordinal number in the batch, picks the frame timestamp.
+     */
+    void encodeFrame(int ordinal, BufferedImage image) throws IOException;
+
+    boolean isTimingKnown();
+
+    /**
+     * Sets frame timing of the batch and writes frames held back so far.
+     *
+     * @param timestamps client timestamps of frames in milliseconds, may be null.
+     * @param framerate used when there are no timestamps.
+     */
+    void setTiming(long[] timestamps, float framerate) throws IOException;
+
+    /**
+     * Writes the rest of the frames of the batch.
+     */
+    void finishBatch(long[] timestamps, float framerate) throws IOException;
+}
@@ -0,0 +1,153 @@
+package den.tal.traffic.guard.kvs;
+
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import den.tal.traffic.guard.metrics.Stage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses an {@link EncodingPlan} for a batch so it's done in time: before the lambda deadline, i.e.
+ * <code>Context.getRemainingTimeInMillis()</code> less a safety margin, and within the latency target, whichever is
+ * sooner. If the batch is predicted to take longer at full quality, the plan goes down the
+ * {@link EncodingPlan.Level} ladder, and below the last level thins out frames, down to every
+ * <code>maxKeepEvery</code>-th one. Quality is traded for bounded latency rather than losing the batch to a timeout.
+ * <p>
+ * Estimates come from the metrics of recent invocations, smoothed exponentially: the tail that doesn't depend on the
+ * batch (<code>GetDataEndpoint</code> and waiting for the ack), and the rest of the invocation per payload byte at full
+ * quality. Relative costs of the levels are fixed, see {@link EncodingPlan.Level#getCostFactor()}. Until the first
+ * invocation is observed batches are encoded at full quality. Thread safe.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class DeadlineController {
+
+    /**
+     * Weight of the latest invocation in the estimates.
+     */
+    private static final double SMOOTHING = .3;
+
+    private final long latencyTargetMillis;
+    private final long marginMillis;
+    private final int maxKeepEvery;
+    private final List<EncodingPlan.Level> levels = new ArrayList<>();
+    private double workMillisPerByte = Double.NaN;
+    private double tailMillis = Double.NaN;
+
+    /**
+     * @param latencyTargetMillis time a batch may take, 0 if only the deadline counts.
+     * @param marginMillis kept before the deadline, e.g. for the response and metrics.
+     * @param maxKeepEvery the most frames are thinned out to, 1 never thins out.
+     * @param presets whether x264 presets apply, i.e. the batch is encoded by an FFmpeg started with the plan.
+     * @param scaling whether the output resolution may be changed.
+     */
+    public DeadlineController(long latencyTargetMillis, long marginMillis, int maxKeepEvery, boolean presets,
+                              boolean scaling) {
+        this.latencyTargetMillis = latencyTargetMillis;
+        this.marginMillis = marginMillis;
+        this.maxKeepEvery = Math.max(1, maxKeepEvery);
+        for (EncodingPlan.Level level : EncodingPlan.Level.values()) {
+            if (EncodingPlan.Level.FULL == level || (level.isHalfResolution() ? scaling : presets)) {
+                levels.add(level);
+            }
+        }
+    }
+
+    /**
+     * @param payloadBytes size of the request body.
+     * @param remainingMillis time left before the lambda deadline, {@link Long#MAX_VALUE} if there's none, e.g. in the
+     *                        standalone server.
+     * @param width video width.
+     * @param height video height.
+     */
+    public synchronized EncodingPlan plan(long payloadBytes, long remainingMillis, int width, int height) {
+        final long budget = budget(remainingMillis);
+        if (Long.MAX_VALUE == budget) {
+
+            return EncodingPlan.full(width, height);
+        }
+        if (Double.isNaN(workMillisPerByte) || payloadBytes <= 0) {
+
+            return new EncodingPlan(EncodingPlan.Level.FULL, width, height, 1, 0, budget);
+        }
+        EncodingPlan.Level level = EncodingPlan.Level.FULL;
+        double work = 0;
+        for (EncodingPlan.Level next : levels) {
+            level = next;
+            work = workMillisPerByte * payloadBytes * relativeCost(level);
+            if (tailMillis + work <= budget) {
+
+                return plan(level, width, height, 1, tailMillis + work, budget);
+            }
+        }
+        final double room = budget - tailMillis;
+        final int keepEvery = room <= 0 ? maxKeepEvery
+                : (int) Math.max(1, Math.min(maxKeepEvery, Math.ceil(work / room)));
+
+        return plan(level, width, height, keepEvery, tailMillis + work / keepEvery, budget);
+    }
+
+    /**
+     * Updates the estimates with a finished invocation encoded by the plan.
+     *
+     * @param payloadBytes size of the request body.
+     * @param metrics finished metrics of the invocation.
+     */
+    public synchronized void observe(EncodingPlan plan, long payloadBytes, InvocationMetrics metrics) {
+        final double scaledBytes = payloadBytes * relativeCost(plan.level()) / plan.keepEvery();
+        if (scaledBytes <= 0) {
+
+            return;
+        }
+        final double tail = metrics.getMillis(Stage.GET_DATA_ENDPOINT) + metrics.getMillis(Stage.ACK);
+        final double work = Math.max(0, metrics.getMillis(Stage.TOTAL) - tail);
+        tailMillis = smooth(tailMillis, tail);
+        workMillisPerByte = smooth(workMillisPerByte, work / scaledBytes);
+    }
+
+    /**
+     * @return time the batch may take, {@link Long#MAX_VALUE} if it's unlimited.
+     */
+    long budget(long remainingMillis) {
+        final long deadlineBudget = Long.MAX_VALUE == remainingMillis ? Long.MAX_VALUE : remainingMillis - marginMillis;
+
+        return latencyTargetMillis > 0 ? Math.min(latencyTargetMillis, deadlineBudget) : deadlineBudget;
+    }
+
+    /**
+     * @return cost of the level relative to full quality, over the levels which apply.
+     */
+    double relativeCost(EncodingPlan.Level level) {
+        double cost = 1;
+        for (EncodingPlan.Level applied : levels) {
+            if (applied.ordinal() > level.ordinal()) {
+                break;
+            }
+            cost *= applied.getCostFactor();
+        }
+
+        return cost;
+    }
+
+    private EncodingPlan plan(EncodingPlan.Level level, int width, int height, int keepEvery, double predicted,
+                              long budget) {
+        // x264 needs even dimensions for 4:2:0.
+        final int planWidth = level.isHalfResolution() ? (width / 2) & ~1 : width;
+        final int planHeight = level.isHalfResolution() ? (height / 2) & ~1 : height;
+        final EncodingPlan plan = new EncodingPlan(level, planWidth, planHeight, keepEvery, Math.round(predicted),
+                budget);
+        if (plan.isDegraded() || keepEvery > 1) {
+            log.info("Predicted {} ms against budget of {} ms, encode {}x{} at {}, keep every {} frame.",
+                    plan.predictedMillis(), budget, plan.width(), plan.height(), level, keepEvery);
+        }
+
+        return plan;
+    }
+
+    private static double smooth(double estimate, double observed) {
+
+        return Double.isNaN(estimate) ? observed : estimate + SMOOTHING * (observed - estimate);
+    }
+}
@@ -0,0 +1,24 @@
+package den.tal.traffic.guard.kvs;
+
+/**
+ * Defines how a batch of frames is turned into an MKV fragment.
+ *
+ * @author Denis Talochkin
+ */
+public enum EncodingMode {
+
+    /**
+     * Frames are saved to a temp folder as JPEG files and encoded by an external FFmpeg process.
+     */
+    FFMPEG,
+
+    /**
+     * Frames are piped into FFmpeg stdin, MKV is read from FFmpeg stdout and uploaded while encoding is running.
+     */
+    FFMPEG_PIPE,
+
+    /**
+     * Frames are encoded in-process by jcodec H.264 encoder and MKV muxer. No temp files, no FFmpeg.
+     */
+    JCODEC
+}
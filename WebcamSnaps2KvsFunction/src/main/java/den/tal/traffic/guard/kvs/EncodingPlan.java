@@ -0,0 +1,92 @@
+package den.tal.traffic.guard.kvs;
+
+import lombok.Getter;
+
+/**
+ * How a batch is encoded, chosen by {@link DeadlineController}: encoding level, output resolution and frame thinning.
+ *
+ * @param level x264 preset and tune, and whether the resolution is halved.
+ * @param width output width.
+ * @param height output height.
+ * @param keepEvery every n-th frame of the batch is encoded, 1 keeps all frames.
+ * @param predictedMillis predicted invocation time, 0 if there's no estimate yet.
+ * @param budgetMillis time the batch may take, 0 if unlimited.
+ * @author Denis Talochkin
+ */
+public record EncodingPlan(Level level, int width, int height, int keepEvery, long predictedMillis,
+                           long budgetMillis) {
+
+    /**
+     * Degradation ladder, from the best quality down. Each level is cheaper than the previous one by its cost factor.
+     * Presets only apply to x264, i.e. FFmpeg modes; jcodec has no speed settings.
+     */
+    public enum Level {
+
+        /**
+         * x264 defaults, the video size.
+         */
+        FULL(null, null, false, 1.0),
+
+        VERYFAST("veryfast", "zerolatency", false, .6),
+
+        ULTRAFAST("ultrafast", "zerolatency", false, .65),
+
+        /**
+         * Ultrafast at half the width and height.
+         */
+        HALF_RESOLUTION("ultrafast", "zerolatency", true, .6);
+
+        /**
+         * x264 preset, null for the default one.
+         */
+        @Getter
+        private final String preset;
+
+        /**
+         * x264 tune, null for none.
+         */
+        @Getter
+        private final String tune;
+
+        @Getter
+        private final boolean halfResolution;
+
+        /**
+         * Cost relative to the previous level, an estimate for a typical webcam batch.
+         */
+        @Getter
+        private final double costFactor;
+
+        Level(String preset, String tune, boolean halfResolution, double costFactor) {
+            this.preset = preset;
+            this.tune = tune;
+            this.halfResolution = halfResolution;
+            this.costFactor = costFactor;
+        }
+    }
+
+    /**
+     * Best quality, all frames.
+     */
+    public static EncodingPlan full(int width, int height) {
+
+        return new EncodingPlan(Level.FULL, width, height, 1, 0, 0);
+    }
+
+    /**
+     * @param ordinal number of the frame in the batch.
+     * @return whether the frame is encoded, the first frame always is.
+     */
+    public boolean keeps(int ordinal) {
+
+        return ordinal % keepEvery == 0;
+    }
+
+    /**
+     * @return whether x264 runs with other than default settings or output size.
+     */
+    public boolean isDegraded() {
+
+        return Level.FULL != level;
+    }
+}
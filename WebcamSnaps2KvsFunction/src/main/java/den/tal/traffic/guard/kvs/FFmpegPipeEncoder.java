@@ -0,0 +1,180 @@
+package den.tal.traffic.guard.kvs;
+
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs FFmpeg with images piped into stdin (<code>image2pipe</code>) and Matroska written to stdout.
+ * Nothing touches the disk, and the MKV stream can be uploaded while frames are still being encoded.
+ * <p>
+ * FFmpeg finishes the MKV stream when its stdin is closed, so an encoder encodes one batch. It may be started in
+ * advance, see {@link FFmpegWorkerPool}.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class FFmpegPipeEncoder implements Closeable {
+
+    private static final String STDIN = "pipe:0";
+    private static final String STDOUT = "pipe:1";
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ffmpeg-watchdog");
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    private final List<String> command;
+    private Process process;
+    private OutputStream framesStream;
+    private ScheduledFuture<?> watchdog;
+
+    public FFmpegPipeEncoder(String ffmpegPath, int width, int height, double frameRate) {
+        this(ffmpegPath, width, height, frameRate, null, null);
+    }
+
+    /**
+     * @param frameRate rate FFmpeg reads the frames at, it makes the timecodes of the output.
+     * @param preset x264 preset, e.g. <code>ultrafast</code>, null for the default one.
+     * @param tune x264 tune, e.g. <code>zerolatency</code>, null for none.
+     */
+    public FFmpegPipeEncoder(String ffmpegPath, int width, int height, double frameRate, String preset,
+                             String tune) {
+        FFmpegOutputBuilder outputBuilder = new FFmpegOutputBuilder().setVideoFrameRate(frameRate)
+                .setVideoCodec("libx264")
+                .setVideoPixelFormat("yuv420p").setFormat("matroska")
+                .setVideoResolution(width, height)
+                .setFilename(STDOUT);
+        if (null != preset) {
+            outputBuilder.addExtraArgs("-preset", preset);
+        }
+        if (null != tune) {
+            outputBuilder.addExtraArgs("-tune", tune);
+        }
+
+        FFmpegBuilder builder = new FFmpegBuilder().addExtraArgs("-f", "image2pipe", "-r",
+                toArgument(frameRate))
+                .setInput(STDIN)
+                .addOutput(outputBuilder);
+
+        command = new ArrayList<>();
+        command.add(ffmpegPath);
+        command.addAll(builder.build());
+    }
+
+    FFmpegPipeEncoder(List<String> command) {
+        this.command = command;
+    }
+
+    /**
+     * @return frame rate as FFmpeg <code>-r</code> option value.
+     */
+    public static String toArgument(double frameRate) {
+
+        return String.format(Locale.ROOT, "%.3f", frameRate);
+    }
+
+    List<String> getCommand() {
+
+        return command;
+    }
+
+    public void start() throws IOException {
+        log.debug("Start FFmpeg process: {}", command);
+        process = new ProcessBuilder(command).start();
+        framesStream = new BufferedOutputStream(process.getOutputStream(), PIPE_BUFFER_SIZE);
+        Thread stderrReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    log.debug("FFmpeg: {}", line);
+                }
+            } catch (IOException ioex) {
+                log.warn("Could not read FFmpeg output.", ioex);
+            }
+        }, "ffmpeg-stderr");
+        stderrReader.setDaemon(true);
+        stderrReader.start();
+    }
+
+    /**
+     * Kills FFmpeg if the job isn't done in time, e.g. if FFmpeg hangs and stops reading its stdin. Blocked writes of
+     * frames and reads of the MKV stream fail then, instead of blocking the request.
+     */
+    public void startJob(long timeoutInMillis) {
+        watchdog = WATCHDOG.schedule(() -> {
+            if (process.isAlive()) {
+                log.warn("FFmpeg job did not finish in {} ms, kill the process.", timeoutInMillis);
+                process.destroyForcibly();
+            }
+        }, timeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if FFmpeg is started and still running.
+     */
+    public boolean isAlive() {
+
+        return null != process && process.isAlive();
+    }
+
+    /**
+     * @return FFmpeg stdin. Encoded images are written here one after another.
+     */
+    public OutputStream getFramesStream() {
+
+        return framesStream;
+    }
+
+    /**
+     * @return FFmpeg stdout with the MKV stream.
+     */
+    public InputStream getMkvStream() {
+
+        return process.getInputStream();
+    }
+
+    /**
+     * Closes FFmpeg stdin, so FFmpeg encodes the rest of the frames and finishes the MKV stream.
+     */
+    public void finishFrames() throws IOException {
+        framesStream.close();
+    }
+
+    /**
+     * Waits for FFmpeg to exit.
+     *
+     * @param timeoutInMillis how long to wait.
+     * @throws IOException if FFmpeg failed or didn't finish in time.
+     */
+    public void awaitCompletion(long timeoutInMillis) throws IOException, InterruptedException {
+        if (!process.waitFor(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+            throw new IOException("FFmpeg process did not finish in time.");
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException(String.format("FFmpeg process failed with exit code %d.", process.exitValue()));
+        }
+        log.debug("FFmpeg process finished.");
+    }
+
+    @Override
+    public void close() {
+        if (null != watchdog) {
+            watchdog.cancel(false);
+        }
+        if (null != process && process.isAlive()) {
+            log.warn("Kill FFmpeg process.");
+            process.destroyForcibly();
+        }
+    }
+}
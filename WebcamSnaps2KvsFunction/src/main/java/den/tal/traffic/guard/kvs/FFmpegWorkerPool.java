@@ -0,0 +1,145 @@
+package den.tal.traffic.guard.kvs;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps FFmpeg pipe workers started in advance, so a batch doesn't wait for FFmpeg process start and library loading.
+ * <p>
+ * A worker encodes one batch: FFmpeg finishes the MKV stream only when its stdin is closed, and stream parameters
+ * can't be reset in a running process. So a taken worker is not returned, a replacement is started in the background
+ * right away. Idle workers are checked periodically, the ones which exited are restarted. If there's no idle worker,
+ * a new one is started for the caller. Job timeout is up to the caller, see {@link FFmpegPipeEncoder#startJob(long)}.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class FFmpegWorkerPool implements Closeable {
+
+    private final Supplier<FFmpegPipeEncoder> workerFactory;
+    private final int size;
+    private final BlockingQueue<FFmpegPipeEncoder> idle;
+    private final ScheduledExecutorService maintainer;
+    private volatile boolean closed;
+
+    /**
+     * Batches which got an idle worker.
+     */
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Batches which had to start a worker.
+     */
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Idle workers which exited and were replaced.
+     */
+    @Getter
+    private final AtomicLong restarts = new AtomicLong();
+
+    /**
+     * @param workerFactory creates workers, not started.
+     * @param size number of idle workers.
+     * @param healthCheckIntervalInMillis how often idle workers are checked.
+     */
+    public FFmpegWorkerPool(Supplier<FFmpegPipeEncoder> workerFactory, int size, long healthCheckIntervalInMillis) {
+        this.workerFactory = workerFactory;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ffmpeg-pool");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.maintainer.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckIntervalInMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return started worker. The caller owns it and must close it.
+     */
+    public FFmpegPipeEncoder take() throws IOException {
+        if (closed) {
+            throw new IOException("FFmpeg worker pool is closed.");
+        }
+        for (FFmpegPipeEncoder worker = idle.poll(); null != worker; worker = idle.poll()) {
+            maintainer.execute(this::refill);
+            if (worker.isAlive()) {
+                hits.incrementAndGet();
+
+                return worker;
+            }
+            log.warn("Idle FFmpeg worker exited, start another one.");
+            restarts.incrementAndGet();
+            worker.close();
+        }
+        misses.incrementAndGet();
+        maintainer.execute(this::refill);
+        FFmpegPipeEncoder worker = workerFactory.get();
+        worker.start();
+
+        return worker;
+    }
+
+    public int getIdleWorkers() {
+
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        maintainer.shutdownNow();
+        for (FFmpegPipeEncoder worker = idle.poll(); null != worker; worker = idle.poll()) {
+            worker.close();
+        }
+    }
+
+    private void checkHealth() {
+        for (Iterator<FFmpegPipeEncoder> iter = idle.iterator(); iter.hasNext(); ) {
+            FFmpegPipeEncoder worker = iter.next();
+            if (!worker.isAlive()) {
+                log.warn("Idle FFmpeg worker exited, restart it.");
+                iter.remove();
+                restarts.incrementAndGet();
+                worker.close();
+            }
+        }
+        refill();
+    }
+
+    /**
+     * Runs on the maintainer thread only, so workers are never started over the pool size.
+     */
+    private void refill() {
+        while (!closed && idle.size() < size) {
+            FFmpegPipeEncoder worker = workerFactory.get();
+            try {
+                worker.start();
+            } catch (IOException ioex) {
+                log.warn("Could not start FFmpeg worker.", ioex);
+
+                return;
+            }
+            if (!idle.offer(worker) || closed) {
+                idle.remove(worker);
+                worker.close();
+            }
+        }
+    }
+}
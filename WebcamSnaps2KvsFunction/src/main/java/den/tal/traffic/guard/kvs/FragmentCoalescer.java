@@ -0,0 +1,299 @@
+package den.tal.traffic.guard.kvs;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merges small batches of a producer into one KVS fragment. Frames of consecutive batches of the same stream and
+ * producer are encoded by the same {@link JCodecMkvEncoder}, so only the first frame is a key frame and the merged
+ * batches make one MKV cluster, i.e. one fragment and one PutMedia append, instead of a fragment per batch.
+ * <p>
+ * A fragment is flushed when it has <code>maxFrames</code> frames or <code>maxBytes</code> bytes after a batch, or
+ * <code>maxDelayMillis</code> after its first batch, whichever comes first, and on {@link #close()}. Batches of a
+ * producer are encoded one at a time, batches of different producers run in parallel. Flushed fragments are sent by
+ * virtual threads, one after another per producer, so the request which completed a fragment doesn't wait for the
+ * upload. A flushed fragment is dropped from the coalescer, the next batch of the producer starts a new one.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class FragmentCoalescer implements Closeable {
+
+    /**
+     * Fragments are coalesced per stream and producer.
+     */
+    public record Key(String streamName, String producerId) {
+    }
+
+    /**
+     * Sends a flushed fragment.
+     */
+    @FunctionalInterface
+    public interface FragmentSender {
+
+        /**
+         * @param mkv complete MKV stream with one cluster.
+         * @param numOfFrames frames in the fragment.
+         */
+        void send(Key key, byte[] mkv, int numOfFrames) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Fragment which collects batches of a producer. Taken with {@link #open(Key)}, which locks it until
+     * {@link #close()}. Used once: after it's flushed, it's retired and no longer taken.
+     */
+    public class Fragment implements BatchEncoder, Closeable {
+
+        private final Key key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private ByteArrayOutputStream mkv;
+        private JCodecMkvEncoder encoder;
+        private ScheduledFuture<?> delayedFlush;
+        private boolean batchFinished;
+        private boolean retired;
+
+        private Fragment(Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public void encodeFrame(int ordinal, BufferedImage image) throws IOException {
+            encoder.encodeFrame(ordinal, image);
+        }
+
+        @Override
+        public boolean isTimingKnown() {
+
+            return encoder.isTimingKnown();
+        }
+
+        @Override
+        public void setTiming(long[] timestamps, float framerate) throws IOException {
+            encoder.setTiming(timestamps, framerate);
+        }
+
+        @Override
+        public void finishBatch(long[] timestamps, float framerate) throws IOException {
+            encoder.finishBatch(timestamps, framerate);
+            batchFinished = true;
+        }
+
+        /**
+         * Flushes the fragment if it's big enough and unlocks it, the fragment is sent in the background. Frames
+         * already encoded stay in the fragment even if the batch failed, the following frames depend on them.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!batchFinished) {
+                    encoder.finishBatch(null, 0);
+                }
+                if (encoder.getNumOfFrames() >= maxFrames || mkv.size() >= maxBytes) {
+                    flushLocked(this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void start() {
+            mkv = new ByteArrayOutputStream();
+            encoder = new JCodecMkvEncoder(mkv, width, height);
+            delayedFlush = flusher.schedule(() -> flushDelayed(this), maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Closes the MKV stream and retires the fragment, the next batch starts a new one. Runs under the lock.
+         *
+         * @return MKV stream or null if there's nothing to send.
+         */
+        private byte[] detach() throws IOException {
+            retired = true;
+            fragments.remove(key, this);
+            if (null == encoder) {
+
+                return null;
+            }
+            delayedFlush.cancel(false);
+            final int numOfFrames = encoder.getNumOfFrames();
+            try {
+                encoder.finish();
+            } finally {
+                encoder.close();
+                encoder = null;
+            }
+            byte[] flushed = mkv.toByteArray();
+            mkv = null;
+            flushes.incrementAndGet();
+
+            return numOfFrames > 0 ? flushed : null;
+        }
+    }
+
+    private final FragmentSender sender;
+    private final int width;
+    private final int height;
+    private final int maxFrames;
+    private final long maxBytes;
+    private final long maxDelayMillis;
+    private final ConcurrentMap<Key, Fragment> fragments = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+            .name("fragment-flush-", 0).factory());
+    /**
+     * The last fragment being sent of a producer, the next one is sent after it.
+     */
+    private final ConcurrentMap<Key, CompletableFuture<Void>> sending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Batches added to fragments.
+     */
+    @Getter
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Fragments flushed.
+     */
+    @Getter
+    private final AtomicLong flushes = new AtomicLong();
+
+    /**
+     * @param sender sends flushed fragments.
+     * @param maxFrames fragment is flushed after a batch which makes it this many frames or more.
+     * @param maxBytes fragment is flushed after a batch which makes it this many bytes or more.
+     * @param maxDelayMillis fragment is flushed this long after its first batch.
+     */
+    public FragmentCoalescer(FragmentSender sender, int width, int height, int maxFrames, long maxBytes,
+                             long maxDelayMillis) {
+        this.sender = sender;
+        this.width = width;
+        this.height = height;
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.maxDelayMillis = maxDelayMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fragment-flusher");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Takes the fragment of the producer for the next batch, waits while another batch of the producer is encoded.
+     *
+     * @return locked fragment, must be closed.
+     * @throws IOException if the coalescer is closed.
+     */
+    public Fragment open(Key key) throws IOException {
+        while (true) {
+            Fragment fragment = fragments.computeIfAbsent(key, Fragment::new);
+            fragment.lock.lock();
+            if (closed) {
+                fragment.lock.unlock();
+                throw new IOException("Fragment coalescer is closed.");
+            }
+            if (fragment.retired) {
+                // Flushed while this batch waited for it.
+                fragment.lock.unlock();
+
+                continue;
+            }
+            if (null == fragment.encoder) {
+                fragment.start();
+            } else {
+                fragment.encoder.startBatch();
+            }
+            fragment.batchFinished = false;
+            batches.incrementAndGet();
+
+            return fragment;
+        }
+    }
+
+    /**
+     * Flushes all fragments and waits until they're sent.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.shutdownNow();
+        for (Fragment fragment : fragments.values()) {
+            flush(fragment);
+        }
+        for (CompletableFuture<Void> last : List.copyOf(sending.values())) {
+            last.join();
+        }
+        senders.shutdown();
+    }
+
+    private void flushDelayed(Fragment fragment) {
+        if (!closed) {
+            // The batch which holds the fragment may take a while, the flusher doesn't wait for it.
+            senders.execute(() -> flush(fragment));
+        }
+    }
+
+    private void flush(Fragment fragment) {
+        fragment.lock.lock();
+        try {
+            flushLocked(fragment);
+        } catch (IOException ioex) {
+            log.error("Could not finish fragment of {}.", fragment.key, ioex);
+        } finally {
+            fragment.lock.unlock();
+        }
+    }
+
+    /**
+     * Detaches the fragment and queues it to be sent after the previous fragment of the producer. Does nothing if the
+     * fragment is already retired, e.g. a delayed flush which was due when a batch flushed the fragment by size. Runs
+     * under the lock of the fragment, so fragments are queued in the order they're flushed.
+     */
+    private void flushLocked(Fragment fragment) throws IOException {
+        if (fragment.retired) {
+
+            return;
+        }
+        final int numOfFrames = null == fragment.encoder ? 0 : fragment.encoder.getNumOfFrames();
+        final byte[] flushed = fragment.detach();
+        if (null == flushed) {
+
+            return;
+        }
+        final Key key = fragment.key;
+        CompletableFuture<Void> last = sending.compute(key, (k, previous) ->
+                (null == previous ? CompletableFuture.<Void>completedFuture(null) : previous)
+                        .thenRunAsync(() -> send(key, flushed, numOfFrames), senders));
+        last.whenComplete((ignored, ex) -> sending.remove(key, last));
+    }
+
+    private void send(Key key, byte[] mkv, int numOfFrames) {
+        log.debug("Flush fragment of {}. Frames: {}, bytes: {}", key, numOfFrames, mkv.length);
+        try {
+            sender.send(key, mkv, numOfFrames);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while sending a fragment of {}.", key, iex);
+        } catch (Exception ex) {
+            log.error("Could not send fragment of {}.", key, ex);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package den.tal.traffic.guard.kvs;
+
+import den.tal.traffic.guard.image.FrameBuffers;
+import den.tal.traffic.guard.image.ImageScaling;
+import den.tal.traffic.guard.image.Yuv420Converter;
+import den.tal.traffic.guard.kvs.utils.Utils;
+import lombok.extern.slf4j.Slf4j;
+import org.jcodec.codecs.h264.H264Encoder;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pure java encoder. Encodes frames with jcodec H.264 encoder and writes them to a Matroska stream with
+ * {@link MkvStreamWriter}.
+ * <p>
+ * Frame timecodes come from the client timestamps. Since the timestamps may follow the frames in the request body,
+ * encoded frames are held back (compressed) until {@link #setTiming(long[], float)} is called; after that frames are
+ * written as soon as they're encoded. Only the first frame of a batch is a key frame, so a batch makes one fragment,
+ * unless a frame is too far from it for a Matroska cluster, see {@link MkvStreamWriter#needsKeyFrame(long)}. Frames
+ * may be skipped, e.g. duplicates; the rest keep their own timestamps. Frames past the last timestamp are placed
+ * after it at the framerate.
+ * <p>
+ * Several batches may go to the same stream, see {@link #startBatch()}: the encoder state carries over, so frames of
+ * the next batch are not key frames and the stream still makes one fragment. Timecodes are on the wall clock of the
+ * stream: the first client timestamp is placed at the time its batch started and the rest follow it, batches with no
+ * timestamps are placed by the time they started. Client and wall clocks may drift apart, so a batch which would
+ * start before the last written frame is shifted to start right after it.
+ * <p>
+ * Frames are converted to the encoder color space by {@link Yuv420Converter}. Pictures, the converter and the output
+ * buffer are taken from {@link FrameBuffers} for the first frame and reused for the rest of the batch.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class JCodecMkvEncoder implements BatchEncoder, Closeable {
+
+    private static class EncodedFrame {
+
+        private final int ordinal;
+        private final byte[] data;
+        private final boolean keyFrame;
+
+        private EncodedFrame(int ordinal, byte[] data, boolean keyFrame) {
+            this.ordinal = ordinal;
+            this.data = data;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final H264Encoder encoder = H264Encoder.createH264Encoder();
+    private final MkvStreamWriter writer;
+    private final Deque<EncodedFrame> pending = new ArrayDeque<>();
+    private final ColorSpace encoderColorSpace = encoder.getSupportedColorSpaces()[0];
+    private Yuv420Converter yuvConverter;
+    private Picture picture;
+    private ByteBuffer buffer;
+    private final long streamStartMillis = System.currentTimeMillis();
+    private long batchStartMillis = streamStartMillis;
+    private long firstTimestamp = Long.MIN_VALUE;
+    /**
+     * Timecode of the first client timestamp.
+     */
+    private long firstTimestampMillis;
+    /**
+     * Timecode right after the last written frame.
+     */
+    private long nextTimecode;
+    /**
+     * Added to timecodes of the batch to keep it after the previous one, -1 until the first timecode of the batch.
+     */
+    private long batchShift = -1;
+    private long[] timestamps;
+    private float framerate;
+    private boolean timingKnown;
+    private int numOfFrames;
+
+    /**
+     * @param out MKV stream.
+     */
+    public JCodecMkvEncoder(OutputStream out, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.writer = new MkvStreamWriter(out, width, height);
+    }
+
+    @Override
+    public void encodeFrame(int ordinal, BufferedImage image) throws IOException {
+        log.debug("Encode frame #{}", ordinal);
+        if (null == picture) {
+            yuvConverter = FrameBuffers.takeYuvConverter(width);
+            picture = FrameBuffers.takePicture(width, height, encoderColorSpace);
+            buffer = FrameBuffers.takeByteBuffer(encoder.estimateBufferSize(picture));
+        }
+        if (image.getWidth() == width && image.getHeight() == height) {
+            yuvConverter.convert(image, picture);
+        } else {
+            BufferedImage scaled = ImageScaling.scale(image, FrameBuffers.takeImage(width, height,
+                    BufferedImage.TYPE_3BYTE_BGR));
+            yuvConverter.convert(scaled, picture);
+            FrameBuffers.giveBack(scaled);
+        }
+        buffer.clear();
+        final boolean keyFrame = numOfFrames == 0 || timingKnown && writer.needsKeyFrame(timecode(ordinal));
+        ByteBuffer data = keyFrame ? encoder.encodeIDRFrame(picture, buffer) : encoder.encodePFrame(picture, buffer);
+        if (timingKnown) {
+            write(data, timecode(ordinal), keyFrame);
+        } else {
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            pending.add(new EncodedFrame(ordinal, copy, keyFrame));
+        }
+        ++numOfFrames;
+    }
+
+    @Override
+    public void setTiming(long[] timestamps, float framerate) throws IOException {
+        this.timestamps = timestamps;
+        this.framerate = framerate;
+        this.timingKnown = true;
+        for (EncodedFrame frame = pending.poll(); null != frame; frame = pending.poll()) {
+            write(ByteBuffer.wrap(frame.data), timecode(frame.ordinal), frame.keyFrame);
+        }
+    }
+
+    @Override
+    public boolean isTimingKnown() {
+
+        return timingKnown;
+    }
+
+    /**
+     * Starts the next batch of the same stream. Timing of the previous batch must be set.
+     */
+    public void startBatch() {
+        timestamps = null;
+        timingKnown = false;
+        batchStartMillis = System.currentTimeMillis();
+        batchShift = -1;
+    }
+
+    /**
+     * Writes the rest of the frames of the batch, the stream stays open for the next batch.
+     */
+    @Override
+    public void finishBatch(long[] timestamps, float framerate) throws IOException {
+        if (!timingKnown || !pending.isEmpty()) {
+            setTiming(timestamps, framerate);
+        }
+    }
+
+    /**
+     * Closes the stream. Timing of the last batch must be set, see {@link #finishBatch(long[], float)}.
+     */
+    public void finish() throws IOException {
+        log.debug("Encoded {} frames.", numOfFrames);
+        writer.close();
+    }
+
+    public int getNumOfFrames() {
+
+        return numOfFrames;
+    }
+
+    /**
+     * Closes the stream and gives the buffers back.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != picture) {
+            FrameBuffers.giveBack(width, yuvConverter);
+            FrameBuffers.giveBack(picture);
+            FrameBuffers.giveBack(buffer);
+            yuvConverter = null;
+            picture = null;
+            buffer = null;
+        }
+        writer.close();
+    }
+
+    long timecode(int ordinal) {
+        final long timecode = unshiftedTimecode(ordinal);
+        if (batchShift < 0) {
+            batchShift = Math.max(0, nextTimecode - timecode);
+            if (batchShift > 0) {
+                log.debug("Batch is shifted by {} ms after the previous one.", batchShift);
+            }
+        }
+
+        return timecode + batchShift;
+    }
+
+    private long unshiftedTimecode(int ordinal) {
+        float rate = framerate > 0 ? framerate : Utils.DEFAULT_FRAME_RATE;
+        if (null != timestamps && timestamps.length > 0) {
+            if (firstTimestamp == Long.MIN_VALUE) {
+                firstTimestamp = timestamps[0];
+                firstTimestampMillis = batchStartMillis - streamStartMillis;
+            }
+            final int last = Math.min(ordinal, timestamps.length - 1);
+
+            return timestamps[last] - firstTimestamp + firstTimestampMillis + (long) ((ordinal - last) * 1000 / rate);
+        }
+
+        return batchStartMillis - streamStartMillis + (long) (ordinal * 1000 / rate);
+    }
+
+    private void write(ByteBuffer data, long timecode, boolean keyFrame) throws IOException {
+        writer.writeFrame(data, timecode, keyFrame);
+        nextTimecode = Math.max(nextTimecode, timecode + 1);
+    }
+}
@@ -0,0 +1,37 @@
+package den.tal.traffic.guard.kvs;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * PutMedia ack of type ERROR. Most of the codes are about the fragment or the stream, e.g. invalid MKV data or a
+ * stream which is not active, and the fragment fails the same way every time it's sent; a few are transient.
+ *
+ * @author Denis Talochkin
+ */
+public class KvsAckException extends IOException {
+
+    /**
+     * Codes of errors which may pass if the fragment is sent again.
+     */
+    private static final Set<String> TRANSIENT_ERRORS = Set.of("STREAM_READ_ERROR", "MAX_CONNECTION_DURATION_REACHED",
+            "KMS_KEY_UNAVAILABLE", "INTERNAL_ERROR", "ARCHIVAL_ERROR");
+
+    @Getter
+    private final String errorCode;
+
+    /**
+     * @param errorCode code of the ack event, e.g. <code>INVALID_MKV_DATA</code>.
+     */
+    public KvsAckException(String errorCode) {
+        super(String.format("KVS error %s.", errorCode));
+        this.errorCode = errorCode;
+    }
+
+    public boolean isTransient() {
+
+        return TRANSIENT_ERRORS.contains(errorCode);
+    }
+}
@@ -0,0 +1,316 @@
+package den.tal.traffic.guard.kvs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming Matroska writer for a single H.264 video track. Writes EBML header, Segment, Info, Tracks and
+ * Cluster/SimpleBlock elements straight to the output stream, frame by frame. Segment and clusters have unknown size,
+ * so nothing has to be buffered or rewritten afterwards, the output can be sent to KVS while it's being written.
+ * <p>
+ * Timecode scale is 1 ms. A new cluster (i.e. a new KVS fragment) starts at every key frame. Block timecodes are
+ * 16 bit relative to the cluster, so a frame more than 32.7 s after the cluster start has to be a key frame, see
+ * {@link #needsKeyFrame(long)}. Frames are passed in Annex B format, as produced by H.264 encoders; SPS and PPS of the
+ * first key frame become codec private data.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class MkvStreamWriter implements Closeable {
+
+    private static final int EBML = 0x1A45DFA3;
+    private static final int EBML_VERSION = 0x4286;
+    private static final int EBML_READ_VERSION = 0x42F7;
+    private static final int EBML_MAX_ID_LENGTH = 0x42F2;
+    private static final int EBML_MAX_SIZE_LENGTH = 0x42F3;
+    private static final int DOC_TYPE = 0x4282;
+    private static final int DOC_TYPE_VERSION = 0x4287;
+    private static final int DOC_TYPE_READ_VERSION = 0x4285;
+    static final int SEGMENT = 0x18538067;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMECODE_SCALE = 0x2AD7B1;
+    private static final int MUXING_APP = 0x4D80;
+    private static final int WRITING_APP = 0x5741;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int TRACK_UID = 0x73C5;
+    private static final int TRACK_TYPE = 0x83;
+    private static final int CODEC_ID = 0x86;
+    private static final int CODEC_PRIVATE = 0x63A2;
+    private static final int VIDEO = 0xE0;
+    private static final int PIXEL_WIDTH = 0xB0;
+    private static final int PIXEL_HEIGHT = 0xBA;
+    static final int CLUSTER = 0x1F43B675;
+    static final int CLUSTER_TIMECODE = 0xE7;
+    static final int SIMPLE_BLOCK = 0xA3;
+
+    static final byte[] UNKNOWN_SIZE = {0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+    private static final long NANOS_IN_MILLI = 1_000_000;
+    private static final int TRACK = 1;
+    private static final int VIDEO_TRACK_TYPE = 1;
+    private static final String AVC_CODEC_ID = "V_MPEG4/ISO/AVC";
+    private static final String APP_NAME = "traffic-guard";
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+    private static final int KEY_FRAME_FLAG = 0x80;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    /**
+     * Reused for every frame.
+     */
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private boolean headerWritten;
+    private boolean clusterOpen;
+    private long clusterTimecode;
+    private long lastTimecode = Long.MIN_VALUE;
+    private int numOfFrames;
+
+    public MkvStreamWriter(OutputStream out, int width, int height) {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Writes an encoded frame.
+     *
+     * @param annexBFrame H.264 access unit with start codes.
+     * @param timecodeMillis absolute timecode of the frame. Must not decrease, a smaller value is clamped.
+     * @param keyFrame whether the frame is an IDR frame.
+     * @throws IOException if the first frame is not a key frame or writing fails.
+     */
+    public void writeFrame(ByteBuffer annexBFrame, long timecodeMillis, boolean keyFrame) throws IOException {
+        List<ByteBuffer> nalUnits = splitAnnexB(annexBFrame);
+        if (!headerWritten) {
+            if (!keyFrame) {
+                throw new IOException("MKV stream must start with a key frame.");
+            }
+            writeHeader(nalUnits);
+        }
+        long timecode = Math.max(timecodeMillis, lastTimecode);
+        if (!keyFrame && needsKeyFrame(timecode)) {
+            // A cluster must start with a key frame, so the frame is kept in this one.
+            log.warn("Frame at {} ms doesn't fit the cluster at {} ms and is not a key frame.", timecode,
+                    clusterTimecode);
+            timecode = clusterTimecode + Short.MAX_VALUE;
+        }
+        if (!clusterOpen || keyFrame) {
+            startCluster(timecode);
+        }
+        lastTimecode = timecode;
+
+        block.reset();
+        block.write(0x80 | TRACK);
+        int relativeTimecode = (int) (timecode - clusterTimecode);
+        block.write(relativeTimecode >> 8);
+        block.write(relativeTimecode);
+        block.write(keyFrame ? KEY_FRAME_FLAG : 0);
+        for (ByteBuffer nalUnit : nalUnits) {
+            int type = nalUnit.get(nalUnit.position()) & 0x1F;
+            if (type == NAL_SPS || type == NAL_PPS || type == NAL_AUD) {
+
+                continue;
+            }
+            int length = nalUnit.remaining();
+            block.write(length >>> 24);
+            block.write(length >>> 16);
+            block.write(length >>> 8);
+            block.write(length);
+            block.write(nalUnit.array(), nalUnit.arrayOffset() + nalUnit.position(), length);
+        }
+        writeId(out, SIMPLE_BLOCK);
+        writeSize(out, block.size());
+        block.writeTo(out);
+        ++numOfFrames;
+    }
+
+    /**
+     * @param timecodeMillis absolute timecode of the next frame.
+     * @return whether the frame is too far from the start of the open cluster, so it has to start a new one.
+     */
+    public boolean needsKeyFrame(long timecodeMillis) {
+
+        return clusterOpen && Math.max(timecodeMillis, lastTimecode) - clusterTimecode > Short.MAX_VALUE;
+    }
+
+    public int getNumOfFrames() {
+
+        return numOfFrames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.debug("MKV stream finished. Frames: {}", numOfFrames);
+        out.close();
+    }
+
+    private void writeHeader(List<ByteBuffer> nalUnits) throws IOException {
+        ByteBuffer sps = null;
+        ByteBuffer pps = null;
+        for (ByteBuffer nalUnit : nalUnits) {
+            int type = nalUnit.get(nalUnit.position()) & 0x1F;
+            if (type == NAL_SPS && null == sps) {
+                sps = nalUnit;
+            } else if (type == NAL_PPS && null == pps) {
+                pps = nalUnit;
+            }
+        }
+        if (null == sps || null == pps) {
+            throw new IOException("First key frame contains no SPS/PPS.");
+        }
+
+        ByteArrayOutputStream ebml = new ByteArrayOutputStream();
+        writeUnsigned(ebml, EBML_VERSION, 1);
+        writeUnsigned(ebml, EBML_READ_VERSION, 1);
+        writeUnsigned(ebml, EBML_MAX_ID_LENGTH, 4);
+        writeUnsigned(ebml, EBML_MAX_SIZE_LENGTH, 8);
+        writeString(ebml, DOC_TYPE, "matroska");
+        writeUnsigned(ebml, DOC_TYPE_VERSION, 2);
+        writeUnsigned(ebml, DOC_TYPE_READ_VERSION, 2);
+        writeElement(out, EBML, ebml.toByteArray());
+
+        writeId(out, SEGMENT);
+        out.write(UNKNOWN_SIZE);
+
+        ByteArrayOutputStream info = new ByteArrayOutputStream();
+        writeUnsigned(info, TIMECODE_SCALE, NANOS_IN_MILLI);
+        writeString(info, MUXING_APP, APP_NAME);
+        writeString(info, WRITING_APP, APP_NAME);
+        writeElement(out, INFO, info.toByteArray());
+
+        ByteArrayOutputStream video = new ByteArrayOutputStream();
+        writeUnsigned(video, PIXEL_WIDTH, width);
+        writeUnsigned(video, PIXEL_HEIGHT, height);
+
+        ByteArrayOutputStream trackEntry = new ByteArrayOutputStream();
+        writeUnsigned(trackEntry, TRACK_NUMBER, TRACK);
+        writeUnsigned(trackEntry, TRACK_UID, TRACK);
+        writeUnsigned(trackEntry, TRACK_TYPE, VIDEO_TRACK_TYPE);
+        writeString(trackEntry, CODEC_ID, AVC_CODEC_ID);
+        writeElement(trackEntry, CODEC_PRIVATE, avcDecoderConfigurationRecord(sps, pps));
+        writeElement(trackEntry, VIDEO, video.toByteArray());
+
+        ByteArrayOutputStream tracks = new ByteArrayOutputStream();
+        writeElement(tracks, TRACK_ENTRY, trackEntry.toByteArray());
+        writeElement(out, TRACKS, tracks.toByteArray());
+        headerWritten = true;
+    }
+
+    private void startCluster(long timecode) throws IOException {
+        writeId(out, CLUSTER);
+        out.write(UNKNOWN_SIZE);
+        writeUnsigned(out, CLUSTER_TIMECODE, timecode);
+        clusterTimecode = timecode;
+        clusterOpen = true;
+    }
+
+    static byte[] avcDecoderConfigurationRecord(ByteBuffer sps, ByteBuffer pps) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(1);
+        record.write(sps.get(sps.position() + 1));
+        record.write(sps.get(sps.position() + 2));
+        record.write(sps.get(sps.position() + 3));
+        // 4 bytes NAL unit length.
+        record.write(0xFF);
+        // Single SPS.
+        record.write(0xE1);
+        record.write(sps.remaining() >> 8);
+        record.write(sps.remaining());
+        record.write(sps.array(), sps.arrayOffset() + sps.position(), sps.remaining());
+        // Single PPS.
+        record.write(1);
+        record.write(pps.remaining() >> 8);
+        record.write(pps.remaining());
+        record.write(pps.array(), pps.arrayOffset() + pps.position(), pps.remaining());
+
+        return record.toByteArray();
+    }
+
+    /**
+     * Splits Annex B byte stream into NAL units without start codes.
+     */
+    static List<ByteBuffer> splitAnnexB(ByteBuffer stream) {
+        List<ByteBuffer> nalUnits = new ArrayList<>();
+        byte[] data = stream.array();
+        int from = stream.arrayOffset() + stream.position();
+        int to = stream.arrayOffset() + stream.limit();
+        int nalStart = -1;
+        int i = from;
+        while (i + 2 < to) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if (nalStart >= 0) {
+                    int nalEnd = i;
+                    // Zero byte of a 4 byte start code belongs to the next start code.
+                    while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                        --nalEnd;
+                    }
+                    nalUnits.add(ByteBuffer.wrap(data, nalStart, nalEnd - nalStart).slice());
+                }
+                i += 3;
+                nalStart = i;
+            } else {
+                ++i;
+            }
+        }
+        if (nalStart >= 0 && nalStart < to) {
+            nalUnits.add(ByteBuffer.wrap(data, nalStart, to - nalStart).slice());
+        }
+
+        return nalUnits;
+    }
+
+    static void writeUnsigned(OutputStream os, int id, long value) throws IOException {
+        int length = 1;
+        while (length < 8 && (value >>> (8 * length)) != 0) {
+            ++length;
+        }
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            content[i] = (byte) (value >>> (8 * (length - 1 - i)));
+        }
+        writeElement(os, id, content);
+    }
+
+    private static void writeString(OutputStream os, int id, String value) throws IOException {
+        writeElement(os, id, value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void writeElement(OutputStream os, int id, byte[] content) throws IOException {
+        writeId(os, id);
+        writeSize(os, content.length);
+        os.write(content);
+    }
+
+    static void writeId(OutputStream os, int id) throws IOException {
+        // Element IDs keep their length marker, so they're written as is, without leading zero bytes.
+        int length = (id & 0xFF000000) != 0 ? 4 : (id & 0xFF0000) != 0 ? 3 : (id & 0xFF00) != 0 ? 2 : 1;
+        for (int i = length - 1; i >= 0; --i) {
+            os.write(id >>> (8 * i));
+        }
+    }
+
+    static void writeSize(OutputStream os, long size) throws IOException {
+        int length = 1;
+        // All ones value is reserved for unknown size.
+        while (length < 8 && size >= (1L << (7 * length)) - 1) {
+            ++length;
+        }
+        long value = size | (1L << (7 * length));
+        for (int i = length - 1; i >= 0; --i) {
+            os.write((int) (value >>> (8 * i)));
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package den.tal.traffic.guard.kvs;
+
+import com.amazonaws.services.kinesisvideo.PutMediaAckResponseHandler;
+import com.amazonaws.services.kinesisvideo.model.AckEvent;
+import com.amazonaws.services.kinesisvideo.model.AckEventType;
+import com.amazonaws.services.kinesisvideo.model.FragmentTimecodeType;
+import com.amazonaws.services.kinesisvideo.model.PutMediaRequest;
+import den.tal.traffic.guard.kvs.utils.KvsClientCache;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived PutMedia connection of a stream. MKV fragments are appended to a single open connection instead of
+ * opening a connection per fragment. Fragments are tracked through BUFFERING, RECEIVED and PERSISTED acks; when too
+ * many of them are not persisted yet, {@link #append(InputStream, long)} blocks.
+ * <p>
+ * The connection uses {@link FragmentTimecodeType#RELATIVE} timecodes with a fixed producer start timestamp. Appended
+ * fragments are encoded from timecode 0; their cluster timecodes are shifted while they're sent, see
+ * {@link TimecodeShiftingInputStream}, to the time they were appended, or to the end of the previous fragment if
+ * that's later. An appended MKV starts with a key frame; KVS makes a fragment of every cluster, so a long MKV, or one
+ * with more key frames, becomes several KVS fragments. Acks are matched to the MKV by the fragment timecode, and the
+ * MKV is received or persisted when all of its KVS fragments are. An MKV with no frames, e.g. of a failed encoder,
+ * fails without an ack. If the connection breaks, fragments in flight fail and the next append opens a new
+ * connection.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class PutMediaSession implements Closeable {
+
+    public enum FragmentState {
+        QUEUED, BUFFERING, RECEIVED, PERSISTED, FAILED
+    }
+
+    /**
+     * Fragment appended to the session.
+     */
+    public static class Fragment {
+
+        @Getter
+        private final long sequenceNumber;
+
+        /**
+         * Number of the first KVS fragment of the MKV.
+         */
+        @Getter
+        private volatile String fragmentNumber;
+
+        @Getter
+        private volatile FragmentState state = FragmentState.QUEUED;
+
+        @Getter
+        private final CompletableFuture<Fragment> received = new CompletableFuture<>();
+
+        @Getter
+        private final CompletableFuture<Fragment> persisted = new CompletableFuture<>();
+
+        private final InputStream mkv;
+
+        /**
+         * Time since the session started.
+         */
+        private final long appendedAtMillis;
+
+        /**
+         * KVS fragments of the MKV in the order they're buffered, and those of them received and persisted. Guarded
+         * by the fragment.
+         */
+        private final List<String> fragmentNumbers = new ArrayList<>();
+        private final Set<String> receivedNumbers = new HashSet<>();
+        private final Set<String> persistedNumbers = new HashSet<>();
+
+        /**
+         * Clusters of the MKV, i.e. KVS fragments to be acknowledged; -1 until the MKV is sent. Guarded by the
+         * fragment.
+         */
+        private int numOfClusters = -1;
+
+        /**
+         * Timecode the MKV is placed at, set when it starts being sent.
+         */
+        private long startTimecodeMillis;
+
+        private Fragment(long sequenceNumber, InputStream mkv, long appendedAtMillis) {
+            this.sequenceNumber = sequenceNumber;
+            this.mkv = mkv;
+            this.appendedAtMillis = appendedAtMillis;
+        }
+
+        /**
+         * @return numbers of KVS fragments of the MKV buffered so far.
+         */
+        public synchronized List<String> getFragmentNumbers() {
+
+            return new ArrayList<>(fragmentNumbers);
+        }
+
+        private synchronized void buffered(String number) {
+            if (fragmentNumbers.isEmpty()) {
+                fragmentNumber = number;
+                moveTo(FragmentState.BUFFERING);
+            }
+            fragmentNumbers.add(number);
+        }
+
+        private synchronized void acknowledged(String number, boolean persisted) {
+            receivedNumbers.add(number);
+            if (persisted) {
+                persistedNumbers.add(number);
+            }
+        }
+
+        private synchronized void sent(int clusters) {
+            numOfClusters = clusters;
+        }
+
+        /**
+         * @return RECEIVED or PERSISTED once all KVS fragments of the MKV are, null before.
+         */
+        private synchronized FragmentState progress() {
+            if (numOfClusters < 0) {
+
+                return null;
+            }
+            if (persistedNumbers.size() >= numOfClusters) {
+
+                return FragmentState.PERSISTED;
+            }
+
+            return receivedNumbers.size() >= numOfClusters ? FragmentState.RECEIVED : null;
+        }
+
+        /**
+         * Changes the state unless the fragment is already persisted or failed.
+         *
+         * @return whether the state changed.
+         */
+        private synchronized boolean moveTo(FragmentState next) {
+            if (FragmentState.PERSISTED == state || FragmentState.FAILED == state) {
+
+                return false;
+            }
+            state = next;
+
+            return true;
+        }
+
+        /**
+         * Waits until KVS confirms the fragment is received.
+         *
+         * @throws IOException if the fragment failed or wasn't acknowledged in time.
+         */
+        public void awaitReceived(long timeoutInMillis) throws IOException, InterruptedException {
+            try {
+                received.get(timeoutInMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException eex) {
+                throw new IOException(String.format("Fragment #%d failed.", sequenceNumber), eex.getCause());
+            } catch (TimeoutException tex) {
+                throw new IOException(String.format("Fragment #%d is not acknowledged in time. State: %s",
+                        sequenceNumber, state), tex);
+            }
+        }
+    }
+
+    /**
+     * Single PutMedia connection. Payload never ends until the connection is closed.
+     */
+    private class Connection implements PutMediaAckResponseHandler {
+
+        private final FragmentInputStream payload = new FragmentInputStream(this);
+        private final KvsClientCache.Lease clientLease;
+
+        /**
+         * Appended fragments which are not persisted or failed yet.
+         */
+        private final Set<Fragment> unfinished = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Fragments sent or being sent, by the timecode they start at. Timecodes of the fragments only grow, so the
+         * fragment of a KVS fragment is the one which starts at or before its timecode.
+         */
+        private final NavigableMap<Long, Fragment> byTimecode = new ConcurrentSkipListMap<>();
+
+        /**
+         * Fragments by numbers of their KVS fragments.
+         */
+        private final Map<String, Fragment> inFlight = new ConcurrentHashMap<>();
+        private volatile boolean broken;
+
+        private Connection(KvsClientCache.Lease clientLease) {
+            this.clientLease = clientLease;
+        }
+
+        private void append(Fragment fragment) {
+            unfinished.add(fragment);
+            payload.append(fragment);
+        }
+
+        /**
+         * Called by the PutMedia client when it starts reading the fragment.
+         *
+         * @return MKV of the fragment placed on the session timeline.
+         */
+        private TimecodeShiftingInputStream startSending(Fragment fragment) {
+            final long offset;
+            synchronized (PutMediaSession.this) {
+                offset = Math.max(fragment.appendedAtMillis, nextTimecodeMillis);
+            }
+            fragment.startTimecodeMillis = offset;
+            byTimecode.put(offset, fragment);
+            log.debug("Fragment #{} starts at {} ms.", fragment.sequenceNumber, offset);
+
+            return new TimecodeShiftingInputStream(fragment.mkv, offset);
+        }
+
+        /**
+         * Called by the PutMedia client when it has read the whole fragment.
+         */
+        private void finishSending(Fragment fragment, TimecodeShiftingInputStream mkv) {
+            if (mkv.getNumOfBlocks() == 0) {
+                // KVS never acks it.
+                fail(fragment, new IOException(String.format("Fragment #%d has no frames.", fragment.sequenceNumber)));
+
+                return;
+            }
+            synchronized (PutMediaSession.this) {
+                nextTimecodeMillis = Math.max(nextTimecodeMillis, mkv.getEndTimecodeMillis());
+            }
+            fragment.sent(mkv.getNumOfClusters());
+            // Acks of the first clusters may have come while the rest was being sent.
+            advance(fragment);
+        }
+
+        /**
+         * @return fragment which starts at or before the timecode, the oldest one sent if the timecode is unknown.
+         */
+        private Fragment sentAt(Long timecode) {
+            Map.Entry<Long, Fragment> entry = null == timecode ? byTimecode.firstEntry()
+                    : byTimecode.floorEntry(timecode);
+
+            return null == entry ? null : entry.getValue();
+        }
+
+        /**
+         * Completes the fragment once all of its KVS fragments are received or persisted.
+         */
+        private void advance(Fragment fragment) {
+            final FragmentState reached = fragment.progress();
+            if (FragmentState.PERSISTED == reached && fragment.moveTo(FragmentState.PERSISTED)) {
+                forget(fragment);
+                fragment.received.complete(fragment);
+                fragment.persisted.complete(fragment);
+                permits.release();
+            } else if (FragmentState.RECEIVED == reached && fragment.moveTo(FragmentState.RECEIVED)) {
+                fragment.received.complete(fragment);
+            }
+        }
+
+        @Override
+        public void onAckEvent(AckEvent event) {
+            log.debug("Fragment ack. {}", event);
+            AckEventType.Values type = event.getAckEventType().getEnumValue();
+            Fragment fragment;
+            switch (type) {
+                case BUFFERING:
+                    fragment = sentAt(event.getFragmentTimecode());
+                    if (null != fragment) {
+                        fragment.buffered(event.getFragmentNumber());
+                        inFlight.put(event.getFragmentNumber(), fragment);
+                    } else {
+                        log.warn("Unexpected fragment {} at {} ms.", event.getFragmentNumber(),
+                                event.getFragmentTimecode());
+                    }
+
+                    break;
+                case RECEIVED:
+                case PERSISTED:
+                    fragment = inFlight.get(event.getFragmentNumber());
+                    if (null != fragment) {
+                        fragment.acknowledged(event.getFragmentNumber(), AckEventType.Values.PERSISTED == type);
+                        advance(fragment);
+                    }
+
+                    break;
+                case ERROR:
+                    fragment = null == event.getFragmentNumber() ? null : inFlight.get(event.getFragmentNumber());
+                    if (null == fragment) {
+                        fragment = sentAt(event.getFragmentTimecode());
+                    }
+                    if (null == fragment) {
+                        fragment = sentAt(null);
+                    }
+                    if (null != fragment) {
+                        fail(fragment, new KvsAckException(String.valueOf(event.getErrorCode())));
+                    }
+
+                    break;
+                default:
+                    log.debug("Ack {} ignored.", type);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            log.error("PutMedia session failed.", t);
+            clientCache.invalidateOnFailure(region, streamName, t);
+            terminate(t);
+        }
+
+        @Override
+        public void onComplete() {
+            log.debug("PutMedia session completed.");
+            terminate(new IOException("PutMedia connection closed."));
+        }
+
+        private void terminate(Throwable cause) {
+            broken = true;
+            synchronized (PutMediaSession.this) {
+                if (connection == this) {
+                    connection = null;
+                }
+            }
+            payload.close();
+            clientLease.close();
+            unfinished.forEach(fragment -> fail(fragment, cause));
+        }
+
+        private void fail(Fragment fragment, Throwable cause) {
+            if (fragment.moveTo(FragmentState.FAILED)) {
+                forget(fragment);
+                fragment.received.completeExceptionally(cause);
+                fragment.persisted.completeExceptionally(cause);
+                permits.release();
+            }
+        }
+
+        /**
+         * Drops a persisted or failed fragment, later acks of it are ignored.
+         */
+        private void forget(Fragment fragment) {
+            unfinished.remove(fragment);
+            byTimecode.remove(fragment.startTimecodeMillis, fragment);
+            fragment.getFragmentNumbers().forEach(inFlight::remove);
+        }
+    }
+
+    private final String region;
+    private final String streamName;
+    private final KvsClientCache clientCache;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final Date producerStartTimestamp = new Date();
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong sequence = new AtomicLong();
+    private Connection connection;
+
+    /**
+     * End of the last fragment sent, relative to the producer start timestamp.
+     */
+    private long nextTimecodeMillis;
+
+    public PutMediaSession(String region, String streamName, KvsClientCache clientCache, int maxInFlight) {
+        this.region = region;
+        this.streamName = streamName;
+        this.clientCache = clientCache;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * @return timestamp the timecodes of all fragments of the session are relative to.
+     */
+    public Date getProducerStartTimestamp() {
+
+        return new Date(producerStartTimestamp.getTime());
+    }
+
+    /**
+     * Appends MKV to the stream. The method returns as soon as the fragment is queued, the stream is read by the
+     * PutMedia client in background.
+     *
+     * @param mkv MKV fragment with timecodes starting from 0. It's closed after it's sent.
+     * @param timeoutInMillis how long to wait for a free slot if too many fragments are unacknowledged.
+     * @return appended fragment.
+     * @throws IOException if there's no free slot in time.
+     */
+    public Fragment append(InputStream mkv, long timeoutInMillis) throws IOException, InterruptedException {
+        if (!permits.tryAcquire(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+            mkv.close();
+            throw new IOException("Too many unacknowledged fragments.");
+        }
+        Fragment fragment;
+        synchronized (this) {
+            fragment = new Fragment(sequence.incrementAndGet(), mkv,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            if (null == connection || connection.broken) {
+                try {
+                    connection = open();
+                } catch (RuntimeException rex) {
+                    permits.release();
+                    mkv.close();
+
+                    throw rex;
+                }
+            }
+            connection.append(fragment);
+        }
+        log.debug("Fragment #{} appended to PutMedia session.", fragment.sequenceNumber);
+
+        return fragment;
+    }
+
+    public int getNumOfUnacknowledged() {
+
+        return maxInFlight - permits.availablePermits();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (null != connection) {
+            connection.payload.finish();
+            connection = null;
+        }
+    }
+
+    private Connection open() {
+        log.debug("Open PutMedia session. Stream: {}", streamName);
+        Connection newConnection = new Connection(clientCache.acquire(region, streamName));
+        try {
+            newConnection.clientLease.getClient().putMedia(new PutMediaRequest()
+                    .withStreamName(streamName)
+                    .withFragmentTimecodeType(FragmentTimecodeType.RELATIVE)
+                    .withProducerStartTimestamp(producerStartTimestamp)
+                    .withPayload(newConnection.payload), newConnection);
+        } catch (RuntimeException rex) {
+            newConnection.clientLease.close();
+
+            throw rex;
+        }
+
+        return newConnection;
+    }
+
+    /**
+     * Concatenates appended fragments. Blocks while there's nothing to send.
+     */
+    private static class FragmentInputStream extends InputStream {
+
+        private static final Fragment END = new Fragment(0, InputStream.nullInputStream(), 0);
+
+        private final Connection connection;
+        private final BlockingQueue<Fragment> fragments = new LinkedBlockingQueue<>();
+        private Fragment currentFragment;
+        private TimecodeShiftingInputStream current;
+        private volatile boolean closed;
+
+        FragmentInputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        void append(Fragment fragment) {
+            fragments.add(fragment);
+        }
+
+        /**
+         * Ends the stream after already appended fragments are sent.
+         */
+        void finish() {
+            fragments.add(END);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!closed) {
+                if (null == current) {
+                    if (currentFragment != END) {
+                        try {
+                            currentFragment = fragments.take();
+                        } catch (InterruptedException iex) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting for a fragment.", iex);
+                        }
+                    }
+                    if (currentFragment == END) {
+
+                        return -1;
+                    }
+                    current = connection.startSending(currentFragment);
+                }
+                int read = current.read(b, off, len);
+                if (read != -1) {
+
+                    return read;
+                }
+                current.close();
+                connection.finishSending(currentFragment, current);
+                current = null;
+            }
+
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (Fragment fragment = fragments.poll(); null != fragment; fragment = fragments.poll()) {
+                closeQuietly(fragment.mkv);
+            }
+            if (null != current) {
+                closeQuietly(current);
+            }
+            // Wakes up the reader waiting for the next fragment.
+            fragments.add(END);
+        }
+
+        private static void closeQuietly(InputStream is) {
+            try {
+                is.close();
+            } catch (IOException ioex) {
+                log.warn("Could not close fragment stream.", ioex);
+            }
+        }
+    }
+}
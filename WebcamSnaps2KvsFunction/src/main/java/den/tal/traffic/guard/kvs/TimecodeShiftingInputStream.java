@@ -0,0 +1,285 @@
+package den.tal.traffic.guard.kvs;
+
+import den.tal.traffic.guard.kvs.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Shifts cluster timecodes of a Matroska stream while it's read. Fragments are encoded from timecode 0 and placed on
+ * the timeline of a {@link PutMediaSession} only when the session starts sending them, one after another, so
+ * fragments encoded concurrently never overlap or go back in time.
+ * <p>
+ * Elements are passed through as they are, except Cluster Timecode, the size of a cluster whose timecode gets longer
+ * and the Segment size, which becomes unknown. CRC-32 of a cluster is replaced with a Void element of the same size.
+ * Block timecodes are read to know where the fragment ends. Cues are not shifted, KVS doesn't use them. A stream which
+ * ends inside an element can't be sent on, reading it fails.
+ *
+ * @author Denis Talochkin
+ */
+class TimecodeShiftingInputStream extends InputStream {
+
+    private static final int BLOCK_GROUP = 0xA0;
+    private static final int BLOCK = 0xA1;
+    private static final int CRC_32 = 0xBF;
+    private static final int VOID = 0xEC;
+    private static final long UNKNOWN = -1;
+
+    private final InputStream in;
+    private final long offsetMillis;
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    private byte[] pending = new byte[0];
+    private int pendingPosition;
+    private long remainingPayload;
+    private long clusterTimecode;
+    private long firstTimecode = Long.MAX_VALUE;
+    private long lastTimecode = Long.MIN_VALUE;
+    private int numOfBlocks;
+    private int numOfClusters;
+
+    /**
+     * @param in MKV stream with timecodes starting from 0.
+     * @param offsetMillis added to cluster timecodes.
+     */
+    TimecodeShiftingInputStream(InputStream in, long offsetMillis) {
+        this.in = new BufferedInputStream(in);
+        this.offsetMillis = offsetMillis;
+    }
+
+    /**
+     * @return number of blocks read so far, i.e. frames.
+     */
+    int getNumOfBlocks() {
+
+        return numOfBlocks;
+    }
+
+    /**
+     * @return number of clusters read so far, KVS makes a fragment of each.
+     */
+    int getNumOfClusters() {
+
+        return numOfClusters;
+    }
+
+    /**
+     * @return shifted timecode right after the last block read so far, extrapolated by the average frame duration.
+     */
+    long getEndTimecodeMillis() {
+        if (numOfBlocks == 0) {
+
+            return offsetMillis;
+        }
+        final long frameDuration = numOfBlocks > 1 ? (lastTimecode - firstTimecode) / (numOfBlocks - 1)
+                : 1000 / Utils.DEFAULT_FRAME_RATE;
+
+        return lastTimecode + Math.max(1, frameDuration);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+
+            return 0;
+        }
+        while (pendingPosition == pending.length && remainingPayload == 0) {
+            if (!nextElement()) {
+
+                return -1;
+            }
+        }
+        if (pendingPosition < pending.length) {
+            final int read = Math.min(len, pending.length - pendingPosition);
+            System.arraycopy(pending, pendingPosition, b, off, read);
+            pendingPosition += read;
+
+            return read;
+        }
+        final int read = in.read(b, off, (int) Math.min(len, remainingPayload));
+        if (read == -1) {
+            throw new EOFException("MKV stream ends inside an element.");
+        }
+        remainingPayload -= read;
+
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads the header of the next element, and the part of its content which is changed or tracked.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean nextElement() throws IOException {
+        final int first = in.read();
+        if (first == -1) {
+
+            return false;
+        }
+        header.reset();
+        final int id = readId(first);
+        final ByteArrayOutputStream rawSize = new ByteArrayOutputStream();
+        final long size = readSize(rawSize);
+        switch (id) {
+            case MkvStreamWriter.SEGMENT:
+                // Sizes of clusters may change.
+                MkvStreamWriter.writeId(header, id);
+                header.write(MkvStreamWriter.UNKNOWN_SIZE);
+
+                break;
+            case MkvStreamWriter.CLUSTER:
+                readClusterHeader(size);
+
+                break;
+            case BLOCK_GROUP:
+                MkvStreamWriter.writeId(header, id);
+                rawSize.writeTo(header);
+
+                break;
+            case MkvStreamWriter.SIMPLE_BLOCK:
+            case BLOCK:
+                MkvStreamWriter.writeId(header, id);
+                rawSize.writeTo(header);
+                final int contentStart = header.size();
+                // Track number, then 16 bit timecode relative to the cluster.
+                readSize(header);
+                final int high = readByte();
+                final int low = readByte();
+                header.write(high);
+                header.write(low);
+                trackBlock(clusterTimecode + (short) ((high << 8) | low));
+                remainingPayload = knownSize(id, size) - (header.size() - contentStart);
+
+                break;
+            default:
+                MkvStreamWriter.writeId(header, id);
+                rawSize.writeTo(header);
+                remainingPayload = knownSize(id, size);
+        }
+        pending = header.toByteArray();
+        pendingPosition = 0;
+
+        return true;
+    }
+
+    /**
+     * Reads the cluster children up to Cluster Timecode and writes them with the shifted timecode.
+     */
+    private void readClusterHeader(long size) throws IOException {
+        final ByteArrayOutputStream preceding = new ByteArrayOutputStream();
+        while (true) {
+            final int id = readId(readByte());
+            final ByteArrayOutputStream rawSize = new ByteArrayOutputStream();
+            final long childSize = knownSize(id, readSize(rawSize));
+            if (MkvStreamWriter.CLUSTER_TIMECODE == id) {
+                long timecode = 0;
+                for (long i = 0; i < childSize; ++i) {
+                    timecode = (timecode << 8) | readByte();
+                }
+                clusterTimecode = timecode + offsetMillis;
+                ++numOfClusters;
+                final ByteArrayOutputStream shifted = new ByteArrayOutputStream();
+                MkvStreamWriter.writeUnsigned(shifted, MkvStreamWriter.CLUSTER_TIMECODE, clusterTimecode);
+
+                MkvStreamWriter.writeId(header, MkvStreamWriter.CLUSTER);
+                if (UNKNOWN == size) {
+                    header.write(MkvStreamWriter.UNKNOWN_SIZE);
+                } else {
+                    final long originalLength = 1 + rawSize.size() + childSize;
+                    MkvStreamWriter.writeSize(header, size - originalLength + shifted.size());
+                }
+                preceding.writeTo(header);
+                shifted.writeTo(header);
+
+                return;
+            }
+            // Checksum would not match the shifted timecode.
+            MkvStreamWriter.writeId(preceding, CRC_32 == id ? VOID : id);
+            rawSize.writeTo(preceding);
+            for (long i = 0; i < childSize; ++i) {
+                final int next = readByte();
+                preceding.write(CRC_32 == id ? 0 : next);
+            }
+        }
+    }
+
+    private void trackBlock(long timecode) {
+        firstTimecode = Math.min(firstTimecode, timecode);
+        lastTimecode = Math.max(lastTimecode, timecode);
+        ++numOfBlocks;
+    }
+
+    /**
+     * Element IDs keep their length marker.
+     */
+    private int readId(int first) throws IOException {
+        final int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (length > 4) {
+            throw new IOException(String.format("Invalid EBML element ID 0x%02X.", first));
+        }
+        int id = first;
+        for (int i = 1; i < length; ++i) {
+            id = (id << 8) | readByte();
+        }
+
+        return id;
+    }
+
+    /**
+     * Reads a variable size integer, e.g. element size.
+     *
+     * @param raw receives the bytes as they're read.
+     * @return value, {@link #UNKNOWN} if all of its bits are ones.
+     */
+    private long readSize(OutputStream raw) throws IOException {
+        final int first = readByte();
+        final int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (length > 8) {
+            throw new IOException("Invalid EBML size.");
+        }
+        raw.write(first);
+        final int mask = 0xFF >> length;
+        long value = first & mask;
+        boolean unknown = value == mask;
+        for (int i = 1; i < length; ++i) {
+            final int next = readByte();
+            raw.write(next);
+            value = (value << 8) | next;
+            unknown &= next == 0xFF;
+        }
+
+        return unknown ? UNKNOWN : value;
+    }
+
+    private int readByte() throws IOException {
+        final int next = in.read();
+        if (next == -1) {
+            throw new EOFException("MKV stream ends inside an element.");
+        }
+
+        return next;
+    }
+
+    private static long knownSize(int id, long size) throws IOException {
+        if (UNKNOWN == size) {
+            throw new IOException(String.format("Element 0x%X of unknown size is not supported.", id));
+        }
+
+        return size;
+    }
+}
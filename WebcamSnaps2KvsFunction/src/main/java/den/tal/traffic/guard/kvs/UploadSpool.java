@@ -0,0 +1,417 @@
+package den.tal.traffic.guard.kvs;
+
+import com.amazonaws.AmazonServiceException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Durable spool of encoded fragments. A fragment is appended before it's uploaded and marked done when KVS confirms
+ * it's persisted; if the upload fails, the fragment is uploaded again in the background with exponential backoff, so
+ * a KVS brown-out costs neither encoding work nor retries of the producers. Fragments left pending by a previous
+ * process are replayed when the spool is opened.
+ * <p>
+ * The spool is a directory of fixed-size segment files, memory-mapped and written append-only. A record is a header
+ * (state, length, producer start timestamp) followed by the MKV stream; the state is written last, so a record torn
+ * by a crash is never seen. The active segment rolls over when it's full, segments with no pending records are
+ * deleted, and when <code>maxSegments</code> segments are in use new fragments are not spooled.
+ * <p>
+ * Replays are sent on their own PutMedia connection with the producer start timestamp of the first attempt, so
+ * fragments keep their original server time. Failures which sending again can't fix, e.g. a missing stream, no access
+ * or invalid media, are not replayed: the fragment is dropped, see {@link #isRetryable(Throwable)}.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class UploadSpool implements Closeable {
+
+    /**
+     * Uploads a spooled fragment.
+     */
+    @FunctionalInterface
+    public interface Uploader {
+
+        /**
+         * @param producerStartMillis producer start timestamp the fragment timecodes are relative to.
+         * @return completes when the fragment is persisted, exceptionally if it failed.
+         */
+        CompletableFuture<?> upload(byte[] mkv, long producerStartMillis) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Fragment in the spool.
+     */
+    public static class Record {
+
+        private final Segment segment;
+        private final int position;
+
+        @Getter
+        private final int length;
+
+        @Getter
+        private final long producerStartMillis;
+
+        private int attempts;
+
+        private Record(Segment segment, int position, int length, long producerStartMillis) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.producerStartMillis = producerStartMillis;
+        }
+    }
+
+    private static class Segment {
+
+        private final long index;
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int pending;
+
+        private Segment(long index, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final int PENDING = 0x53504C31;
+    private static final int DONE = 0x444F4E45;
+    private static final int DROPPED = 0x44524F50;
+    private static final int HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    /**
+     * Error codes of HTTP 400 responses which mean the request was throttled.
+     */
+    private static final Set<String> THROTTLING_ERRORS = Set.of("ClientLimitExceededException",
+            "ConnectionLimitExceededException", "ThrottlingException");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Uploader uploader;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final ScheduledExecutorService replayer;
+    private volatile boolean closed;
+
+    /**
+     * Fragments appended.
+     */
+    @Getter
+    private final AtomicLong spooled = new AtomicLong();
+
+    /**
+     * Upload attempts after the first one.
+     */
+    @Getter
+    private final AtomicLong replays = new AtomicLong();
+
+    /**
+     * Fragments persisted by KVS.
+     */
+    @Getter
+    private final AtomicLong persisted = new AtomicLong();
+
+    /**
+     * Fragments dropped after a failure which is not worth a replay.
+     */
+    @Getter
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Opens the spool and schedules replay of the fragments left pending in the directory.
+     *
+     * @param segmentSize size of a segment file, the largest fragment which can be spooled is a bit smaller.
+     * @param maxSegments segment files in use at most.
+     * @param minBackoffMillis delay of the first replay, doubled for every next one.
+     * @param maxBackoffMillis longest delay between replays.
+     */
+    public UploadSpool(Path directory, int segmentSize, int maxSegments, Uploader uploader, long minBackoffMillis,
+                       long maxBackoffMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.uploader = uploader;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upload-spool");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        for (Record record : recover()) {
+            scheduleReplay(record);
+        }
+    }
+
+    /**
+     * Writes the fragment to the spool.
+     *
+     * @param producerStartMillis producer start timestamp the fragment timecodes are relative to.
+     * @throws IOException if the fragment doesn't fit into a segment or all segments are in use.
+     */
+    public synchronized Record append(byte[] mkv, long producerStartMillis) throws IOException {
+        if (closed) {
+            throw new IOException("Upload spool is closed.");
+        }
+        if (HEADER_SIZE + (long) mkv.length > segmentSize) {
+            throw new IOException(String.format("Fragment of %d bytes doesn't fit into a spool segment.",
+                    mkv.length));
+        }
+        Segment segment = segments.peekLast();
+        if (null == segment || segment.writePosition + HEADER_SIZE + mkv.length > segmentSize) {
+            if (null != segment && segment.pending == 0) {
+                delete(segments.pollLast());
+            }
+            if (segments.size() >= maxSegments) {
+                throw new IOException("Upload spool is full.");
+            }
+            segment = create(null == segment ? 0 : segment.index + 1);
+        }
+        final int position = segment.writePosition;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(position + 4, mkv.length);
+        buffer.putLong(position + 8, producerStartMillis);
+        buffer.put(position + HEADER_SIZE, mkv);
+        buffer.force(position + 4, HEADER_SIZE - 4 + mkv.length);
+        // The record becomes visible only when it's complete.
+        buffer.putInt(position, PENDING);
+        buffer.force(position, 4);
+        segment.writePosition += HEADER_SIZE + mkv.length;
+        ++segment.pending;
+        spooled.incrementAndGet();
+
+        return new Record(segment, position, mkv.length, producerStartMillis);
+    }
+
+    /**
+     * Marks the record done when the upload completes, or replays it if the upload fails.
+     */
+    public void track(Record record, CompletableFuture<?> upload) {
+        upload.whenComplete((result, failure) -> {
+            if (null == failure) {
+                markDone(record);
+            } else {
+                onFailure(record, failure);
+            }
+        });
+    }
+
+    /**
+     * @return false if sending the fragment again can't help: KVS rejected the fragment or the stream in an ack, or
+     * the request failed with a client error, e.g. the stream doesn't exist or access is denied. Throttling, errors of
+     * the service and network errors are transient.
+     */
+    public static boolean isRetryable(Throwable failure) {
+        for (Throwable t = failure; null != t; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof KvsAckException ack) {
+
+                return ack.isTransient();
+            }
+            if (t instanceof AmazonServiceException service) {
+                final int status = service.getStatusCode();
+
+                return status >= 500 || status == 429 || THROTTLING_ERRORS.contains(service.getErrorCode());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return records not persisted yet.
+     */
+    public synchronized int getPending() {
+
+        return segments.stream().mapToInt(segment -> segment.pending).sum();
+    }
+
+    /**
+     * Stops replaying. Pending records stay in the directory and are replayed by the next spool.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        replayer.shutdownNow();
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            try {
+                segment.channel.close();
+            } catch (IOException ioex) {
+                log.warn("Could not close spool segment {}.", segment.file, ioex);
+            }
+        }
+    }
+
+    void markDone(Record record) {
+        if (complete(record, DONE)) {
+            persisted.incrementAndGet();
+        }
+    }
+
+    private void onFailure(Record record, Throwable failure) {
+        if (isRetryable(failure)) {
+            log.warn("Upload of a spooled fragment failed, replay it. Attempt: {}", record.attempts + 1, failure);
+            scheduleReplay(record);
+        } else if (complete(record, DROPPED)) {
+            dropped.incrementAndGet();
+            log.error("Upload of a spooled fragment failed for good, drop it. Bytes: {}, attempt: {}",
+                    record.length, record.attempts + 1, failure);
+        }
+    }
+
+    /**
+     * Writes the final state of the record, so it's not replayed any more.
+     *
+     * @return false if the spool is closed.
+     */
+    private synchronized boolean complete(Record record, int state) {
+        if (closed) {
+
+            return false;
+        }
+        record.segment.buffer.putInt(record.position, state);
+        if (--record.segment.pending == 0 && record.segment != segments.peekLast()) {
+            segments.remove(record.segment);
+            delete(record.segment);
+        }
+
+        return true;
+    }
+
+    private void scheduleReplay(Record record) {
+        if (closed) {
+
+            return;
+        }
+        int attempt = record.attempts++;
+        long backoff = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(attempt, 20));
+        // Jitter keeps replays of many fragments from going out at the same moment.
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        replayer.schedule(() -> replay(record), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void replay(Record record) {
+        final byte[] mkv;
+        synchronized (this) {
+            if (closed) {
+
+                return;
+            }
+            mkv = new byte[record.length];
+            record.segment.buffer.get(record.position + HEADER_SIZE, mkv);
+        }
+        replays.incrementAndGet();
+        log.debug("Replay spooled fragment. Bytes: {}, attempt: {}", record.length, record.attempts + 1);
+        try {
+            track(record, uploader.upload(mkv, record.producerStartMillis));
+        } catch (IOException | RuntimeException ex) {
+            onFailure(record, ex);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Maps existing segments and collects their pending records.
+     */
+    private synchronized List<Record> recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted((a, b) -> Long.compare(index(a), index(b)))
+                    .toList();
+        }
+        List<Record> pending = new ArrayList<>();
+        for (Path file : files) {
+            Segment segment = map(index(file), file);
+            MappedByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (position + HEADER_SIZE <= segmentSize) {
+                int state = buffer.getInt(position);
+                int length = buffer.getInt(position + 4);
+                if ((state != PENDING && state != DONE && state != DROPPED) || length < 0
+                        || position + HEADER_SIZE + (long) length > segmentSize) {
+
+                    break;
+                }
+                if (state == PENDING) {
+                    pending.add(new Record(segment, position, length, buffer.getLong(position + 8)));
+                    ++segment.pending;
+                }
+                position += HEADER_SIZE + length;
+            }
+            segment.writePosition = position;
+            segments.add(segment);
+        }
+        // Only the last segment is appended to, the rest are kept while they have pending records.
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment.pending == 0 && segment != segments.peekLast()) {
+                segments.remove(segment);
+                delete(segment);
+            }
+        }
+        if (!pending.isEmpty()) {
+            log.info("Upload spool recovered {} pending fragments.", pending.size());
+        }
+
+        return pending;
+    }
+
+    private Segment create(long index) throws IOException {
+        Segment segment = map(index, directory.resolve(SEGMENT_PREFIX + index + SEGMENT_SUFFIX));
+        segments.addLast(segment);
+
+        return segment;
+    }
+
+    private Segment map(long index, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        return new Segment(index, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.file);
+        } catch (IOException ioex) {
+            log.warn("Could not delete spool segment {}.", segment.file, ioex);
+        }
+    }
+
+    private static long index(Path file) {
+        String name = file.getFileName().toString();
+
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,270 @@
+package den.tal.traffic.guard.kvs.utils;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoPutMedia;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps KVS data endpoints and PutMedia clients between warm invocations, so the <code>GetDataEndpoint</code> round
+ * trip and client construction are done once per region and stream. Entries expire after TTL and are dropped when
+ * PutMedia fails with an endpoint or connection error.
+ * <p>
+ * Clients are shared and handed out as {@link Lease}s. An expired or dropped entry is retired: new callers get a new
+ * client, and the old one is closed when the last lease of it is released, so uploads which are still running, e.g.
+ * of a {@link den.tal.traffic.guard.kvs.PutMediaSession}, are not broken by a TTL rollover.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class KvsClientCache {
+
+    /**
+     * Resolves PutMedia data endpoint of a stream.
+     */
+    @FunctionalInterface
+    public interface EndpointResolver {
+
+        String resolve(String region, String streamName);
+    }
+
+    /**
+     * Creates PutMedia client for the data endpoint.
+     */
+    @FunctionalInterface
+    public interface ClientFactory {
+
+        AmazonKinesisVideoPutMedia create(String region, String endpoint);
+    }
+
+    /**
+     * Shared client in use. Closing the lease releases the client, not closes it.
+     */
+    public static final class Lease implements Closeable {
+
+        private final Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public AmazonKinesisVideoPutMedia getClient() {
+
+            return entry.putMediaClient;
+        }
+
+        /**
+         * Releases the client, the first call only.
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                entry.release();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final String endpoint;
+        private final AmazonKinesisVideoPutMedia putMediaClient;
+        private final long expiresAtNanos;
+        /**
+         * Leases plus one while the entry is in the cache.
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Entry(String endpoint, AmazonKinesisVideoPutMedia putMediaClient, long expiresAtNanos) {
+            this.endpoint = endpoint;
+            this.putMediaClient = putMediaClient;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        /**
+         * @return false if the client is already closed or being closed.
+         */
+        private boolean retain() {
+            for (int count = references.get(); count > 0; count = references.get()) {
+                if (references.compareAndSet(count, count + 1)) {
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                // Usually released from the client's own callback thread, so close it asynchronously.
+                CompletableFuture.runAsync(this::close);
+            }
+        }
+
+        private void close() {
+            try {
+                putMediaClient.close();
+            } catch (Exception ex) {
+                log.warn("Could not close KVS PutMedia client.", ex);
+            }
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantLock> resolving = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final EndpointResolver endpointResolver;
+    private final ClientFactory clientFactory;
+    private final long ttlNanos;
+
+    public KvsClientCache(EndpointResolver endpointResolver, ClientFactory clientFactory, long ttlInSeconds) {
+        this.endpointResolver = endpointResolver;
+        this.clientFactory = clientFactory;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlInSeconds);
+    }
+
+    /**
+     * @return lease of the cached client, to be closed when the client is no longer used.
+     */
+    public Lease acquire(String region, String streamName) {
+        while (true) {
+            Entry entry = getEntry(region, streamName);
+            if (entry.retain()) {
+
+                return new Lease(entry);
+            }
+            // Retired and closed in between, the next lookup finds its successor.
+        }
+    }
+
+    public String getDataEndpoint(String region, String streamName) {
+
+        return getEntry(region, streamName).endpoint;
+    }
+
+    public void invalidate(String region, String streamName) {
+        Entry entry = entries.remove(key(region, streamName));
+        if (null != entry) {
+            invalidations.incrementAndGet();
+            log.debug("Invalidated KVS client. Region: {}, stream: {}", region, streamName);
+            entry.release();
+        }
+    }
+
+    /**
+     * Invalidates the cached client if PutMedia failed because the endpoint is unreachable or connection broke.
+     * Failures of the uploaded stream itself, e.g. a producer which stopped writing, keep the entry.
+     *
+     * @return true if the entry was invalidated.
+     */
+    public boolean invalidateOnFailure(String region, String streamName, Throwable failure) {
+        if (isEndpointFailure(failure)) {
+            invalidate(region, streamName);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    public long getHits() {
+
+        return hits.get();
+    }
+
+    public long getMisses() {
+
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+
+        return invalidations.get();
+    }
+
+    /**
+     * @return whether the failure is a connection error, or an SDK client error with no I/O error of the payload
+     * behind it.
+     */
+    static boolean isEndpointFailure(Throwable failure) {
+        boolean clientFailure = false;
+        for (Throwable t = failure; null != t; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof ConnectException || t instanceof UnknownHostException
+                    || t instanceof SocketTimeoutException) {
+
+                return true;
+            }
+            if (t instanceof IOException) {
+                // E.g. "Pipe closed" of a failed encoder.
+
+                return false;
+            }
+            clientFailure |= t instanceof SdkClientException;
+        }
+
+        return clientFailure;
+    }
+
+    /**
+     * Resolves and creates an entry on a miss. <code>GetDataEndpoint</code> is a network call, so it's made under a
+     * lock of the key rather than inside the map, and a failed call leaves the map as it is.
+     */
+    private Entry getEntry(String region, String streamName) {
+        final String key = key(region, streamName);
+        Entry entry = entries.get(key);
+        if (null != entry && System.nanoTime() - entry.expiresAtNanos < 0) {
+            hits.incrementAndGet();
+
+            return entry;
+        }
+        ReentrantLock lock = resolving.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            Entry current = entries.get(key);
+            if (null != current && System.nanoTime() - current.expiresAtNanos < 0) {
+                // Resolved by another caller meanwhile.
+                hits.incrementAndGet();
+
+                return current;
+            }
+            if (null != current) {
+                log.debug("KVS client expired. Region: {}, stream: {}", region, streamName);
+            }
+            misses.incrementAndGet();
+            String endpoint = endpointResolver.resolve(region, streamName);
+            log.debug("Resolved KVS data endpoint: {}", endpoint);
+            Entry resolved = new Entry(endpoint, clientFactory.create(region, endpoint),
+                    System.nanoTime() + ttlNanos);
+            // The map holds a reference of its entry, the one who takes the entry out of the map releases it.
+            Entry replaced = entries.put(key, resolved);
+            if (null != replaced) {
+                replaced.release();
+            }
+
+            return resolved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(String region, String streamName) {
+
+        return region + '/' + streamName;
+    }
+}
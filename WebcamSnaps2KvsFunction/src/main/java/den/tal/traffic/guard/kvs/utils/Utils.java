@@ -1,6 +1,7 @@
 package den.tal.traffic.guard.kvs.utils;
 
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.kinesisvideo.common.logging.LogLevel;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoAsyncClient;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoPutMedia;
@@ -12,6 +13,13 @@ import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
 import com.google.gson.Gson;
+import den.tal.traffic.guard.kvs.DeadlineController;
+import den.tal.traffic.guard.kvs.EncodingMode;
+import den.tal.traffic.guard.kvs.FFmpegPipeEncoder;
+import den.tal.traffic.guard.kvs.FFmpegWorkerPool;
+import den.tal.traffic.guard.kvs.PutMediaSession;
+import den.tal.traffic.guard.metrics.EmfLogSink;
+import den.tal.traffic.guard.metrics.MetricsSink;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.annotation.Nonnull;
@@ -20,6 +28,7 @@ import java.net.URI;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
@@ -28,13 +37,52 @@ import java.util.HashMap;
 @Slf4j
 public class Utils {
 
+    /**
+     * Frames are encoded while the request body is being read, so batch size is not known beforehand.
+     */
+    public static final int DEFAULT_FRAME_RATE = 5;
+
     private static final int CONNECTION_TIMEOUT_IN_MILLIS = 10_000;
+    private static final long DEFAULT_KVS_ENDPOINT_CACHE_TTL_IN_SECONDS = 300;
+    private static final int DEFAULT_PUT_MEDIA_MAX_IN_FLIGHT = 5;
+    private static final String DEFAULT_METRICS_NAMESPACE = "TrafficGuard";
+    private static final int DEFAULT_FFMPEG_WORKERS = 1;
+    private static final long DEFAULT_FFMPEG_JOB_TIMEOUT_IN_MILLIS = 20_000;
+    private static final long FFMPEG_HEALTH_CHECK_INTERVAL_IN_MILLIS = 5_000;
+    private static final int DEFAULT_COALESCE_MAX_FRAMES = 100;
+    private static final long DEFAULT_COALESCE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_COALESCE_MAX_DELAY_IN_MILLIS = 2_000;
+    private static final long DEFAULT_UPLOAD_SPOOL_SIZE = 128 * 1024 * 1024;
+    private static final int UPLOAD_SPOOL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_UPLOAD_SPOOL_MIN_BACKOFF_IN_MILLIS = 500;
+    private static final long DEFAULT_UPLOAD_SPOOL_MAX_BACKOFF_IN_MILLIS = 30_000;
+    private static final long DEFAULT_DEADLINE_MARGIN_IN_MILLIS = 2_000;
+    private static final int DEFAULT_MAX_FRAME_THINNING = 4;
+
+    private static class KvsClientCacheHolder {
+
+        private static final KvsClientCache INSTANCE = new KvsClientCache(Utils::resolveDataEndpoint,
+                Utils::createKvsPutMediaClient, getKvsEndpointCacheTtl());
+    }
+
+    private static class FFmpegWorkerPoolHolder {
+
+        private static final FFmpegWorkerPool INSTANCE = new FFmpegWorkerPool(() -> new FFmpegPipeEncoder(
+                getPath2ffmpeg(), getWidth(), getHeight(), DEFAULT_FRAME_RATE), getFFmpegWorkers(),
+                FFMPEG_HEALTH_CHECK_INTERVAL_IN_MILLIS);
+    }
+
+    private static class PutMediaSessionHolder {
+
+        private static final PutMediaSession INSTANCE = new PutMediaSession(getRegion(), getKvsName(),
+                getKvsClientCache(), getPutMediaMaxInFlight());
+    }
 
     public static APIGatewayProxyResponseEvent getResponse(int status, String body) {
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
         response.setIsBase64Encoded(false);
         HashMap<String, String> headers = new HashMap<>();
-        headers.put("Access-Control-Allow-Headers", "Content-Type");
+        headers.put("Access-Control-Allow-Headers", "Content-Type,X-Producer-Id");
         headers.put("Access-Control-Allow-Origin", "*");
         headers.put("Access-Control-Allow-Methods", "OPTIONS,POST");
         response.setHeaders(headers);
@@ -94,6 +142,12 @@ public class Utils {
         return path;
     }
 
+    public static EncodingMode getEncodingMode() {
+        final String mode = System.getenv().get("EncodingMode");
+
+        return null == mode ? EncodingMode.FFMPEG : EncodingMode.valueOf(mode.toUpperCase());
+    }
+
     public static int getWidth() {
         final int width = Integer.parseInt(System.getenv().get("videoWidth"));
 
@@ -112,17 +166,274 @@ public class Utils {
         return "Prod".equals(environment);
     }
 
-    public static AmazonKinesisVideoPutMedia getKvsPutMediaClient(String awsRegion, String kvsName) {
-        var kvsClient = AmazonKinesisVideoAsyncClient.asyncBuilder()
-                .withRegion(awsRegion)
-                .withCredentials(DefaultAWSCredentialsProviderChain.getInstance())
-                .build();
+    public static String getKvsEndpointOverride() {
+
+        return System.getenv().get("KVSEndpoint");
+    }
+
+    public static long getKvsEndpointCacheTtl() {
+        final String ttl = System.getenv().get("KVSEndpointCacheTTL");
+
+        return null == ttl ? DEFAULT_KVS_ENDPOINT_CACHE_TTL_IN_SECONDS : Long.parseLong(ttl);
+    }
+
+    /**
+     * @return number of frames decoded in parallel. Defaults to the number of available processors.
+     */
+    public static int getDecodeParallelism() {
+        final String parallelism = System.getenv().get("DecodeParallelism");
+
+        return null == parallelism ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(parallelism);
+    }
+
+    /**
+     * @return how many requests may encode video at the same time, the rest wait for a free slot.
+     */
+    public static int getMaxConcurrentEncodings() {
+        final String maxEncodings = System.getenv().get("MaxConcurrentEncodings");
+
+        return null == maxEncodings ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(maxEncodings);
+    }
+
+    /**
+     * @return true if the handler warms up the frame path and the KVS client when it's created, i.e. at init time.
+     */
+    public static boolean isPrimingEnabled() {
+        final String priming = System.getenv().get("Priming");
+
+        return null == priming || Boolean.parseBoolean(priming);
+    }
+
+    /**
+     * @return port of the standalone server.
+     */
+    public static int getServerPort() {
+        final String port = System.getenv().get("ServerPort");
+
+        return null == port ? 8080 : Integer.parseInt(port);
+    }
+
+    /**
+     * @return true if JPEG frames which already fit the video are passed to FFmpeg without re-encoding.
+     */
+    public static boolean isJpegPassthrough() {
+        final String passthrough = System.getenv().get("JpegPassthrough");
+
+        return null == passthrough || Boolean.parseBoolean(passthrough);
+    }
+
+    /**
+     * @return true if images bigger than the video are subsampled while being decoded.
+     */
+    public static boolean isSubsampledDecoding() {
+        final String subsampled = System.getenv().get("SubsampledDecoding");
+
+        return null == subsampled || Boolean.parseBoolean(subsampled);
+    }
+
+    /**
+     * @return mean luma difference (0..1) below which a frame is a duplicate of the last kept one. 0 turns
+     * deduplication off.
+     */
+    public static double getDedupThreshold() {
+        final String threshold = System.getenv().get("DedupThreshold");
+
+        return null == threshold ? 0 : Double.parseDouble(threshold);
+    }
+
+    /**
+     * @return number of FFmpeg workers started in advance for FFmpeg pipe mode, 0 turns the pool off.
+     */
+    public static int getFFmpegWorkers() {
+        final String workers = System.getenv().get("FFmpegWorkers");
+
+        return null == workers ? DEFAULT_FFMPEG_WORKERS : Integer.parseInt(workers);
+    }
+
+    /**
+     * @return time after which an FFmpeg job is killed.
+     */
+    public static long getFFmpegJobTimeout() {
+        final String timeout = System.getenv().get("FFmpegJobTimeout");
+
+        return null == timeout ? DEFAULT_FFMPEG_JOB_TIMEOUT_IN_MILLIS : Long.parseLong(timeout);
+    }
+
+    public static FFmpegWorkerPool getFFmpegWorkerPool() {
+
+        return FFmpegWorkerPoolHolder.INSTANCE;
+    }
+
+    /**
+     * @return whether small batches of a producer are merged into one fragment, JCodec encoding mode only.
+     */
+    public static boolean isFragmentCoalescing() {
+
+        return Boolean.parseBoolean(System.getenv().get("CoalesceFragments"));
+    }
+
+    public static int getCoalesceMaxFrames() {
+        final String maxFrames = System.getenv().get("CoalesceMaxFrames");
+
+        return null == maxFrames ? DEFAULT_COALESCE_MAX_FRAMES : Integer.parseInt(maxFrames);
+    }
+
+    public static long getCoalesceMaxBytes() {
+        final String maxBytes = System.getenv().get("CoalesceMaxBytes");
 
-        var endpoint = kvsClient.getDataEndpoint(new GetDataEndpointRequest()
-                .withAPIName("PUT_MEDIA").withStreamName(kvsName)).getDataEndpoint();
+        return null == maxBytes ? DEFAULT_COALESCE_MAX_BYTES : Long.parseLong(maxBytes);
+    }
+
+    /**
+     * @return how long the first batch of a fragment may wait for the next ones, in milliseconds.
+     */
+    public static long getCoalesceMaxDelay() {
+        final String maxDelay = System.getenv().get("CoalesceMaxDelay");
+
+        return null == maxDelay ? DEFAULT_COALESCE_MAX_DELAY_IN_MILLIS : Long.parseLong(maxDelay);
+    }
+
+    /**
+     * @return directory of the upload spool, e.g. under /tmp, or null if fragments are not spooled.
+     */
+    public static Path getUploadSpoolDirectory() {
+        final String directory = System.getenv().get("UploadSpool");
+
+        return null == directory || directory.isBlank() ? null : Paths.get(directory);
+    }
+
+    /**
+     * @return disk space the upload spool may take. Spooled fragments are memory-mapped, so it's page cache too.
+     */
+    public static long getUploadSpoolSize() {
+        final String size = System.getenv().get("UploadSpoolSize");
+
+        return null == size ? DEFAULT_UPLOAD_SPOOL_SIZE : Long.parseLong(size);
+    }
+
+    public static int getUploadSpoolSegmentSize() {
+
+        return (int) Math.min(UPLOAD_SPOOL_SEGMENT_SIZE, getUploadSpoolSize());
+    }
+
+    /**
+     * @return delay of the first replay of a failed upload, doubled for every next one.
+     */
+    public static long getUploadSpoolMinBackoff() {
+        final String backoff = System.getenv().get("UploadSpoolMinBackoff");
+
+        return null == backoff ? DEFAULT_UPLOAD_SPOOL_MIN_BACKOFF_IN_MILLIS : Long.parseLong(backoff);
+    }
+
+    public static long getUploadSpoolMaxBackoff() {
+        final String backoff = System.getenv().get("UploadSpoolMaxBackoff");
+
+        return null == backoff ? DEFAULT_UPLOAD_SPOOL_MAX_BACKOFF_IN_MILLIS : Long.parseLong(backoff);
+    }
+
+    /**
+     * @return time a batch may take, in milliseconds, 0 if only the lambda deadline counts. Batches which are predicted
+     * to take longer are encoded faster at lower quality, see {@link DeadlineController}.
+     */
+    public static long getLatencyTarget() {
+        final String target = System.getenv().get("LatencyTarget");
+
+        return null == target ? 0 : Long.parseLong(target);
+    }
+
+    /**
+     * @return time kept before the lambda deadline, in milliseconds.
+     */
+    public static long getDeadlineMargin() {
+        final String margin = System.getenv().get("DeadlineMargin");
+
+        return null == margin ? DEFAULT_DEADLINE_MARGIN_IN_MILLIS : Long.parseLong(margin);
+    }
+
+    /**
+     * @return the most a batch may be thinned out to meet the deadline: every n-th frame is kept, 1 never drops frames.
+     */
+    public static int getMaxFrameThinning() {
+        final String thinning = System.getenv().get("MaxFrameThinning");
+
+        return null == thinning ? DEFAULT_MAX_FRAME_THINNING : Integer.parseInt(thinning);
+    }
 
-        final var uri = URI.create(endpoint + "/putMedia");
+    public static boolean isPersistentPutMedia() {
+
+        return Boolean.parseBoolean(System.getenv().get("PersistentPutMedia"));
+    }
+
+    public static int getPutMediaMaxInFlight() {
+        final String maxInFlight = System.getenv().get("PutMediaMaxInFlight");
+
+        return null == maxInFlight ? DEFAULT_PUT_MEDIA_MAX_IN_FLIGHT : Integer.parseInt(maxInFlight);
+    }
+
+    public static PutMediaSession getPutMediaSession() {
+
+        return PutMediaSessionHolder.INSTANCE;
+    }
+
+    /**
+     * @return sink writing metrics in CloudWatch Embedded Metric Format to stdout, or a sink doing nothing if metrics
+     * are disabled.
+     */
+    public static MetricsSink getMetricsSink() {
+        if (!Boolean.parseBoolean(System.getenv().getOrDefault("MetricsEnabled", "true"))) {
+
+            return metrics -> {};
+        }
+        final String namespace = System.getenv().get("MetricsNamespace");
+
+        return new EmfLogSink(null == namespace ? DEFAULT_METRICS_NAMESPACE : namespace);
+    }
+
+    public static KvsClientCache getKvsClientCache() {
+
+        return KvsClientCacheHolder.INSTANCE;
+    }
+
+    /**
+     * Returns PutMedia client from the cache. The client is shared between invocations: close the lease, not the
+     * client, once the upload is done.
+     */
+    public static KvsClientCache.Lease acquireKvsPutMediaClient(String awsRegion, String kvsName) {
+
+        return getKvsClientCache().acquire(awsRegion, kvsName);
+    }
+
+    public static String resolveDataEndpoint(String awsRegion, String kvsName) {
+
+        return resolveDataEndpoint(awsRegion, kvsName, getKvsEndpointOverride());
+    }
+
+    /**
+     * Calls <code>GetDataEndpoint</code>.
+     *
+     * @param controlPlaneEndpoint KVS control plane endpoint. If null, the regional endpoint is used.
+     */
+    public static String resolveDataEndpoint(String awsRegion, String kvsName, String controlPlaneEndpoint) {
+        var builder = AmazonKinesisVideoAsyncClient.asyncBuilder()
+                .withCredentials(DefaultAWSCredentialsProviderChain.getInstance());
+
+        if (null == controlPlaneEndpoint) {
+            builder.withRegion(awsRegion);
+        } else {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(controlPlaneEndpoint,
+                    awsRegion));
+        }
+        var kvsClient = builder.build();
+        try {
+
+            return kvsClient.getDataEndpoint(new GetDataEndpointRequest()
+                    .withAPIName("PUT_MEDIA").withStreamName(kvsName)).getDataEndpoint();
+        } finally {
+            kvsClient.shutdown();
+        }
+    }
 
+    public static AmazonKinesisVideoPutMedia createKvsPutMediaClient(String awsRegion, String endpoint) {
         var putMediaClient = AmazonKinesisVideoPutMediaClient.builder()
                 .withRegion(awsRegion)
                 .withEndpoint(URI.create(endpoint))
@@ -0,0 +1,72 @@
+package den.tal.traffic.guard.metrics;
+
+import lombok.Getter;
+
+/**
+ * Counted values of an invocation.
+ *
+ * @author Denis Talochkin
+ */
+public enum Counter {
+
+    FRAMES_IN("FramesIn", "Count"),
+
+    /**
+     * Decoded frame bytes, before any processing.
+     */
+    BYTES_IN("BytesIn", "Bytes"),
+
+    /**
+     * JPEG frames sent to the encoder without re-encoding.
+     */
+    FRAMES_PASSED_THROUGH("FramesPassedThrough", "Count"),
+
+    /**
+     * Near-duplicate frames dropped, or replaced with the previous frame for FFmpeg.
+     */
+    FRAMES_DEDUPLICATED("FramesDeduplicated", "Count"),
+
+    /**
+     * MKV bytes uploaded to KVS.
+     */
+    BYTES_OUT("BytesOut", "Bytes"),
+
+    /**
+     * Spooled fragments uploaded again after a failed upload.
+     */
+    FRAGMENTS_REPLAYED("FragmentsReplayed", "Count"),
+
+    /**
+     * Frames dropped to meet the deadline, see <code>EncodingPlan</code>. FFmpeg gets the previous frame instead.
+     */
+    FRAMES_THINNED("FramesThinned", "Count"),
+
+    /**
+     * Degradation level the batch was encoded at, 0 is full quality.
+     */
+    ENCODING_LEVEL("EncodingLevel", "None"),
+
+    /**
+     * Invocation time predicted by the deadline controller, 0 if there was no estimate.
+     */
+    PREDICTED_TIME("PredictedTime", "Milliseconds"),
+
+    /**
+     * Time the batch was allowed to take, 0 if unlimited.
+     */
+    TIME_BUDGET("TimeBudget", "Milliseconds");
+
+    @Getter
+    private final String metricName;
+
+    /**
+     * CloudWatch unit.
+     */
+    @Getter
+    private final String unit;
+
+    Counter(String metricName, String unit) {
+        this.metricName = metricName;
+        this.unit = unit;
+    }
+}
@@ -0,0 +1,40 @@
+package den.tal.traffic.guard.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts bytes read from the stream into {@link Counter#BYTES_OUT}.
+ *
+ * @author Denis Talochkin
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private final InvocationMetrics metrics;
+
+    public CountingInputStream(InputStream in, InvocationMetrics metrics) {
+        super(in);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            metrics.count(Counter.BYTES_OUT, 1);
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            metrics.count(Counter.BYTES_OUT, n);
+        }
+
+        return n;
+    }
+}
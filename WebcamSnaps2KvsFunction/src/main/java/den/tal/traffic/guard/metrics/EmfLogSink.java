@@ -0,0 +1,113 @@
+package den.tal.traffic.guard.metrics;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes metrics as a single line in CloudWatch Embedded Metric Format. Lambda sends stdout to CloudWatch Logs, which
+ * extracts the metrics, so no API call is made. The line goes straight to stdout, not through the logger, since the
+ * log layout would break the JSON.
+ *
+ * @author Denis Talochkin
+ */
+public class EmfLogSink implements MetricsSink {
+
+    private final String namespace;
+    private final PrintStream out;
+
+    public EmfLogSink(String namespace) {
+        this(namespace, System.out);
+    }
+
+    public EmfLogSink(String namespace, PrintStream out) {
+        this.namespace = namespace;
+        this.out = out;
+    }
+
+    @Override
+    public void emit(InvocationMetrics metrics) {
+        out.println(format(metrics));
+    }
+
+    public String format(InvocationMetrics metrics) {
+        Map<String, String> dimensions = metrics.getDimensions();
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"_aws\":{\"Timestamp\":").append(metrics.getTimestamp())
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        appendString(json, namespace);
+        json.append(",\"Dimensions\":[[");
+        boolean first = true;
+        for (String dimension : dimensions.keySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            appendString(json, dimension);
+            first = false;
+        }
+        json.append("]],\"Metrics\":[");
+        first = true;
+        for (Stage stage : Stage.values()) {
+            first = appendDefinition(json, stage.getMetricName(), "Milliseconds", first);
+        }
+        for (Counter counter : Counter.values()) {
+            first = appendDefinition(json, counter.getMetricName(), counter.getUnit(), first);
+        }
+        json.append("]}]}");
+
+        for (Map.Entry<String, String> dimension : dimensions.entrySet()) {
+            appendProperty(json, dimension.getKey(), dimension.getValue());
+        }
+        for (Map.Entry<String, String> property : metrics.getProperties().entrySet()) {
+            appendProperty(json, property.getKey(), property.getValue());
+        }
+        for (Stage stage : Stage.values()) {
+            json.append(',');
+            appendString(json, stage.getMetricName());
+            json.append(':').append(String.format(Locale.ROOT, "%.3f", metrics.getMillis(stage)));
+        }
+        for (Counter counter : Counter.values()) {
+            json.append(',');
+            appendString(json, counter.getMetricName());
+            json.append(':').append(metrics.getCount(counter));
+        }
+        json.append('}');
+
+        return json.toString();
+    }
+
+    private static boolean appendDefinition(StringBuilder json, String name, String unit, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append("{\"Name\":");
+        appendString(json, name);
+        json.append(",\"Unit\":");
+        appendString(json, unit);
+        json.append('}');
+
+        return false;
+    }
+
+    private static void appendProperty(StringBuilder json, String name, String value) {
+        json.append(',');
+        appendString(json, name);
+        json.append(':');
+        appendString(json, value);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
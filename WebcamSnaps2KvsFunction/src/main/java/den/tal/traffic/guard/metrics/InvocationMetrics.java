@@ -0,0 +1,99 @@
+package den.tal.traffic.guard.metrics;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stage timings and counters of a single invocation. Cheap enough to be updated per frame: timings are taken with
+ * {@link System#nanoTime()} and accumulated in atomic arrays, so stages can be recorded from any thread.
+ * <pre>
+ *     long start = metrics.start();
+ *     ...
+ *     metrics.record(Stage.IMAGE_DECODE, start);
+ * </pre>
+ *
+ * @author Denis Talochkin
+ */
+public class InvocationMetrics {
+
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final Map<String, String> dimensions = new LinkedHashMap<>();
+    private final Map<String, String> properties = new LinkedHashMap<>();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Wall clock time of the invocation start, in milliseconds.
+     */
+    @Getter
+    private final long timestamp = System.currentTimeMillis();
+
+    /**
+     * @return current value of the monotonic timer, to be passed to {@link #record(Stage, long)}.
+     */
+    public long start() {
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time passed since <code>startNanos</code> to the stage.
+     */
+    public void record(Stage stage, long startNanos) {
+        stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - startNanos);
+    }
+
+    public void add(Stage stage, long nanos) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    public void count(Counter counter, long value) {
+        counters.addAndGet(counter.ordinal(), value);
+    }
+
+    /**
+     * Sets {@link Stage#TOTAL} to the time since the metrics were created.
+     */
+    public void finish() {
+        stageNanos.set(Stage.TOTAL.ordinal(), System.nanoTime() - startNanos);
+    }
+
+    public double getMillis(Stage stage) {
+
+        return stageNanos.get(stage.ordinal()) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public long getCount(Counter counter) {
+
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Metrics are aggregated by dimensions, e.g. encoding mode.
+     */
+    public synchronized void setDimension(String name, String value) {
+        dimensions.put(name, value);
+    }
+
+    public synchronized Map<String, String> getDimensions() {
+
+        return Collections.unmodifiableMap(new LinkedHashMap<>(dimensions));
+    }
+
+    /**
+     * Properties are logged with metrics but not aggregated, e.g. request ID.
+     */
+    public synchronized void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    public synchronized Map<String, String> getProperties() {
+
+        return Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+    }
+}
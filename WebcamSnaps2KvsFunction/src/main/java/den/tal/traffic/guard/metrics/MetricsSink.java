@@ -0,0 +1,12 @@
+package den.tal.traffic.guard.metrics;
+
+/**
+ * Receives metrics at the end of each invocation.
+ *
+ * @author Denis Talochkin
+ */
+@FunctionalInterface
+public interface MetricsSink {
+
+    void emit(InvocationMetrics metrics);
+}
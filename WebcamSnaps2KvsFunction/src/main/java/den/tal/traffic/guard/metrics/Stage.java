@@ -0,0 +1,77 @@
+package den.tal.traffic.guard.metrics;
+
+import lombok.Getter;
+
+/**
+ * Timed stages of an invocation. Frame stages run on several threads, so their time is a sum over frames and may
+ * exceed the wall time of the invocation.
+ *
+ * @author Denis Talochkin
+ */
+public enum Stage {
+
+    /**
+     * Walking through the request body JSON, without base64 decoding.
+     */
+    JSON_PARSE("JsonParseTime"),
+
+    /**
+     * Base64 decoding of frames.
+     */
+    BASE64_DECODE("Base64DecodeTime"),
+
+    /**
+     * Image decoding (<code>convertToImage</code>), sum over frames.
+     */
+    IMAGE_DECODE("ImageDecodeTime"),
+
+    /**
+     * Frame signatures for duplicate detection, sum over frames.
+     */
+    DEDUP("DedupTime"),
+
+    /**
+     * JPEG re-encoding, sum over frames.
+     */
+    JPEG_ENCODE("JpegEncodeTime"),
+
+    /**
+     * In-process H.264 encoding and muxing, sum over frames.
+     */
+    H264_ENCODE("H264EncodeTime"),
+
+    /**
+     * FFmpeg job. In pipe mode only the time FFmpeg takes after the last frame, the rest overlaps with decoding.
+     */
+    FFMPEG("FFmpegTime"),
+
+    /**
+     * <code>GetDataEndpoint</code> call and PutMedia client creation, near zero when the client is cached.
+     */
+    GET_DATA_ENDPOINT("GetDataEndpointTime"),
+
+    /**
+     * PutMedia call, from the first byte to the end of the upload.
+     */
+    UPLOAD("UploadTime"),
+
+    /**
+     * Time from the last byte of the fragment to its acknowledgement.
+     */
+    ACK("AckTime"),
+
+    /**
+     * The whole invocation.
+     */
+    TOTAL("TotalTime");
+
+    /**
+     * Metric name.
+     */
+    @Getter
+    private final String metricName;
+
+    Stage(String metricName) {
+        this.metricName = metricName;
+    }
+}
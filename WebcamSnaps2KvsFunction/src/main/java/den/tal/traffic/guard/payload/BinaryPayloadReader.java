@@ -0,0 +1,127 @@
+package den.tal.traffic.guard.payload;
+
+import den.tal.traffic.guard.metrics.Counter;
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of the binary request body, <code>application/x-webcam-frames</code>. Frame bytes are copied
+ * straight from the stream into a single reused buffer, there's no text or base64 stage. All numbers are big-endian:
+ * <pre>
+ * magic            4 bytes, "WSF1"
+ * framerate        float32
+ * numOfFrames      int32
+ * numOfTimestamps  int32, 0 or numOfFrames
+ * timestamps       numOfTimestamps x int64, epoch milliseconds
+ * frames           numOfFrames x (int32 length, length bytes of JPEG or PNG image)
+ * </pre>
+ * Timestamps come before the frames, so they are known as soon as the first frame is read.
+ *
+ * @author Denis Talochkin
+ */
+public class BinaryPayloadReader implements FramePayloadReader {
+
+    public static final byte[] MAGIC = "WSF1".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Guards against allocating gigabytes for a malformed body.
+     */
+    private static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+    private static final int MAX_NUM_OF_FRAMES = 64 * 1024;
+    private static final int INITIAL_FRAME_CAPACITY = 128 * 1024;
+
+    private final DataInputStream in;
+    private final InvocationMetrics metrics;
+    private byte[] frameBuffer = new byte[INITIAL_FRAME_CAPACITY];
+
+    @Getter
+    private int numOfFrames;
+
+    @Getter
+    private float framerate;
+
+    @Getter
+    private long[] timestamps;
+
+    public BinaryPayloadReader(InputStream in) {
+        this(in, new InvocationMetrics());
+    }
+
+    /**
+     * @param metrics receives the number and size of frames.
+     */
+    public BinaryPayloadReader(InputStream in, InvocationMetrics metrics) {
+        this.in = new DataInputStream(in);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void read(FrameConsumer consumer) throws IOException {
+        try {
+            readHeader();
+            final int declaredFrames = numOfFrames;
+            numOfFrames = 0;
+            while (numOfFrames < declaredFrames) {
+                int length = readLength(in.readInt(), MAX_FRAME_LENGTH, "Frame #" + numOfFrames + " length");
+                if (length > frameBuffer.length) {
+                    frameBuffer = new byte[Math.max(length, frameBuffer.length << 1)];
+                }
+                in.readFully(frameBuffer, 0, length);
+                metrics.count(Counter.FRAMES_IN, 1);
+                metrics.count(Counter.BYTES_IN, length);
+                consumer.accept(numOfFrames++, frameBuffer, length);
+            }
+        } catch (EOFException eofex) {
+            throw new IOException(String.format("Binary payload is truncated at frame #%d.", numOfFrames), eofex);
+        }
+    }
+
+    @Override
+    public void readTiming() throws IOException {
+        try {
+            readHeader();
+        } catch (EOFException eofex) {
+            throw new IOException("Binary payload is truncated in the header.", eofex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not a binary frames payload, wrong magic.");
+        }
+        framerate = in.readFloat();
+        numOfFrames = readLength(in.readInt(), MAX_NUM_OF_FRAMES, "Number of frames");
+        int numOfTimestamps = readLength(in.readInt(), numOfFrames, "Number of timestamps");
+        if (numOfTimestamps > 0) {
+            if (numOfTimestamps != numOfFrames) {
+                throw new IOException(String.format("%d timestamps for %d frames.", numOfTimestamps, numOfFrames));
+            }
+            timestamps = new long[numOfTimestamps];
+            for (int i = 0; i < numOfTimestamps; ++i) {
+                timestamps[i] = in.readLong();
+            }
+        }
+    }
+
+    private static int readLength(int value, int max, String name) throws IOException {
+        if (value < 0 || value > max) {
+            throw new IOException(String.format("%s %d is out of range [0, %d].", name, value, max));
+        }
+
+        return value;
+    }
+}
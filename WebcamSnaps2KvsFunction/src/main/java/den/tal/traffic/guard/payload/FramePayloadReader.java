@@ -0,0 +1,52 @@
+package den.tal.traffic.guard.payload;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streaming reader of a request body in one of the {@link PayloadFormat}s. Frames are handed to a
+ * {@link FrameConsumer} one by one in a reused buffer, framerate and timestamps are available via getters.
+ *
+ * @author Denis Talochkin
+ */
+public interface FramePayloadReader extends Closeable {
+
+    /**
+     * Receives decoded frames one by one.
+     */
+    @FunctionalInterface
+    interface FrameConsumer {
+
+        /**
+         * @param ordinal frame ordinal number in the batch.
+         * @param frame buffer with the decoded image. It is reused for the next frame, so don't keep a reference.
+         * @param length number of valid bytes in the buffer.
+         */
+        void accept(int ordinal, byte[] frame, int length) throws IOException;
+    }
+
+    /**
+     * Reads the whole body. Frames are passed to the consumer as soon as they are read.
+     *
+     * @param consumer frame consumer.
+     * @throws IOException if the body is malformed or the consumer fails.
+     */
+    void read(FrameConsumer consumer) throws IOException;
+
+    /**
+     * Reads framerate and timestamps only, frames are skipped without decoding. Used instead of
+     * {@link #read(FrameConsumer)} when the timing is needed before the frames.
+     *
+     * @throws IOException if the body is malformed.
+     */
+    void readTiming() throws IOException;
+
+    int getNumOfFrames();
+
+    float getFramerate();
+
+    /**
+     * @return frame timestamps or null if the body has none. Readers may know them before all frames are read.
+     */
+    long[] getTimestamps();
+}
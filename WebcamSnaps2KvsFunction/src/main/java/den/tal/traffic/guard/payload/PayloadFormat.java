@@ -0,0 +1,50 @@
+package den.tal.traffic.guard.payload;
+
+import lombok.Getter;
+
+/**
+ * Request body formats.
+ *
+ * @author Denis Talochkin
+ */
+public enum PayloadFormat {
+
+    /**
+     * JSON document with base64 frames, see {@link den.tal.traffic.guard.json.BodyPayloadReader}.
+     */
+    JSON("application/json"),
+
+    /**
+     * Length-prefixed frames with no text stage, see {@link BinaryPayloadReader}.
+     */
+    BINARY("application/x-webcam-frames");
+
+    /**
+     * Content type of the request body.
+     */
+    @Getter
+    private final String contentType;
+
+    PayloadFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param contentType value of the <code>Content-Type</code> header, may have parameters or be null.
+     * @return {@link #BINARY} for its own content type and <code>application/octet-stream</code>, {@link #JSON}
+     * otherwise, so existing clients keep working whatever they send.
+     */
+    public static PayloadFormat fromContentType(String contentType) {
+        if (null == contentType) {
+
+            return JSON;
+        }
+        String mediaType = contentType.split(";", 2)[0].trim();
+        if (BINARY.contentType.equalsIgnoreCase(mediaType) || "application/octet-stream".equalsIgnoreCase(mediaType)) {
+
+            return BINARY;
+        }
+
+        return JSON;
+    }
+}
@@ -0,0 +1,158 @@
+package den.tal.traffic.guard.payload;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import den.tal.traffic.guard.json.BodyPayloadReader;
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import den.tal.traffic.guard.metrics.Stage;
+import lombok.Getter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Request body of a known {@link PayloadFormat}, either as API Gateway delivers it or as raw bytes from the standalone
+ * server. API Gateway passes binary media types to the lambda function base64-encoded; the whole body is decoded
+ * at once, which is much cheaper than decoding frames out of JSON strings, and then read with no text stage.
+ * <p>
+ * The producer is taken from the <code>X-Producer-Id</code> header, or else it's the client address.
+ *
+ * @author Denis Talochkin
+ */
+public class RequestPayload {
+
+    public static final String PRODUCER_ID = "X-Producer-Id";
+    public static final String DEFAULT_PRODUCER = "default";
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    @Getter
+    private final PayloadFormat format;
+
+    /**
+     * Client which sent the body, e.g. a browser tab.
+     */
+    @Getter
+    private final String producerId;
+    private final String text;
+    private final boolean base64Encoded;
+    private final byte[] bytes;
+    private byte[] decoded;
+
+    private RequestPayload(PayloadFormat format, String producerId, String text, boolean base64Encoded,
+                           byte[] bytes) {
+        this.format = format;
+        this.producerId = null == producerId || producerId.isBlank() ? DEFAULT_PRODUCER : producerId;
+        this.text = text;
+        this.base64Encoded = base64Encoded;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Format is chosen by the <code>Content-Type</code> header, JSON by default.
+     */
+    public static RequestPayload of(APIGatewayProxyRequestEvent request) {
+        String producerId = getHeader(request.getHeaders(), PRODUCER_ID);
+        if (null == producerId && null != request.getRequestContext()
+                && null != request.getRequestContext().getIdentity()) {
+            producerId = request.getRequestContext().getIdentity().getSourceIp();
+        }
+
+        return new RequestPayload(PayloadFormat.fromContentType(getHeader(request.getHeaders(), CONTENT_TYPE)),
+                producerId, request.getBody(), Boolean.TRUE.equals(request.getIsBase64Encoded()), null);
+    }
+
+    public static RequestPayload json(String body) {
+
+        return new RequestPayload(PayloadFormat.JSON, null, body, false, null);
+    }
+
+    /**
+     * @param body raw request body, e.g. read by the standalone server.
+     * @param producerId client which sent the body, {@link #DEFAULT_PRODUCER} if null.
+     */
+    public static RequestPayload of(PayloadFormat format, byte[] body, String producerId) {
+
+        return new RequestPayload(format, producerId, null, false, body);
+    }
+
+    /**
+     * @return whether the body is binary, but API Gateway passed it as text, i.e. its content type isn't a binary
+     * media type of the API. Such a body is already mangled by the UTF-8 decoding and can't be read.
+     */
+    public boolean isBinaryPassedAsText() {
+
+        return null == bytes && !base64Encoded && PayloadFormat.BINARY == format;
+    }
+
+    public boolean isEmpty() {
+
+        return null == bytes ? null == text || text.isEmpty() : bytes.length == 0;
+    }
+
+    /**
+     * @return length of the body as received, characters of a text body.
+     */
+    public long getSize() {
+
+        return null == bytes ? null == text ? 0 : text.length() : bytes.length;
+    }
+
+    /**
+     * @param metrics receives the time of decoding a base64-encoded body.
+     * @return reader of the body. Each call reads the body from the beginning, a base64-encoded body is decoded
+     * once.
+     */
+    public FramePayloadReader open(InvocationMetrics metrics) throws IOException {
+        if (null == bytes && !base64Encoded && PayloadFormat.JSON == format) {
+
+            return new BodyPayloadReader(new StringReader(text), metrics);
+        }
+        final byte[] body = null != bytes ? bytes : decode(metrics);
+        if (PayloadFormat.BINARY == format) {
+
+            return new BinaryPayloadReader(new ByteArrayInputStream(body), metrics);
+        }
+
+        return new BodyPayloadReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8),
+                metrics);
+    }
+
+    private byte[] decode(InvocationMetrics metrics) throws IOException {
+        if (null != decoded) {
+
+            return decoded;
+        }
+        if (!base64Encoded) {
+            throw new IOException("Binary request body is not base64-encoded.");
+        }
+        final long start = metrics.start();
+        try {
+            decoded = Base64.getDecoder().decode(text);
+
+            return decoded;
+        } catch (IllegalArgumentException iaex) {
+            throw new IOException("Request body is not valid base64.", iaex);
+        } finally {
+            metrics.record(Stage.BASE64_DECODE, start);
+        }
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        if (null == headers) {
+
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,118 @@
+package den.tal.traffic.guard.server;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import den.tal.traffic.guard.WebcamStreamProcessor;
+import den.tal.traffic.guard.kvs.utils.Utils;
+import den.tal.traffic.guard.payload.PayloadFormat;
+import den.tal.traffic.guard.payload.RequestPayload;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Standalone HTTP server for container deployment. Accepts the same POST body as the lambda function, JSON or binary
+ * (see {@link PayloadFormat}), and runs it through the same {@link WebcamStreamProcessor}, one instance for all
+ * requests, so the KVS client cache, the persistent PutMedia session and the frame workers are shared.
+ * <p>
+ * Every request is handled on its own virtual thread: most of the request time is spent waiting for KVS acks, which
+ * costs nothing on a virtual thread. CPU-heavy encoding is capped by the processor, see
+ * <code>MaxConcurrentEncodings</code> environment variable. The port is set with <code>ServerPort</code>.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class StreamServer implements Closeable {
+
+    private static final String STREAMS_PATH = "/streams";
+    private static final String HEALTH_PATH = "/health";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final WebcamStreamProcessor processor;
+
+    public StreamServer(int port, WebcamStreamProcessor processor) throws IOException {
+        this.processor = processor;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext(STREAMS_PATH, this::handleStream);
+        this.server.createContext(HEALTH_PATH, exchange -> send(exchange, Utils.getResponse(200, "OK")));
+    }
+
+    public static void main(String[] args) throws IOException {
+        StreamServer streamServer = new StreamServer(Utils.getServerPort(), new WebcamStreamProcessor()).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(streamServer::close, "stream-server-shutdown"));
+    }
+
+    public StreamServer start() {
+        server.start();
+        log.info("Stream server listens on port {}", getPort());
+
+        return this;
+    }
+
+    public int getPort() {
+
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server and flushes coalesced fragments.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        processor.close();
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        final String method = exchange.getRequestMethod();
+        if ("OPTIONS".equals(method)) {
+            exchange.getRequestBody().readAllBytes();
+            send(exchange, Utils.getResponse(200, ""));
+
+            return;
+        }
+        if (!"POST".equals(method)) {
+            exchange.getRequestBody().readAllBytes();
+            send(exchange, Utils.getResponse(405, "Method not allowed."));
+
+            return;
+        }
+
+        PayloadFormat format = PayloadFormat.fromContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+        String producerId = exchange.getRequestHeaders().getFirst(RequestPayload.PRODUCER_ID);
+        RequestPayload payload = RequestPayload.of(format, exchange.getRequestBody().readAllBytes(),
+                null == producerId ? exchange.getRemoteAddress().getAddress().getHostAddress() : producerId);
+        APIGatewayProxyResponseEvent response;
+        try {
+            response = processor.handlePayload(payload, null);
+        } catch (RuntimeException rex) {
+            log.error("Request processing failed.", rex);
+            response = Utils.getResponse(500, "Request processing failed.");
+        }
+        send(exchange, response);
+    }
+
+    private static void send(HttpExchange exchange, APIGatewayProxyResponseEvent response) throws IOException {
+        if (null != response.getHeaders()) {
+            for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+            }
+        }
+        byte[] body = null == response.getBody() ? new byte[0] : response.getBody().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(response.getStatusCode(), body.length == 0 ? -1 : body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
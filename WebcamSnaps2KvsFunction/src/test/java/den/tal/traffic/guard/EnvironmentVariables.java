@@ -0,0 +1,52 @@
+package den.tal.traffic.guard;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+/**
+ * Sets environment variables which are known only at run time, e.g. the endpoint of a server on an ephemeral port,
+ * which <code>@SetEnvironmentVariable</code> can't take. Changes the map behind {@link System#getenv()} the same way
+ * junit-pioneer does, so the test JVM needs <code>--add-opens java.base/java.util=ALL-UNNAMED</code>.
+ *
+ * @author Denis Talochkin
+ */
+public final class EnvironmentVariables {
+
+    /**
+     * Restores the previous value on close.
+     */
+    public interface Restore extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    private EnvironmentVariables() {
+    }
+
+    public static Restore set(String key, String value) {
+        final Map<String, String> environment = modifiableEnvironment();
+        final String previous = environment.put(key, value);
+
+        return () -> {
+            if (null == previous) {
+                environment.remove(key);
+            } else {
+                environment.put(key, previous);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> modifiableEnvironment() {
+        final Map<String, String> environment = System.getenv();
+        try {
+            final Field backing = environment.getClass().getDeclaredField("m");
+            backing.setAccessible(true);
+
+            return (Map<String, String>) backing.get(environment);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not access environment variables.", ex);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package den.tal.traffic.guard;
+
+import com.amazonaws.util.Base64;
+import den.tal.traffic.guard.payload.BinaryPayloadReader;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates webcam-like frames for benchmarks and load tests: a gradient background with some moving shapes and
+ * sensor noise, so the frames neither compress to nothing nor look like white noise.
+ *
+ * @author Denis Talochkin
+ */
+public class SyntheticFrames {
+
+    private static final long SEED = 42;
+
+    private SyntheticFrames() {
+    }
+
+    /**
+     * @param resolution e.g. <code>640x480</code>.
+     * @param format <code>jpeg</code> or <code>png</code>.
+     * @return encoded frames.
+     */
+    public static List<byte[]> generate(int numOfFrames, String resolution, String format) {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        Random random = new Random(SEED);
+        List<byte[]> frames = new ArrayList<>(numOfFrames);
+        for (int i = 0; i < numOfFrames; ++i) {
+            frames.add(encode(draw(width, height, i, random), format));
+        }
+
+        return frames;
+    }
+
+    /**
+     * @return frames as data URIs, the way the web client sends them.
+     */
+    public static List<String> toDataUris(List<byte[]> frames, String format) {
+        List<String> uris = new ArrayList<>(frames.size());
+        for (byte[] frame : frames) {
+            uris.add(String.format("data:image/%s;base64,%s", format, Base64.encodeAsString(frame)));
+        }
+
+        return uris;
+    }
+
+    /**
+     * @return request body with the frames, timestamps and frame rate.
+     */
+    public static String toRequestBody(List<String> dataUris, int framerate) {
+        StringBuilder body = new StringBuilder("{\"frames\":[");
+        StringBuilder timestamps = new StringBuilder();
+        for (int i = 0; i < dataUris.size(); ++i) {
+            if (i > 0) {
+                body.append(',');
+                timestamps.append(',');
+            }
+            body.append('"').append(dataUris.get(i)).append('"');
+            timestamps.append(1_600_000_000_000L + i * 1000L / framerate);
+        }
+        body.append("],\"numOfFrames\":").append(dataUris.size())
+                .append(",\"framerate\":").append(framerate)
+                .append(",\"timestamps\":[").append(timestamps).append("]}");
+
+        return body.toString();
+    }
+
+    /**
+     * @return binary request body with the frames, timestamps and frame rate, see
+     * {@link BinaryPayloadReader}.
+     */
+    public static byte[] toBinaryBody(List<byte[]> frames, int framerate) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.write(BinaryPayloadReader.MAGIC);
+            out.writeFloat(framerate);
+            out.writeInt(frames.size());
+            out.writeInt(frames.size());
+            for (int i = 0; i < frames.size(); ++i) {
+                out.writeLong(1_600_000_000_000L + i * 1000L / framerate);
+            }
+            for (byte[] frame : frames) {
+                out.writeInt(frame.length);
+                out.write(frame);
+            }
+        } catch (IOException ioex) {
+            throw new UncheckedIOException(ioex);
+        }
+
+        return body.toByteArray();
+    }
+
+    private static BufferedImage draw(int width, int height, int ordinal, Random random) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setPaint(new GradientPaint(0, 0, new Color(40, 60, 90), width, height,
+                    new Color(180, 170, 140)));
+            graphics.fillRect(0, 0, width, height);
+            for (int car = 0; car < 6; ++car) {
+                graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+                int x = (car * width / 6 + ordinal * width / 50) % width;
+                int y = height / 3 + car * height / 12;
+                graphics.fillRoundRect(x, y, width / 10, height / 16, 8, 8);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                int noise = random.nextInt(16) - 8;
+                int rgb = image.getRGB(x, y);
+                int r = clamp(((rgb >> 16) & 0xFF) + noise);
+                int g = clamp(((rgb >> 8) & 0xFF) + noise);
+                int b = clamp((rgb & 0xFF) + noise);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            if (!ImageIO.write(image, format, os)) {
+                throw new IllegalArgumentException(String.format("No image writer for '%s'.", format));
+            }
+        } catch (IOException ioex) {
+            throw new UncheckedIOException(ioex);
+        }
+
+        return os.toByteArray();
+    }
+
+    private static int clamp(int value) {
+
+        return Math.max(0, Math.min(255, value));
+    }
+}
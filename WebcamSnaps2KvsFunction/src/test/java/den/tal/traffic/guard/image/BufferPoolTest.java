@@ -0,0 +1,60 @@
+package den.tal.traffic.guard.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void buffersAreReusedBySizeTest() {
+        List<byte[]> disposed = new ArrayList<>();
+        BufferPool<Integer, byte[]> pool = new BufferPool<>(byte[]::new, disposed::add, 2);
+        byte[] small = pool.take(16);
+        byte[] large = pool.take(1024);
+        pool.giveBack(16, small);
+        pool.giveBack(1024, large);
+
+        assertSame(large, pool.take(1024));
+        assertSame(small, pool.take(16));
+        assertNotSame(small, pool.take(16));
+        assertEquals(3, pool.getCreated().get());
+        assertEquals(2, pool.getReused().get());
+
+        byte[][] buffers = {pool.take(16), pool.take(16), pool.take(16)};
+        for (byte[] buffer : buffers) {
+            pool.giveBack(16, buffer);
+        }
+        // Only two idle buffers of a size are kept, the last given back is taken first.
+        assertEquals(List.of(buffers[2]), disposed);
+        assertSame(buffers[1], pool.take(16));
+    }
+
+    @Test
+    public void leastRecentlyUsedSizesAreEvictedTest() {
+        List<byte[]> disposed = new ArrayList<>();
+        BufferPool<Integer, byte[]> pool = new BufferPool<>(byte[]::new, disposed::add, 4, Integer::longValue, 100);
+        byte[] first = pool.take(40);
+        byte[] second = pool.take(30);
+        byte[] third = pool.take(50);
+        pool.giveBack(40, first);
+        pool.giveBack(30, second);
+        // Size 40 is used again, so 30 is the least recently used one.
+        pool.giveBack(40, pool.take(40));
+        pool.giveBack(50, third);
+
+        assertEquals(List.of(second), disposed);
+        assertEquals(90, pool.getIdleBytes());
+        assertEquals(1, pool.getEvicted().get());
+        assertNotSame(second, pool.take(30));
+
+        // Bigger than the whole pool.
+        byte[] huge = pool.take(200);
+        pool.giveBack(200, huge);
+        assertSame(huge, disposed.get(1));
+        assertEquals(90, pool.getIdleBytes());
+    }
+}
@@ -0,0 +1,76 @@
+package den.tal.traffic.guard.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameDeduplicatorTest {
+
+    @Test
+    public void nearDuplicatesAreDetectedTest() {
+        BufferedImage scene = drawScene(100);
+        BufferedImage noisyScene = addNoise(drawScene(100));
+        BufferedImage carMoved = drawScene(300);
+
+        byte[] sceneSignature = FrameDeduplicator.signature(scene);
+        byte[] noisySignature = FrameDeduplicator.signature(noisyScene);
+        byte[] movedSignature = FrameDeduplicator.signature(carMoved);
+        assertTrue(FrameDeduplicator.difference(sceneSignature, noisySignature) < 0.01);
+        assertTrue(FrameDeduplicator.difference(sceneSignature, movedSignature) > 0.02);
+
+        FrameDeduplicator dedup = new FrameDeduplicator(0.01);
+        assertSame(scene, dedup.keepOrRepeat(scene, sceneSignature));
+        assertSame(scene, dedup.keepOrRepeat(noisyScene, noisySignature));
+        assertSame(carMoved, dedup.keepOrRepeat(carMoved, movedSignature));
+        assertEquals(1, dedup.getNumOfDuplicates());
+    }
+
+    @Test
+    public void slowChangesAreNotLostTest() {
+        FrameDeduplicator dedup = new FrameDeduplicator(0.02);
+        int kept = 0;
+        // Every frame differs from the previous one a little, but drifts away from the first one.
+        for (int x = 100; x < 400; x += 5) {
+            if (!dedup.isDuplicate(FrameDeduplicator.signature(drawScene(x)))) {
+                ++kept;
+            }
+        }
+        assertTrue(kept >= 3, "Slowly moving car must not be dropped completely.");
+        assertTrue(kept < 60);
+    }
+
+    private static BufferedImage drawScene(int carX) {
+        BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, 640, 480, Color.LIGHT_GRAY));
+            graphics.fillRect(0, 0, 640, 480);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(carX, 200, 160, 100);
+        } finally {
+            graphics.dispose();
+        }
+
+        return image;
+    }
+
+    private static BufferedImage addNoise(BufferedImage image) {
+        Random random = new Random(42);
+        for (int y = 0; y < image.getHeight(); ++y) {
+            for (int x = 0; x < image.getWidth(); ++x) {
+                int noise = random.nextInt(9) - 4;
+                int rgb = image.getRGB(x, y);
+                int r = Math.max(0, Math.min(255, ((rgb >> 16) & 0xFF) + noise));
+                int g = Math.max(0, Math.min(255, ((rgb >> 8) & 0xFF) + noise));
+                int b = Math.max(0, Math.min(255, (rgb & 0xFF) + noise));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        return image;
+    }
+}
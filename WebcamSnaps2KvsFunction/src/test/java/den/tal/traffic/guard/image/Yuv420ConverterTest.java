@@ -0,0 +1,102 @@
+package den.tal.traffic.guard.image;
+
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+import org.jcodec.scale.AWTUtil;
+import org.jcodec.scale.ColorUtil;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Yuv420ConverterTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int TOLERANCE = 1;
+
+    @Test
+    public void conversionMatchesJcodecTest() {
+        final int[] types = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY};
+        for (int type : types) {
+            BufferedImage image = randomImage(type, 1);
+            Picture expected = jcodecConversion(image);
+            for (boolean vectorized : new boolean[]{false, true}) {
+                Picture picture = Picture.create(WIDTH, HEIGHT, ColorSpace.YUV420J);
+                new Yuv420Converter(vectorized).convert(image, picture);
+                assertClose(expected, picture, String.format("type %d, vectorized %b", type, vectorized));
+            }
+        }
+    }
+
+    @Test
+    public void outputPlanesAreReusedTest() {
+        Yuv420Converter converter = new Yuv420Converter();
+        Picture picture = Picture.create(WIDTH, HEIGHT, ColorSpace.YUV420J);
+        converter.convert(randomImage(BufferedImage.TYPE_3BYTE_BGR, 2), picture);
+        BufferedImage image = randomImage(BufferedImage.TYPE_3BYTE_BGR, 3);
+        converter.convert(image, picture);
+        assertClose(jcodecConversion(image), picture, "reused picture");
+
+        // A sub-image shares the raster of its parent, it's read pixel by pixel.
+        BufferedImage parent = randomImage(BufferedImage.TYPE_3BYTE_BGR, 4);
+        BufferedImage large = new BufferedImage(WIDTH + 10, HEIGHT + 6, BufferedImage.TYPE_3BYTE_BGR);
+        large.getGraphics().drawImage(parent, 10, 6, null);
+        converter.convert(large.getSubimage(10, 6, WIDTH, HEIGHT), picture);
+        assertClose(jcodecConversion(parent), picture, "sub-image");
+    }
+
+    @Test
+    public void vectorKernelIsUsedIfAvailableTest() {
+        assertEquals(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(),
+                new Yuv420Converter(true).isVectorized());
+        assertFalse(new Yuv420Converter(false).isVectorized());
+        assertThrows(IllegalArgumentException.class, () -> new Yuv420Converter().convert(
+                randomImage(BufferedImage.TYPE_3BYTE_BGR, 5), Picture.create(WIDTH / 2, HEIGHT, ColorSpace.YUV420J)));
+    }
+
+    private static Picture jcodecConversion(BufferedImage image) {
+        Picture rgb = Picture.create(WIDTH, HEIGHT, ColorSpace.RGB);
+        AWTUtil.fromBufferedImage(image, rgb);
+        Picture yuv = Picture.create(WIDTH, HEIGHT, ColorSpace.YUV420J);
+        ColorUtil.getTransform(ColorSpace.RGB, ColorSpace.YUV420J).transform(rgb, yuv);
+
+        return yuv;
+    }
+
+    /**
+     * Chroma of a 2x2 block is computed from the mean color instead of the mean of rounded values, so it may be off
+     * by one.
+     */
+    private static void assertClose(Picture expected, Picture actual, String message) {
+        for (int plane = 0; plane < 3; ++plane) {
+            byte[] expectedData = expected.getPlaneData(plane);
+            byte[] actualData = actual.getPlaneData(plane);
+            for (int i = 0; i < expected.getPlaneWidth(plane) * expected.getPlaneHeight(plane); ++i) {
+                if (Math.abs(expectedData[i] - actualData[i]) > TOLERANCE) {
+                    fail(String.format("%s: plane %d, sample %d: expected %d, actual %d", message, plane, i,
+                            expectedData[i], actualData[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Random noise with smooth gradients, so both clipped and mid-range values are checked.
+     */
+    private static BufferedImage randomImage(int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                int rgb = x < WIDTH / 2 ? random.nextInt() : (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8 | 128;
+                image.setRGB(x, y, 0xFF000000 | rgb);
+            }
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,67 @@
+package den.tal.traffic.guard.json;
+
+import com.amazonaws.util.Base64;
+import com.google.gson.GsonBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+public class BodyPayloadReaderTest {
+
+    private static final String REQUEST_PAYLOAD = "request_payload.json";
+
+    @Test
+    public void readSameFramesAsGsonTest() throws Exception {
+        var url = getClass().getClassLoader().getResource(REQUEST_PAYLOAD);
+        String strPayload = String.join("", Files.readAllLines(Paths.get(url.toURI())));
+        BodyPayload bodyPayload = new GsonBuilder().create().fromJson(strPayload, BodyPayload.class);
+
+        try (BodyPayloadReader payloadReader = new BodyPayloadReader(new StringReader(strPayload))) {
+            payloadReader.read((i, frame, length) -> {
+                String image64base = bodyPayload.getFrames()[i];
+                byte[] expected = Base64.decode(image64base.substring(image64base.indexOf(',') + 1));
+                log.debug("Frame #{} decoded. Length: {}", i, length);
+                assertArrayEquals(expected, Arrays.copyOf(frame, length));
+            });
+            assertEquals(bodyPayload.getFrames().length, payloadReader.getNumOfFrames());
+            assertEquals(bodyPayload.getFramerate(), payloadReader.getFramerate());
+            assertArrayEquals(bodyPayload.getTimestamps(), payloadReader.getTimestamps());
+        }
+    }
+
+    @Test
+    public void skipUnknownPropertiesAndEscapesTest() throws Exception {
+        String json = "{\"camera\": {\"id\": [1, null, \"a\"]}, \"frames\": [\"SGVsbG8\\/\", \"data:image/png;base64,"
+                + "SGk=\"], \"framerate\": 2.5}";
+        byte[][] frames = new byte[2][];
+        try (BodyPayloadReader payloadReader = new BodyPayloadReader(new StringReader(json))) {
+            payloadReader.read((i, frame, length) -> frames[i] = Arrays.copyOf(frame, length));
+            assertEquals(2.5f, payloadReader.getFramerate());
+            assertNull(payloadReader.getTimestamps());
+        }
+        assertArrayEquals(Base64.decode("SGVsbG8/"), frames[0]);
+        assertArrayEquals("Hi".getBytes(), frames[1]);
+    }
+
+    @Test
+    public void rejectMalformedUnicodeEscapeTest() throws Exception {
+        try (BodyPayloadReader payloadReader = new BodyPayloadReader(new StringReader(
+                "{\"camera\": \"\\u00e9\", \"frames\": [\"SGk=\"]}"))) {
+            payloadReader.read((i, frame, length) -> {});
+            assertEquals(1, payloadReader.getNumOfFrames());
+        }
+        for (String json : new String[]{"{\"camera\": \"\\u00zz\", \"frames\": []}", "{\"\\u12"}) {
+            try (BodyPayloadReader payloadReader = new BodyPayloadReader(new StringReader(json))) {
+                assertThrows(IOException.class, () -> payloadReader.read((i, frame, length) -> {}), json);
+            }
+        }
+    }
+}
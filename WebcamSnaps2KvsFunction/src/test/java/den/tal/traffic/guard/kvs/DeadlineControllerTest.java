@@ -0,0 +1,137 @@
+package den.tal.traffic.guard.kvs;
+
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import den.tal.traffic.guard.metrics.Stage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeadlineControllerTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final long PAYLOAD_BYTES = 100_000;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    @Test
+    public void fullQualityWithoutEstimateOrBudgetTest() {
+        DeadlineController controller = new DeadlineController(0, 1_000, 4, true, true);
+        EncodingPlan plan = controller.plan(PAYLOAD_BYTES, NO_DEADLINE, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.full(WIDTH, HEIGHT), plan);
+
+        // No estimate yet, the budget is only reported.
+        plan = controller.plan(PAYLOAD_BYTES, 3_000, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.FULL, plan.level());
+        assertEquals(2_000, plan.budgetMillis());
+        assertEquals(0, plan.predictedMillis());
+
+        // Unlimited budget ignores the estimates.
+        controller.observe(plan, PAYLOAD_BYTES, invocation(10_000, 0));
+        assertEquals(EncodingPlan.full(WIDTH, HEIGHT), controller.plan(PAYLOAD_BYTES, NO_DEADLINE, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void ladderIsWalkedDownTest() {
+        DeadlineController controller = new DeadlineController(0, 1_000, 4, true, true);
+        // 900 ms of work for the payload at full quality, 100 ms of ack.
+        controller.observe(EncodingPlan.full(WIDTH, HEIGHT), PAYLOAD_BYTES, invocation(1_000, 100));
+
+        EncodingPlan plan = controller.plan(PAYLOAD_BYTES, 3_000, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.FULL, plan.level());
+        assertEquals(1_000, plan.predictedMillis());
+
+        // Veryfast: 100 + 900 * 0.6
+        plan = controller.plan(PAYLOAD_BYTES, 1_700, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.VERYFAST, plan.level());
+        assertEquals("veryfast", plan.level().getPreset());
+        assertEquals("zerolatency", plan.level().getTune());
+        assertEquals(640, plan.predictedMillis());
+        assertEquals(WIDTH, plan.width());
+
+        // Ultrafast: 100 + 900 * 0.39
+        plan = controller.plan(PAYLOAD_BYTES, 1_500, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.ULTRAFAST, plan.level());
+        assertEquals(451, plan.predictedMillis());
+
+        // Half resolution: 100 + 900 * 0.234
+        plan = controller.plan(PAYLOAD_BYTES, 1_350, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.HALF_RESOLUTION, plan.level());
+        assertEquals(WIDTH / 2, plan.width());
+        assertEquals(HEIGHT / 2, plan.height());
+        assertEquals(1, plan.keepEvery());
+        assertTrue(plan.isDegraded());
+    }
+
+    @Test
+    public void framesAreThinnedOutBelowLastLevelTest() {
+        DeadlineController controller = new DeadlineController(0, 1_000, 4, true, true);
+        controller.observe(EncodingPlan.full(WIDTH, HEIGHT), PAYLOAD_BYTES, invocation(1_000, 100));
+
+        // 210.6 ms of work at half resolution, 100 ms left for it.
+        EncodingPlan plan = controller.plan(PAYLOAD_BYTES, 1_200, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.HALF_RESOLUTION, plan.level());
+        assertEquals(3, plan.keepEvery());
+        assertTrue(plan.keeps(0));
+        assertFalse(plan.keeps(1));
+        assertFalse(plan.keeps(2));
+        assertTrue(plan.keeps(3));
+
+        // Past the deadline frames are thinned out as much as allowed.
+        plan = controller.plan(PAYLOAD_BYTES, 500, WIDTH, HEIGHT);
+        assertEquals(4, plan.keepEvery());
+        assertEquals(-500, plan.budgetMillis());
+    }
+
+    @Test
+    public void latencyTargetCapsBudgetTest() {
+        DeadlineController controller = new DeadlineController(1_500, 1_000, 4, true, true);
+        assertEquals(1_500, controller.budget(NO_DEADLINE));
+        assertEquals(1_500, controller.budget(30_000));
+        assertEquals(500, controller.budget(1_500));
+
+        controller.observe(EncodingPlan.full(WIDTH, HEIGHT), PAYLOAD_BYTES, invocation(1_000, 100));
+        assertEquals(EncodingPlan.Level.FULL, controller.plan(PAYLOAD_BYTES, NO_DEADLINE, WIDTH, HEIGHT).level());
+        assertEquals(EncodingPlan.Level.FULL, controller.plan(PAYLOAD_BYTES / 2, 30_000, WIDTH, HEIGHT).level());
+        assertEquals(EncodingPlan.Level.VERYFAST, controller.plan(2 * PAYLOAD_BYTES, 30_000, WIDTH, HEIGHT)
+                .level());
+    }
+
+    @Test
+    public void levelsWhichDontApplyAreSkippedTest() {
+        // jcodec has no presets: full quality, then half resolution.
+        DeadlineController jcodec = new DeadlineController(0, 1_000, 4, false, true);
+        assertEquals(.6, jcodec.relativeCost(EncodingPlan.Level.HALF_RESOLUTION), 1e-9);
+        jcodec.observe(EncodingPlan.full(WIDTH, HEIGHT), PAYLOAD_BYTES, invocation(1_000, 100));
+        assertEquals(EncodingPlan.Level.HALF_RESOLUTION, jcodec.plan(PAYLOAD_BYTES, 1_900, WIDTH, HEIGHT).level());
+
+        // Coalesced fragments keep the video size, so frames are thinned out right away.
+        DeadlineController coalescing = new DeadlineController(0, 1_000, 4, false, false);
+        coalescing.observe(EncodingPlan.full(WIDTH, HEIGHT), PAYLOAD_BYTES, invocation(1_000, 100));
+        EncodingPlan plan = coalescing.plan(PAYLOAD_BYTES, 1_550, WIDTH, HEIGHT);
+        assertEquals(EncodingPlan.Level.FULL, plan.level());
+        assertEquals(2, plan.keepEvery());
+        assertEquals(WIDTH, plan.width());
+    }
+
+    @Test
+    public void estimatesFollowRecentInvocationsTest() {
+        DeadlineController controller = new DeadlineController(0, 0, 4, true, true);
+        controller.observe(EncodingPlan.full(WIDTH, HEIGHT), PAYLOAD_BYTES, invocation(1_000, 0));
+        assertEquals(1_000, controller.plan(PAYLOAD_BYTES, 5_000, WIDTH, HEIGHT).predictedMillis());
+
+        // Thinned out invocations are scaled back to full quality and all frames.
+        EncodingPlan thinned = new EncodingPlan(EncodingPlan.Level.FULL, WIDTH, HEIGHT, 2, 0, 0);
+        controller.observe(thinned, PAYLOAD_BYTES, invocation(1_000, 0));
+        assertEquals(1_300, controller.plan(PAYLOAD_BYTES, 5_000, WIDTH, HEIGHT).predictedMillis());
+    }
+
+    private static InvocationMetrics invocation(long totalMillis, long ackMillis) {
+        InvocationMetrics metrics = new InvocationMetrics();
+        metrics.add(Stage.TOTAL, TimeUnit.MILLISECONDS.toNanos(totalMillis));
+        metrics.add(Stage.ACK, TimeUnit.MILLISECONDS.toNanos(ackMillis));
+
+        return metrics;
+    }
+}
@@ -0,0 +1,68 @@
+package den.tal.traffic.guard.kvs;
+
+import den.tal.traffic.guard.SyntheticFrames;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class FFmpegPipeEncoderTest {
+
+    private static final String FFMPEG = "ffmpeg";
+
+    @Test
+    public void frameRateIsPassedToFFmpegTest() {
+        List<String> command = new FFmpegPipeEncoder(FFMPEG, 640, 480, 2.5).getCommand();
+        int rate = command.indexOf("-r");
+        assertTrue(rate > 0);
+        assertEquals("2.500", command.get(rate + 1));
+        assertTrue(rate < command.indexOf("pipe:0"));
+    }
+
+    /**
+     * Runs FFmpeg from the path, skipped if there's none.
+     */
+    @Test
+    public void outputDurationFollowsFrameRateTest() throws Exception {
+        assumeTrue(isFFmpegAvailable(), "FFmpeg is not on the path.");
+        List<byte[]> frames = SyntheticFrames.generate(10, "320x240", "jpeg");
+        try (FFmpegPipeEncoder encoder = new FFmpegPipeEncoder(FFMPEG, 320, 240, 2.5)) {
+            encoder.start();
+            encoder.startJob(30_000);
+            TimecodeShiftingInputStream mkv = new TimecodeShiftingInputStream(encoder.getMkvStream(), 0);
+            CompletableFuture<byte[]> output = CompletableFuture.supplyAsync(() -> {
+                try {
+
+                    return mkv.readAllBytes();
+                } catch (IOException ioex) {
+                    throw new UncheckedIOException(ioex);
+                }
+            });
+            for (byte[] frame : frames) {
+                encoder.getFramesStream().write(frame);
+            }
+            encoder.finishFrames();
+            assertTrue(output.get().length > 0);
+            encoder.awaitCompletion(30_000);
+
+            // 10 frames at 2.5 fps last 4 s, not the 2 s of the default frame rate.
+            assertEquals(10, mkv.getNumOfBlocks());
+            assertEquals(4_000, mkv.getEndTimecodeMillis(), 1);
+        }
+    }
+
+    private static boolean isFFmpegAvailable() {
+        try {
+
+            return new ProcessBuilder(FFMPEG, "-version").start().waitFor() == 0;
+        } catch (IOException | InterruptedException ex) {
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package den.tal.traffic.guard.kvs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * <code>cat</code> stands in for FFmpeg: it reads stdin until it's closed and writes it to stdout, as FFmpeg pipe
+ * workers do.
+ */
+@EnabledOnOs({OS.LINUX, OS.MAC})
+public class FFmpegWorkerPoolTest {
+
+    private static final long HEALTH_CHECK_INTERVAL_IN_MILLIS = 50;
+
+    @Test
+    public void workerEncodesOneBatchTest() throws Exception {
+        try (FFmpegWorkerPool pool = new FFmpegWorkerPool(() -> new FFmpegPipeEncoder(List.of("cat")), 2,
+                HEALTH_CHECK_INTERVAL_IN_MILLIS)) {
+            awaitIdleWorkers(pool, 2);
+            byte[] batch = "frames".getBytes(StandardCharsets.US_ASCII);
+            try (FFmpegPipeEncoder worker = pool.take()) {
+                worker.startJob(10_000);
+                worker.getFramesStream().write(batch);
+                worker.finishFrames();
+                assertArrayEquals(batch, worker.getMkvStream().readAllBytes());
+                worker.awaitCompletion(10_000);
+            }
+            assertEquals(1, pool.getHits().get());
+            assertEquals(0, pool.getMisses().get());
+            awaitIdleWorkers(pool, 2);
+        }
+    }
+
+    @Test
+    public void exitedWorkerIsRestartedTest() throws Exception {
+        List<FFmpegPipeEncoder> started = new CopyOnWriteArrayList<>();
+        try (FFmpegWorkerPool pool = new FFmpegWorkerPool(() -> {
+            FFmpegPipeEncoder worker = new FFmpegPipeEncoder(List.of("cat"));
+            started.add(worker);
+
+            return worker;
+        }, 1, HEALTH_CHECK_INTERVAL_IN_MILLIS)) {
+            awaitIdleWorkers(pool, 1);
+            FFmpegPipeEncoder idle = started.get(0);
+            // Closed stdin makes the idle worker exit, as if it crashed.
+            idle.finishFrames();
+            idle.awaitCompletion(10_000);
+            for (int i = 0; i < 100 && pool.getRestarts().get() == 0; ++i) {
+                Thread.sleep(HEALTH_CHECK_INTERVAL_IN_MILLIS);
+            }
+            assertEquals(1, pool.getRestarts().get());
+            awaitIdleWorkers(pool, 1);
+            try (FFmpegPipeEncoder worker = pool.take()) {
+                assertNotSame(idle, worker);
+                assertTrue(worker.isAlive());
+            }
+            assertEquals(1, pool.getHits().get());
+        }
+    }
+
+    @Test
+    public void hungJobIsKilledTest() throws Exception {
+        try (FFmpegPipeEncoder worker = new FFmpegPipeEncoder(List.of("cat"))) {
+            worker.start();
+            worker.startJob(100);
+            // stdin is never closed, so the job would never finish.
+            assertThrows(IOException.class, () -> worker.awaitCompletion(10_000));
+            assertFalse(worker.isAlive());
+        }
+    }
+
+    private static void awaitIdleWorkers(FFmpegWorkerPool pool, int workers) throws InterruptedException {
+        for (int i = 0; i < 100 && pool.getIdleWorkers() < workers; ++i) {
+            Thread.sleep(HEALTH_CHECK_INTERVAL_IN_MILLIS);
+        }
+        assertEquals(workers, pool.getIdleWorkers());
+    }
+}
@@ -0,0 +1,150 @@
+package den.tal.traffic.guard.kvs;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FragmentCoalescerTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final byte[] CLUSTER = {0x1F, 0x43, (byte) 0xB6, 0x75};
+    private static final FragmentCoalescer.Key KEY = new FragmentCoalescer.Key("stream", "producer");
+
+    private record Flushed(FragmentCoalescer.Key key, byte[] mkv, int numOfFrames) {
+    }
+
+    private final List<Flushed> flushed = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void batchesAreMergedIntoOneFragmentTest() throws Exception {
+        try (FragmentCoalescer coalescer = new FragmentCoalescer(this::collect, WIDTH, HEIGHT, 5, Long.MAX_VALUE,
+                60_000)) {
+            for (int batch = 0; batch < 3; ++batch) {
+                addBatch(coalescer, KEY, batch, 2);
+            }
+            assertEquals(3, coalescer.getBatches().get());
+            awaitFlushed(1);
+            assertEquals(1, flushed.size());
+            assertEquals(6, flushed.get(0).numOfFrames());
+            // One cluster is one KVS fragment: frames of later batches are not key frames.
+            assertEquals(1, count(flushed.get(0).mkv(), CLUSTER));
+
+            addBatch(coalescer, KEY, 3, 2);
+            assertEquals(1, flushed.size());
+        }
+        // The rest is flushed on close.
+        assertEquals(2, flushed.size());
+        assertEquals(2, flushed.get(1).numOfFrames());
+    }
+
+    @Test
+    public void producersAreCoalescedSeparatelyTest() throws Exception {
+        FragmentCoalescer.Key other = new FragmentCoalescer.Key("stream", "other");
+        try (FragmentCoalescer coalescer = new FragmentCoalescer(this::collect, WIDTH, HEIGHT, 4, Long.MAX_VALUE,
+                60_000)) {
+            addBatch(coalescer, KEY, 0, 2);
+            addBatch(coalescer, other, 0, 2);
+            addBatch(coalescer, KEY, 1, 2);
+            awaitFlushed(1);
+            assertEquals(1, flushed.size());
+            assertEquals(KEY, flushed.get(0).key());
+        }
+        assertEquals(2, flushed.size());
+        assertEquals(other, flushed.get(1).key());
+    }
+
+    @Test
+    public void fragmentIsFlushedAfterMaxDelayTest() throws Exception {
+        try (FragmentCoalescer coalescer = new FragmentCoalescer(this::collect, WIDTH, HEIGHT, 100, Long.MAX_VALUE,
+                100)) {
+            addBatch(coalescer, KEY, 0, 2);
+            awaitFlushed(1);
+            assertEquals(1, flushed.size());
+            assertEquals(2, flushed.get(0).numOfFrames());
+            assertEquals(1, coalescer.getFlushes().get());
+        }
+        assertEquals(1, flushed.size());
+    }
+
+    @Test
+    public void fragmentsOfProducerAreSentInOrderTest() throws Exception {
+        List<Integer> sent = new CopyOnWriteArrayList<>();
+        // The first fragment takes longer to send than the next ones.
+        FragmentCoalescer.FragmentSender slowFirst = (key, mkv, numOfFrames) -> {
+            if (sent.isEmpty()) {
+                Thread.sleep(200);
+            }
+            sent.add(numOfFrames);
+        };
+        try (FragmentCoalescer coalescer = new FragmentCoalescer(slowFirst, WIDTH, HEIGHT, 2, Long.MAX_VALUE,
+                60_000)) {
+            addBatch(coalescer, KEY, 0, 2);
+            addBatch(coalescer, KEY, 1, 3);
+            addBatch(coalescer, KEY, 2, 4);
+            assertEquals(3, coalescer.getFlushes().get());
+        }
+        assertEquals(List.of(2, 3, 4), sent);
+    }
+
+    /**
+     * Flushed fragments are sent in the background.
+     */
+    private void awaitFlushed(int numOfFragments) throws InterruptedException {
+        for (int i = 0; i < 100 && flushed.size() < numOfFragments; ++i) {
+            Thread.sleep(50);
+        }
+    }
+
+    private void collect(FragmentCoalescer.Key key, byte[] mkv, int numOfFrames) {
+        flushed.add(new Flushed(key, mkv, numOfFrames));
+    }
+
+    private static void addBatch(FragmentCoalescer coalescer, FragmentCoalescer.Key key, int batch, int numOfFrames)
+            throws Exception {
+        long[] timestamps = new long[numOfFrames];
+        try (FragmentCoalescer.Fragment fragment = coalescer.open(key)) {
+            for (int i = 0; i < numOfFrames; ++i) {
+                timestamps[i] = 1_600_000_000_000L + (batch * numOfFrames + i) * 200L;
+                fragment.encodeFrame(i, frame(batch * numOfFrames + i));
+            }
+            fragment.finishBatch(timestamps, 5);
+        }
+    }
+
+    private static BufferedImage frame(int ordinal) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.DARK_GRAY);
+            graphics.fillRect(0, 0, WIDTH, HEIGHT);
+            graphics.setColor(Color.ORANGE);
+            graphics.fillRect(ordinal * 4 % WIDTH, HEIGHT / 3, 12, 8);
+        } finally {
+            graphics.dispose();
+        }
+
+        return image;
+    }
+
+    private static int count(byte[] data, byte[] pattern) {
+        int count = 0;
+        for (int i = 0; i + pattern.length <= data.length; ++i) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                ++j;
+            }
+            if (j == pattern.length) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+}
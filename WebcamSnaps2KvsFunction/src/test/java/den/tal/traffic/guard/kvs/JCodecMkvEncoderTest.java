@@ -0,0 +1,83 @@
+package den.tal.traffic.guard.kvs;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JCodecMkvEncoderTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final byte[] CLUSTER_ID = {0x1F, 0x43, (byte) 0xB6, 0x75};
+
+    @Test
+    public void framesPastTimestampsFollowTheLastOneTest() throws IOException {
+        try (JCodecMkvEncoder encoder = new JCodecMkvEncoder(OutputStream.nullOutputStream(), WIDTH, HEIGHT)) {
+            encoder.setTiming(new long[] {1_600_000_001_000L, 1_600_000_001_300L}, 5);
+            assertEquals(0, encoder.timecode(0));
+            assertEquals(300, encoder.timecode(1));
+            assertEquals(500, encoder.timecode(2));
+            assertEquals(700, encoder.timecode(3));
+        }
+    }
+
+    @Test
+    public void batchesNeverGoBackInTimeTest() throws IOException {
+        try (JCodecMkvEncoder encoder = new JCodecMkvEncoder(OutputStream.nullOutputStream(), WIDTH, HEIGHT)) {
+            encoder.setTiming(new long[] {5_000, 15_000}, 1);
+            encodeFrames(encoder, 2);
+            encoder.finishBatch(new long[] {5_000, 15_000}, 1);
+
+            // No timestamps, the batch is placed by the wall clock, which is way behind the client's clock.
+            encoder.startBatch();
+            encoder.setTiming(new long[0], 5);
+            assertEquals(10_001, encoder.timecode(0));
+            assertEquals(10_201, encoder.timecode(1));
+            encodeFrames(encoder, 2);
+            encoder.finishBatch(new long[0], 5);
+
+            // Client timestamps go on from the first one of the stream.
+            encoder.startBatch();
+            encoder.setTiming(new long[] {16_000}, 5);
+            assertEquals(11_000, encoder.timecode(0));
+        }
+    }
+
+    @Test
+    public void frameTooFarFromClusterIsKeyFrameTest() throws IOException {
+        ByteArrayOutputStream mkv = new ByteArrayOutputStream();
+        try (JCodecMkvEncoder encoder = new JCodecMkvEncoder(mkv, WIDTH, HEIGHT)) {
+            encoder.setTiming(new long[] {0, 1_000, 40_000, 41_000}, 1);
+            for (int i = 0; i < 4; ++i) {
+                encoder.encodeFrame(i, new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR));
+            }
+            encoder.finish();
+        }
+        byte[] data = mkv.toByteArray();
+        int clusters = 0;
+        for (int i = 0; i + CLUSTER_ID.length <= data.length; ++i) {
+            if (data[i] == CLUSTER_ID[0] && data[i + 1] == CLUSTER_ID[1] && data[i + 2] == CLUSTER_ID[2]
+                    && data[i + 3] == CLUSTER_ID[3]) {
+                ++clusters;
+            }
+        }
+        assertEquals(2, clusters);
+
+        TimecodeShiftingInputStream timecodes = new TimecodeShiftingInputStream(new ByteArrayInputStream(data), 0);
+        timecodes.readAllBytes();
+        assertEquals(4, timecodes.getNumOfBlocks());
+        assertEquals(41_000 + 41_000 / 3, timecodes.getEndTimecodeMillis());
+    }
+
+    private static void encodeFrames(JCodecMkvEncoder encoder, int numOfFrames) throws IOException {
+        for (int i = 0; i < numOfFrames; ++i) {
+            encoder.encodeFrame(i, new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package den.tal.traffic.guard.kvs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimecodeShiftingInputStreamTest {
+
+    private static final byte[] KEY_FRAME = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1E, 0, 0, 0, 1, 0x68, (byte) 0xCE, 0x38,
+            (byte) 0x80, 0, 0, 0, 1, 0x65, (byte) 0x88, 0x01, 0x02};
+    private static final byte[] FRAME = {0, 0, 0, 1, 0x41, (byte) 0x9A, 0x03};
+
+    @Test
+    public void clusterTimecodeIsShiftedTest() throws IOException {
+        ByteArrayOutputStream mkv = new ByteArrayOutputStream();
+        try (MkvStreamWriter writer = new MkvStreamWriter(mkv, 640, 480)) {
+            writer.writeFrame(ByteBuffer.wrap(KEY_FRAME), 0, true);
+            writer.writeFrame(ByteBuffer.wrap(FRAME), 40, false);
+            writer.writeFrame(ByteBuffer.wrap(FRAME), 80, false);
+        }
+        byte[] original = mkv.toByteArray();
+
+        TimecodeShiftingInputStream shifting = new TimecodeShiftingInputStream(new ByteArrayInputStream(original),
+                1_000);
+        byte[] shifted = shifting.readAllBytes();
+        assertEquals(3, shifting.getNumOfBlocks());
+        assertEquals(1_120, shifting.getEndTimecodeMillis());
+
+        // Timecode 0 takes one byte, 1000 takes two.
+        assertEquals(original.length + 1, shifted.length);
+        assertEquals(-1, indexOf(original, new byte[] {(byte) 0xE7, (byte) 0x82, 0x03, (byte) 0xE8}));
+        int timecode = indexOf(shifted, new byte[] {(byte) 0xE7, (byte) 0x82, 0x03, (byte) 0xE8});
+        assertTrue(timecode > 0);
+        // Everything after the timecode is the same.
+        int originalTimecode = indexOf(original, new byte[] {(byte) 0xE7, (byte) 0x81, 0x00});
+        assertArrayEquals(Arrays.copyOfRange(original, originalTimecode + 3, original.length),
+                Arrays.copyOfRange(shifted, timecode + 4, shifted.length));
+    }
+
+    @Test
+    public void knownClusterSizeIsUpdatedTest() throws IOException {
+        byte[] cluster = {0x1F, 0x43, (byte) 0xB6, 0x75, (byte) 0x90,
+                // CRC-32
+                (byte) 0xBF, (byte) 0x84, 0x11, 0x22, 0x33, 0x44,
+                // Timecode 0
+                (byte) 0xE7, (byte) 0x81, 0x00,
+                // SimpleBlock, track 1, relative timecode 5, key frame, 1 byte of data
+                (byte) 0xA3, (byte) 0x85, (byte) 0x81, 0x00, 0x05, (byte) 0x80, 0x01};
+        byte[] expected = {0x1F, 0x43, (byte) 0xB6, 0x75, (byte) 0x91,
+                (byte) 0xEC, (byte) 0x84, 0, 0, 0, 0,
+                (byte) 0xE7, (byte) 0x82, 0x01, 0x2C,
+                (byte) 0xA3, (byte) 0x85, (byte) 0x81, 0x00, 0x05, (byte) 0x80, 0x01};
+
+        TimecodeShiftingInputStream shifting = new TimecodeShiftingInputStream(new ByteArrayInputStream(cluster),
+                300);
+        assertArrayEquals(expected, shifting.readAllBytes());
+        assertEquals(1, shifting.getNumOfBlocks());
+    }
+
+    @Test
+    public void emptyAndTruncatedStreamsTest() throws IOException {
+        TimecodeShiftingInputStream empty = new TimecodeShiftingInputStream(new ByteArrayInputStream(new byte[0]),
+                1_000);
+        assertEquals(-1, empty.read());
+        assertEquals(0, empty.getNumOfBlocks());
+        assertEquals(1_000, empty.getEndTimecodeMillis());
+
+        // SimpleBlock which promises 5 bytes and has 4.
+        byte[] truncated = {(byte) 0xA3, (byte) 0x85, (byte) 0x81, 0x00, 0x05, (byte) 0x80};
+        assertThrows(EOFException.class, () -> new TimecodeShiftingInputStream(new ByteArrayInputStream(truncated),
+                0).readAllBytes());
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; ++i) {
+            if (Arrays.equals(data, i, i + pattern.length, pattern, 0, pattern.length)) {
+
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
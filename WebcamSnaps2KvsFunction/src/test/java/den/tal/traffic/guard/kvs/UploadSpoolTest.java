@@ -0,0 +1,180 @@
+package den.tal.traffic.guard.kvs;
+
+import com.amazonaws.AmazonServiceException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadSpoolTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    private static final long PRODUCER_START = 1_600_000_000_000L;
+
+    private record Uploaded(byte[] mkv, long producerStartMillis) {
+    }
+
+    @TempDir
+    Path directory;
+
+    private final List<Uploaded> uploaded = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void persistedFragmentIsMarkedDoneTest() throws Exception {
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 4, this::persist, 10, 50)) {
+            UploadSpool.Record record = spool.append(fragment(100, 1), PRODUCER_START);
+            assertEquals(1, spool.getPending());
+            spool.track(record, CompletableFuture.completedFuture(null));
+            assertEquals(0, spool.getPending());
+            assertEquals(1, spool.getPersisted().get());
+            assertEquals(0, spool.getReplays().get());
+        }
+        assertTrue(uploaded.isEmpty());
+    }
+
+    @Test
+    public void failedUploadIsReplayedTest() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final byte[] mkv = fragment(300, 2);
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 4, (fragment, producerStartMillis) -> {
+            if (attempts.incrementAndGet() < 3) {
+
+                return CompletableFuture.failedFuture(new IOException("ClientLimitExceededException"));
+            }
+
+            return persist(fragment, producerStartMillis);
+        }, 10, 50)) {
+            spool.track(spool.append(mkv, PRODUCER_START),
+                    CompletableFuture.failedFuture(new IOException("Connection reset.")));
+            awaitPersisted(spool, 1);
+            assertEquals(3, spool.getReplays().get());
+            assertEquals(0, spool.getPending());
+        }
+        assertEquals(1, uploaded.size());
+        assertArrayEquals(mkv, uploaded.get(0).mkv());
+        assertEquals(PRODUCER_START, uploaded.get(0).producerStartMillis());
+    }
+
+    @Test
+    public void pendingFragmentsAreReplayedAfterReopenTest() throws Exception {
+        final byte[] pending = fragment(200, 3);
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 4, this::persist, 10, 50)) {
+            spool.track(spool.append(fragment(200, 4), PRODUCER_START), CompletableFuture.completedFuture(null));
+            // Upload of the second fragment never completes, as if the process was frozen or killed.
+            spool.track(spool.append(pending, PRODUCER_START + 1), new CompletableFuture<>());
+            assertEquals(1, spool.getPending());
+        }
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 4, this::persist, 200, 400)) {
+            assertEquals(1, spool.getPending());
+            awaitPersisted(spool, 1);
+            assertEquals(0, spool.getPending());
+        }
+        assertEquals(1, uploaded.size());
+        assertArrayEquals(pending, uploaded.get(0).mkv());
+        assertEquals(PRODUCER_START + 1, uploaded.get(0).producerStartMillis());
+    }
+
+    @Test
+    public void spoolIsBoundedTest() throws Exception {
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 2, this::persist, 10, 50)) {
+            assertThrows(IOException.class, () -> spool.append(fragment(SEGMENT_SIZE, 5), PRODUCER_START));
+            // A fragment per segment.
+            UploadSpool.Record first = spool.append(fragment(600, 6), PRODUCER_START);
+            spool.append(fragment(600, 7), PRODUCER_START);
+            assertThrows(IOException.class, () -> spool.append(fragment(600, 8), PRODUCER_START));
+            assertEquals(2, countSegments());
+
+            // The segment is deleted as soon as its fragments are persisted.
+            spool.track(first, CompletableFuture.completedFuture(null));
+            assertEquals(1, countSegments());
+            spool.append(fragment(600, 9), PRODUCER_START);
+            assertEquals(2, spool.getPending());
+            assertEquals(2, countSegments());
+        }
+    }
+
+    @Test
+    public void rejectedFragmentIsDroppedTest() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 4, (fragment, producerStartMillis) -> {
+            attempts.incrementAndGet();
+
+            return CompletableFuture.failedFuture(new KvsAckException("INVALID_MKV_DATA"));
+        }, 10, 50)) {
+            // The first attempt is throttled, the replay is rejected.
+            spool.track(spool.append(fragment(100, 10), PRODUCER_START),
+                    CompletableFuture.failedFuture(serviceError(400, "ClientLimitExceededException")));
+            for (int i = 0; i < 100 && spool.getDropped().get() < 1; ++i) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, spool.getDropped().get());
+            assertEquals(0, spool.getPending());
+            Thread.sleep(200);
+            assertEquals(1, attempts.get());
+            assertEquals(0, spool.getPersisted().get());
+        }
+        // Nor is it replayed by the next spool.
+        try (UploadSpool spool = new UploadSpool(directory, SEGMENT_SIZE, 4, this::persist, 10, 50)) {
+            assertEquals(0, spool.getPending());
+        }
+        assertTrue(uploaded.isEmpty());
+    }
+
+    @Test
+    public void failuresAreClassifiedTest() {
+        assertTrue(UploadSpool.isRetryable(new IOException("Connection reset.")));
+        assertTrue(UploadSpool.isRetryable(serviceError(400, "ClientLimitExceededException")));
+        assertTrue(UploadSpool.isRetryable(serviceError(503, "ServiceUnavailableException")));
+        assertTrue(UploadSpool.isRetryable(new KvsAckException("INTERNAL_ERROR")));
+        assertFalse(UploadSpool.isRetryable(new KvsAckException("STREAM_NOT_ACTIVE")));
+        assertFalse(UploadSpool.isRetryable(serviceError(404, "ResourceNotFoundException")));
+        assertFalse(UploadSpool.isRetryable(new CompletionException(serviceError(401, "NotAuthorizedException"))));
+    }
+
+    private static AmazonServiceException serviceError(int statusCode, String errorCode) {
+        AmazonServiceException error = new AmazonServiceException(errorCode);
+        error.setStatusCode(statusCode);
+        error.setErrorCode(errorCode);
+
+        return error;
+    }
+
+    private CompletableFuture<?> persist(byte[] mkv, long producerStartMillis) {
+        uploaded.add(new Uploaded(mkv, producerStartMillis));
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+
+            return files.count();
+        }
+    }
+
+    private static void awaitPersisted(UploadSpool spool, long numOfFragments) throws InterruptedException {
+        for (int i = 0; i < 100 && spool.getPersisted().get() < numOfFragments; ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals(numOfFragments, spool.getPersisted().get());
+    }
+
+    private static byte[] fragment(int length, int seed) {
+        byte[] mkv = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            mkv[i] = (byte) (seed * 31 + i);
+        }
+
+        return mkv;
+    }
+}
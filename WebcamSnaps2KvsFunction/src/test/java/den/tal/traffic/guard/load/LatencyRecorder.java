@@ -0,0 +1,49 @@
+package den.tal.traffic.guard.load;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and computes percentiles. Thread safe.
+ *
+ * @author Denis Talochkin
+ */
+public class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+    private int size;
+
+    public synchronized void record(long latencyMillis) {
+        if (size == samples.length) {
+            samples = Arrays.copyOf(samples, size * 2);
+        }
+        samples[size++] = latencyMillis;
+    }
+
+    public synchronized int getCount() {
+
+        return size;
+    }
+
+    /**
+     * @param percentile from 0 to 100.
+     * @return latency in milliseconds, or 0 if nothing has been recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (size == 0) {
+
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("count: %d, p50: %d ms, p99: %d ms, max: %d ms", getCount(), getPercentile(50),
+                getPercentile(99), getPercentile(100));
+    }
+}
@@ -0,0 +1,133 @@
+package den.tal.traffic.guard.load;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import den.tal.traffic.guard.SyntheticFrames;
+import den.tal.traffic.guard.WebcamStreamProcessor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives {@link WebcamStreamProcessor#handleRequest} with many simulated cameras against {@link LocalKvsServer} and
+ * reports requests/s, frames/s, end-to-end latency and fragment ack latency.
+ * <p>
+ * Every camera sends a batch of synthetic frames, waits for the response and sleeps for the rest of its interval,
+ * the same way the web client does. Run with <code>gradlew loadTest</code>; arguments are <code>name=value</code>
+ * pairs, see {@link #DEFAULTS}. The function reads its settings from the environment, so <code>KVSEndpoint</code>
+ * must point at the local server port, the Gradle task takes care of it.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "cameras", "10",
+            "durationSeconds", "60",
+            "batchSize", "5",
+            "intervalMillis", "1000",
+            "resolution", "640x480",
+            "format", "jpeg",
+            "port", "4567",
+            "receivedLatencyMillis", "100",
+            "persistedLatencyMillis", "200",
+            "maxConnectionsPerSecond", "0");
+
+    private final Map<String, String> options;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final LatencyRecorder endToEndLatency = new LatencyRecorder();
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = new HashMap<>(DEFAULTS);
+        this.options.putAll(options);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !DEFAULTS.containsKey(option[0])) {
+                throw new IllegalArgumentException(String.format("Unknown option '%s'. Options: %s", arg,
+                        DEFAULTS.keySet()));
+            }
+            options.put(option[0], option[1]);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    public void run() throws Exception {
+        final int cameras = getInt("cameras");
+        final int batchSize = getInt("batchSize");
+        final long intervalMillis = getInt("intervalMillis");
+        final long durationMillis = getInt("durationSeconds") * 1000L;
+        String endpoint = System.getenv("KVSEndpoint");
+        if (null == endpoint || URI.create(endpoint).getPort() != getInt("port")) {
+            log.warn("KVSEndpoint '{}' doesn't point at the local server port {}.", endpoint, getInt("port"));
+        }
+
+        String body = SyntheticFrames.toRequestBody(SyntheticFrames.toDataUris(SyntheticFrames.generate(batchSize,
+                options.get("resolution"), options.get("format")), options.get("format")),
+                (int) Math.max(1, batchSize * 1000 / intervalMillis));
+
+        try (LocalKvsServer kvs = new LocalKvsServer(getInt("port"), getInt("receivedLatencyMillis"),
+                getInt("persistedLatencyMillis"), getInt("maxConnectionsPerSecond")).start()) {
+            log.info("Start {} cameras for {} s. Options: {}", cameras, durationMillis / 1000, options);
+            ExecutorService executor = Executors.newFixedThreadPool(cameras);
+            final long startedAt = System.currentTimeMillis();
+            final long stopAt = startedAt + durationMillis;
+            for (int camera = 0; camera < cameras; ++camera) {
+                // Cameras start evenly spread over the interval, not all at once.
+                final long delay = camera * intervalMillis / cameras;
+                executor.submit(() -> runCamera(body, batchSize, delay, intervalMillis, stopAt));
+            }
+            executor.shutdown();
+            executor.awaitTermination(durationMillis + 60_000, TimeUnit.MILLISECONDS);
+            double seconds = (System.currentTimeMillis() - startedAt) / 1000.0;
+
+            log.info("Requests: {} ({} failed), {} req/s", requests.get(), failedRequests.get(),
+                    String.format("%.1f", requests.get() / seconds));
+            log.info("Frames: {}, {} frames/s", frames.get(), String.format("%.1f", frames.get() / seconds));
+            log.info("End-to-end latency: {}", endToEndLatency);
+            log.info("Fragment ack latency (first byte to PERSISTED): {}", kvs.getAckLatency());
+            log.info("KVS connections: {} ({} throttled), fragments: {}, frames: {}, bytes: {}",
+                    kvs.getConnections().get(), kvs.getThrottledConnections().get(), kvs.getFragments().get(),
+                    kvs.getFrames().get(), kvs.getBytes().get());
+        }
+    }
+
+    private Void runCamera(String body, int batchSize, long delay, long intervalMillis, long stopAt)
+            throws InterruptedException {
+        Thread.sleep(delay);
+        WebcamStreamProcessor processor = new WebcamStreamProcessor();
+        while (System.currentTimeMillis() < stopAt) {
+            long sentAt = System.currentTimeMillis();
+            APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent();
+            request.setHttpMethod("POST");
+            request.setBody(body);
+            try {
+                processor.handleRequest(request, null);
+                frames.addAndGet(batchSize);
+            } catch (RuntimeException rex) {
+                failedRequests.incrementAndGet();
+                log.warn("Request failed.", rex);
+            }
+            requests.incrementAndGet();
+            long latency = System.currentTimeMillis() - sentAt;
+            endToEndLatency.record(latency);
+            Thread.sleep(Math.max(0, intervalMillis - latency));
+        }
+
+        return null;
+    }
+
+    private int getInt(String option) {
+
+        return Integer.parseInt(options.get(option));
+    }
+}
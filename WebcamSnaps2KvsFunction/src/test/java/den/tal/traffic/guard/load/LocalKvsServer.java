@@ -0,0 +1,379 @@
+package den.tal.traffic.guard.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for Kinesis Video Streams. Emulates <code>GetDataEndpoint</code>, which returns the address of this
+ * server, and <code>PutMedia</code>, which reads the chunked MKV stream and answers with streaming ack events:
+ * BUFFERING when a fragment (cluster) starts, RECEIVED and PERSISTED after it's complete.
+ * <p>
+ * Ack latency and throttling are configurable, and the next connections can be throttled on demand to inject
+ * faults. Throttled connections get HTTP 400 with <code>ClientLimitExceededException</code>, as the real service
+ * does. Media is parsed only as far as EBML elements go, frames are not decoded. Point the function at the server
+ * with <code>KVSEndpoint</code> environment variable.
+ *
+ * @author Denis Talochkin
+ */
+@Slf4j
+public class LocalKvsServer implements Closeable {
+
+    private static final int EBML = 0x1A45DFA3;
+    private static final int SEGMENT = 0x18538067;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int CLUSTER_TIMECODE = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+    private static final int BLOCK_GROUP = 0xA0;
+    private static final long UNKNOWN_SIZE = -1;
+    private static final BigInteger FIRST_FRAGMENT_NUMBER = new BigInteger("91343852333181432392682062600000000000");
+
+    private final HttpServer server;
+    private final ScheduledExecutorService ackScheduler;
+    private final long receivedLatencyMillis;
+    private final long persistedLatencyMillis;
+    private final int maxConnectionsPerSecond;
+    private final AtomicLong fragmentNumber = new AtomicLong();
+    private final AtomicInteger connectionsToThrottle = new AtomicInteger();
+    private long throttlingWindowStart;
+    private int connectionsInWindow;
+
+    @Getter
+    private final AtomicLong connections = new AtomicLong();
+
+    @Getter
+    private final AtomicLong throttledConnections = new AtomicLong();
+
+    @Getter
+    private final AtomicLong fragments = new AtomicLong();
+
+    @Getter
+    private final AtomicLong frames = new AtomicLong();
+
+    @Getter
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Time from the first byte of a fragment to its PERSISTED ack.
+     */
+    @Getter
+    private final LatencyRecorder ackLatency = new LatencyRecorder();
+
+    /**
+     * @param port port to listen on, 0 for any free port.
+     * @param receivedLatencyMillis delay of RECEIVED ack after the fragment is read.
+     * @param persistedLatencyMillis delay of PERSISTED ack after RECEIVED.
+     * @param maxConnectionsPerSecond PutMedia connections over this limit are throttled, 0 means no limit.
+     */
+    public LocalKvsServer(int port, long receivedLatencyMillis, long persistedLatencyMillis,
+                          int maxConnectionsPerSecond) throws IOException {
+        this.receivedLatencyMillis = receivedLatencyMillis;
+        this.persistedLatencyMillis = persistedLatencyMillis;
+        this.maxConnectionsPerSecond = maxConnectionsPerSecond;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "local-kvs");
+            thread.setDaemon(true);
+
+            return thread;
+        }));
+        this.ackScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-kvs-acks");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.server.createContext("/getDataEndpoint", this::getDataEndpoint);
+        this.server.createContext("/putMedia", this::putMedia);
+    }
+
+    public LocalKvsServer start() {
+        server.start();
+        log.info("Local KVS listens on {}", getUrl());
+
+        return this;
+    }
+
+    public String getUrl() {
+
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Throttles the next PutMedia connections regardless of their rate.
+     */
+    public void throttleNext(int numOfConnections) {
+        connectionsToThrottle.set(numOfConnections);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        ackScheduler.shutdownNow();
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private void getDataEndpoint(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        sendJson(exchange, 200, String.format("{\"DataEndpoint\":\"%s\"}", getUrl()));
+    }
+
+    private void putMedia(HttpExchange exchange) throws IOException {
+        connections.incrementAndGet();
+        if (isThrottled()) {
+            throttledConnections.incrementAndGet();
+            exchange.getResponseHeaders().add("x-amzn-ErrorType", "ClientLimitExceededException");
+            sendJson(exchange, 400, "{\"message\":\"Connection rate limit exceeded.\"}");
+
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream response = exchange.getResponseBody();
+             InputStream request = new BufferedInputStream(exchange.getRequestBody())) {
+            AckWriter acks = new AckWriter(response);
+            try {
+                new FragmentScanner(request, acks).scan();
+            } catch (IOException ioex) {
+                log.warn("Could not read MKV stream.", ioex);
+                acks.error(4006);
+            }
+            acks.awaitPending();
+        }
+    }
+
+    private synchronized boolean isThrottled() {
+        if (connectionsToThrottle.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+
+            return true;
+        }
+        if (maxConnectionsPerSecond <= 0) {
+
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - throttlingWindowStart >= 1000) {
+            throttlingWindowStart = now;
+            connectionsInWindow = 0;
+        }
+
+        return ++connectionsInWindow > maxConnectionsPerSecond;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    /**
+     * Writes ack events of a single PutMedia connection. RECEIVED and PERSISTED acks are delayed.
+     */
+    private class AckWriter {
+
+        private final OutputStream response;
+        private final List<Future<?>> pending = new ArrayList<>();
+
+        private AckWriter(OutputStream response) {
+            this.response = response;
+        }
+
+        void fragmentStarted(String number, long timecode) throws IOException {
+            write(String.format("{\"EventType\":\"BUFFERING\",\"FragmentTimecode\":%d,\"FragmentNumber\":\"%s\"}",
+                    timecode, number));
+        }
+
+        void fragmentCompleted(String number, long timecode, long startedAt) {
+            fragments.incrementAndGet();
+            pending.add(ackScheduler.schedule(() -> {
+                write(String.format("{\"EventType\":\"RECEIVED\",\"FragmentTimecode\":%d,\"FragmentNumber\":\"%s\"}",
+                        timecode, number));
+
+                return null;
+            }, receivedLatencyMillis, TimeUnit.MILLISECONDS));
+            pending.add(ackScheduler.schedule(() -> {
+                write(String.format("{\"EventType\":\"PERSISTED\",\"FragmentTimecode\":%d,\"FragmentNumber\":\"%s\"}",
+                        timecode, number));
+                ackLatency.record(System.currentTimeMillis() - startedAt);
+
+                return null;
+            }, receivedLatencyMillis + persistedLatencyMillis, TimeUnit.MILLISECONDS));
+        }
+
+        void error(int errorId) throws IOException {
+            write(String.format("{\"EventType\":\"ERROR\",\"FragmentTimecode\":0,\"FragmentNumber\":\"%s\","
+                    + "\"ErrorId\":%d}", FIRST_FRAGMENT_NUMBER, errorId));
+        }
+
+        void awaitPending() {
+            for (Future<?> ack : pending) {
+                try {
+                    ack.get();
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+
+                    return;
+                } catch (ExecutionException eex) {
+                    log.warn("Could not send ack.", eex.getCause());
+                }
+            }
+        }
+
+        private void write(String event) throws IOException {
+            synchronized (response) {
+                response.write(event.getBytes(StandardCharsets.UTF_8));
+                response.flush();
+            }
+        }
+    }
+
+    /**
+     * Walks EBML elements of the MKV stream, descending into Segment and Cluster, and reports fragment boundaries.
+     * Streams may follow each other within one connection.
+     */
+    private class FragmentScanner {
+
+        private final InputStream in;
+        private final AckWriter acks;
+        private boolean clusterOpen;
+        private String clusterFragmentNumber;
+        private long clusterTimecode;
+        private long clusterStartedAt;
+
+        private FragmentScanner(InputStream in, AckWriter acks) {
+            this.in = in;
+            this.acks = acks;
+        }
+
+        void scan() throws IOException {
+            for (int id = readId(); id != -1; id = readId()) {
+                long size = readSize();
+                switch (id) {
+                    case EBML:
+                        finishCluster();
+                        skip(size);
+
+                        break;
+                    case SEGMENT:
+                        finishCluster();
+
+                        break;
+                    case CLUSTER:
+                        finishCluster();
+                        clusterOpen = true;
+                        clusterStartedAt = System.currentTimeMillis();
+                        clusterFragmentNumber = FIRST_FRAGMENT_NUMBER
+                                .add(BigInteger.valueOf(fragmentNumber.incrementAndGet())).toString();
+
+                        break;
+                    case CLUSTER_TIMECODE:
+                        clusterTimecode = readUnsigned(size);
+                        acks.fragmentStarted(clusterFragmentNumber, clusterTimecode);
+
+                        break;
+                    case SIMPLE_BLOCK:
+                    case BLOCK_GROUP:
+                        frames.incrementAndGet();
+                        skip(size);
+
+                        break;
+                    default:
+                        skip(size);
+                }
+            }
+            finishCluster();
+        }
+
+        private void finishCluster() {
+            if (clusterOpen) {
+                acks.fragmentCompleted(clusterFragmentNumber, clusterTimecode, clusterStartedAt);
+                clusterOpen = false;
+            }
+        }
+
+        private int readId() throws IOException {
+            int first = in.read();
+            if (first == -1) {
+
+                return -1;
+            }
+            bytes.incrementAndGet();
+            int length = Integer.numberOfLeadingZeros(first) - 23;
+            if (length > 4) {
+                throw new IOException(String.format("Invalid element ID: 0x%02X", first));
+            }
+            int id = first;
+            for (int i = 1; i < length; ++i) {
+                id = (id << 8) | readByte();
+            }
+
+            return id;
+        }
+
+        private long readSize() throws IOException {
+            int first = readByte();
+            int length = Integer.numberOfLeadingZeros(first) - 23;
+            if (length > 8) {
+                throw new IOException("Invalid element size.");
+            }
+            long size = first & (0xFF >> length);
+            boolean unknown = size == (0xFF >> length);
+            for (int i = 1; i < length; ++i) {
+                int next = readByte();
+                unknown &= next == 0xFF;
+                size = (size << 8) | next;
+            }
+
+            return unknown ? UNKNOWN_SIZE : size;
+        }
+
+        private long readUnsigned(long size) throws IOException {
+            long value = 0;
+            for (long i = 0; i < size; ++i) {
+                value = (value << 8) | readByte();
+            }
+
+            return value;
+        }
+
+        private void skip(long size) throws IOException {
+            if (size == UNKNOWN_SIZE) {
+                throw new IOException("Element of unknown size can't be skipped.");
+            }
+            for (long skipped = 0; skipped < size; ) {
+                long n = in.skip(size - skipped);
+                if (n <= 0) {
+                    readByte();
+                    n = 1;
+                } else {
+                    bytes.addAndGet(n);
+                }
+                skipped += n;
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("MKV stream ended in the middle of an element.");
+            }
+            bytes.incrementAndGet();
+
+            return b;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package den.tal.traffic.guard.metrics;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmfLogSinkTest {
+
+    @Test
+    public void emfLineTest() {
+        InvocationMetrics metrics = new InvocationMetrics();
+        metrics.setDimension("EncodingMode", "JCODEC");
+        metrics.setProperty("RequestId", "request \"1\"");
+        metrics.add(Stage.IMAGE_DECODE, 1_500_000);
+        metrics.add(Stage.IMAGE_DECODE, 500_000);
+        metrics.count(Counter.FRAMES_IN, 5);
+        metrics.count(Counter.BYTES_IN, 1024);
+        metrics.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new EmfLogSink("TrafficGuardTest", new PrintStream(out, true, StandardCharsets.UTF_8)).emit(metrics);
+        String line = out.toString(StandardCharsets.UTF_8);
+        assertEquals(1, line.split("\n").length);
+
+        JsonObject emf = JsonParser.parseString(line).getAsJsonObject();
+        JsonObject directive = emf.getAsJsonObject("_aws").getAsJsonArray("CloudWatchMetrics").get(0)
+                .getAsJsonObject();
+        assertEquals(metrics.getTimestamp(), emf.getAsJsonObject("_aws").get("Timestamp").getAsLong());
+        assertEquals("TrafficGuardTest", directive.get("Namespace").getAsString());
+        assertEquals("EncodingMode", directive.getAsJsonArray("Dimensions").get(0).getAsJsonArray().get(0)
+                .getAsString());
+        JsonArray definitions = directive.getAsJsonArray("Metrics");
+        assertEquals(Stage.values().length + Counter.values().length, definitions.size());
+        for (int i = 0; i < definitions.size(); ++i) {
+            // Every declared metric has a value.
+            assertTrue(emf.has(definitions.get(i).getAsJsonObject().get("Name").getAsString()));
+        }
+        assertEquals("JCODEC", emf.get("EncodingMode").getAsString());
+        assertEquals("request \"1\"", emf.get("RequestId").getAsString());
+        assertEquals(2.0, emf.get("ImageDecodeTime").getAsDouble(), 1e-9);
+        assertEquals(5, emf.get("FramesIn").getAsLong());
+        assertEquals(1024, emf.get("BytesIn").getAsLong());
+        assertTrue(emf.get("TotalTime").getAsDouble() >= 0);
+    }
+}
@@ -0,0 +1,96 @@
+package den.tal.traffic.guard.payload;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import den.tal.traffic.guard.SyntheticFrames;
+import den.tal.traffic.guard.metrics.InvocationMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryPayloadReaderTest {
+
+    @Test
+    public void readFramesAndTimestampsTest() throws Exception {
+        List<byte[]> frames = List.of(new byte[]{1, 2, 3}, new byte[0], new byte[200_000]);
+        List<byte[]> read = new ArrayList<>();
+        try (BinaryPayloadReader payloadReader = new BinaryPayloadReader(new ByteArrayInputStream(
+                SyntheticFrames.toBinaryBody(frames, 4)))) {
+            payloadReader.read((i, frame, length) -> {
+                assertEquals(read.size(), i);
+                assertNotNull(payloadReader.getTimestamps());
+                read.add(Arrays.copyOf(frame, length));
+            });
+            assertEquals(3, payloadReader.getNumOfFrames());
+            assertEquals(4f, payloadReader.getFramerate());
+            assertArrayEquals(new long[]{1_600_000_000_000L, 1_600_000_000_250L, 1_600_000_000_500L},
+                    payloadReader.getTimestamps());
+        }
+        for (int i = 0; i < frames.size(); ++i) {
+            assertArrayEquals(frames.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void rejectMalformedBodyTest() {
+        byte[] body = SyntheticFrames.toBinaryBody(List.of(new byte[]{1, 2, 3}), 1);
+        byte[] truncated = Arrays.copyOf(body, body.length - 1);
+        assertThrows(IOException.class, () -> readAll(truncated));
+        byte[] wrongMagic = body.clone();
+        wrongMagic[0] = '{';
+        assertThrows(IOException.class, () -> readAll(wrongMagic));
+    }
+
+    @Test
+    public void formatIsChosenByContentTypeTest() throws Exception {
+        byte[] body = SyntheticFrames.toBinaryBody(List.of(new byte[]{1, 2, 3}), 1);
+        APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent();
+        request.setHeaders(Map.of("content-type", "application/x-webcam-frames; charset=binary"));
+        request.setIsBase64Encoded(true);
+        request.setBody(Base64.getEncoder().encodeToString(body));
+        RequestPayload payload = RequestPayload.of(request);
+        assertEquals(PayloadFormat.BINARY, payload.getFormat());
+        try (FramePayloadReader payloadReader = payload.open(new InvocationMetrics())) {
+            payloadReader.read((i, frame, length) -> assertArrayEquals(new byte[]{1, 2, 3},
+                    Arrays.copyOf(frame, length)));
+            assertEquals(1, payloadReader.getNumOfFrames());
+        }
+
+        request.setHeaders(Map.of("Content-Type", "application/json"));
+        request.setBody(Base64.getEncoder().encodeToString("{\"frames\":[\"AQID\"]}".getBytes()));
+        payload = RequestPayload.of(request);
+        assertEquals(PayloadFormat.JSON, payload.getFormat());
+        try (FramePayloadReader payloadReader = payload.open(new InvocationMetrics())) {
+            payloadReader.read((i, frame, length) -> assertArrayEquals(new byte[]{1, 2, 3},
+                    Arrays.copyOf(frame, length)));
+            assertEquals(1, payloadReader.getNumOfFrames());
+        }
+    }
+
+    @Test
+    public void binaryBodyPassedAsTextIsRejectedTest() {
+        APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent();
+        request.setHeaders(Map.of("Content-Type", "application/octet-stream"));
+        request.setIsBase64Encoded(false);
+        request.setBody("WSF1\uFFFD\uFFFD");
+        RequestPayload payload = RequestPayload.of(request);
+        assertTrue(payload.isBinaryPassedAsText());
+        assertThrows(IOException.class, () -> payload.open(new InvocationMetrics()));
+
+        request.setHeaders(Map.of("Content-Type", "application/json"));
+        assertFalse(RequestPayload.of(request).isBinaryPassedAsText());
+    }
+
+    private static void readAll(byte[] body) throws IOException {
+        try (BinaryPayloadReader payloadReader = new BinaryPayloadReader(new ByteArrayInputStream(body))) {
+            payloadReader.read((i, frame, length) -> {});
+        }
+    }
+}
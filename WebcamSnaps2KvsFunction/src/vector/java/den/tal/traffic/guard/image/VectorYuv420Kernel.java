@@ -0,0 +1,77 @@
+package den.tal.traffic.guard.image;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Yuv420Kernel} on the JDK Vector API: a vector of pixels at a time in the widest int species of the CPU,
+ * narrowed to bytes in registers when there's a byte species of the same length (8 lanes and more), through a
+ * scratch row otherwise. The tail of a row is done by {@link Yuv420Kernel.Scalar}.
+ * <p>
+ * Only loaded if <code>jdk.incubator.vector</code> module is in the boot layer, see {@link Yuv420Converter}. Compiled
+ * in a source set of its own, the only one built with the incubator module.
+ *
+ * @author Denis Talochkin
+ */
+class VectorYuv420Kernel implements Yuv420Kernel {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = INTS.length() >= 8
+            ? VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * Byte.SIZE)) : null;
+
+    private int[] scratch = new int[0];
+
+    @Override
+    public void luma(int[] r, int[] g, int[] b, int length, byte[] y, int offset) {
+        final int upper = INTS.loopBound(length);
+        for (int i = 0; i < upper; i += INTS.length()) {
+            IntVector luma = IntVector.fromArray(INTS, r, i).mul(77)
+                    .add(IntVector.fromArray(INTS, g, i).mul(150))
+                    .add(IntVector.fromArray(INTS, b, i).mul(29))
+                    .add(128)
+                    .lanewise(VectorOperators.ASHR, 8)
+                    .sub(128);
+            store(luma, y, offset, i);
+        }
+        Scalar.luma(r, g, b, upper, length, y, offset);
+    }
+
+    @Override
+    public void chroma(int[] r, int[] g, int[] b, int length, byte[] u, byte[] v, int offset) {
+        final int upper = INTS.loopBound(length);
+        for (int i = 0; i < upper; i += INTS.length()) {
+            IntVector vr = IntVector.fromArray(INTS, r, i);
+            IntVector vg = IntVector.fromArray(INTS, g, i);
+            IntVector vb = IntVector.fromArray(INTS, b, i);
+            store(clip(vr.mul(-43).sub(vg.mul(85)).add(vb.mul(128))), u, offset, i);
+            store(clip(vr.mul(128).sub(vg.mul(107)).sub(vb.mul(21))), v, offset, i);
+        }
+        Scalar.chroma(r, g, b, upper, length, u, v, offset);
+    }
+
+    /**
+     * Rounds a sum of 4 pixels scaled by 2^8 and clips it to a signed byte.
+     */
+    private static IntVector clip(IntVector scaled) {
+
+        return scaled.add(512).lanewise(VectorOperators.ASHR, 10).max(-128).min(127);
+    }
+
+    private void store(IntVector values, byte[] plane, int offset, int i) {
+        if (null != BYTES) {
+            ((ByteVector) values.convertShape(VectorOperators.I2B, BYTES, 0)).intoArray(plane, offset + i);
+
+            return;
+        }
+        if (scratch.length < INTS.length()) {
+            scratch = new int[INTS.length()];
+        }
+        values.intoArray(scratch, 0);
+        for (int lane = 0; lane < INTS.length(); ++lane) {
+            plane[offset + i + lane] = (byte) scratch[lane];
+        }
+    }
+}